@@ -0,0 +1,37 @@
+import java.io.File;
+
+import orchestra.playlist.git.PlaygistContainer;
+import orchestra.playlist.git.PlaygistFormat;
+import orchestra.util.Git;
+
+import org.spearce.jgit.lib.Repository;
+
+/**
+ * Converts all playlists of a playgist repository to another format, in one
+ * commit.
+ *
+ * <pre>
+ * Migrate &lt;git dir&gt; &lt;owner&gt; text|binary [--object-database]
+ * </pre>
+ */
+public class Migrate {
+  public static void main(String[] args) throws Exception {
+    if (args.length < 3) {
+      System.err.println("Usage: Migrate <git dir> <owner> text|binary [--object-database]");
+      System.exit(1);
+    }
+
+    final Repository repo = new Repository(new File(args[0]));
+    final Git git = new Git(repo);
+    final PlaygistFormat format = PlaygistFormat.valueOf(args[2].toUpperCase());
+    final boolean useObjectDatabase = args.length > 3 && args[3].equals("--object-database");
+    final PlaygistContainer container = PlaygistContainer.open(args[1], git,
+        new PlaygistContainer.Options().setFormat(format).setUseObjectDatabase(useObjectDatabase));
+
+    try {
+      System.out.println("Converted " + container.migrate() + " playlists to " + format);
+    } finally {
+      container.close();
+    }
+  }
+}
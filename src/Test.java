@@ -29,12 +29,19 @@ public class Test {
     final PlaylistContainer container = PlaygistContainer.open("liesen", git);
     final Playlist pl = container.createPlaylist("Spring Ricco");
     
-    for (String s : tracks) {
-      String trackId = String.format("%032x", Base62.decodeBigInteger(s));
-      Track tr = new Track(trackId, null, null, null);
-      pl.addTrack(tr);
-    }
+    // Written and committed once, when the edit is committed
+    pl.beginEdit();
     
-    pl.setName("Florence Valentin - Spring Ricco");
+    try {
+      for (String s : tracks) {
+        String trackId = String.format("%032x", Base62.decodeBigInteger(s));
+        Track tr = new Track(trackId, null, null, null);
+        pl.addTrack(tr);
+      }
+      
+      pl.setName("Florence Valentin - Spring Ricco");
+    } finally {
+      pl.commitEdit();
+    }
   }
 }
@@ -1,10 +1,20 @@
 package orchestra;
 
-import java.net.URI;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import orchestra.playlist.JotifyPlaylist;
 import orchestra.playlist.Playlist;
+import orchestra.playlist.PlaylistIdentifiers;
+import orchestra.playlist.PlaylistListener;
+import orchestra.playlist.TrackResolver;
 import orchestra.playlist.git.PlaygistContainer;
+import orchestra.util.AdaptiveLimiter;
+import orchestra.util.CircuitBreaker;
 import orchestra.util.Git;
 
 import org.slf4j.Logger;
@@ -12,83 +22,368 @@ import org.slf4j.LoggerFactory;
 
 import de.felixbruns.jotify.JotifyPool;
 import de.felixbruns.jotify.media.PlaylistContainer;
+import de.felixbruns.jotify.media.Result;
 import de.felixbruns.jotify.media.Track;
 import de.felixbruns.jotify.player.PlaybackListener;
 
 public class Maestro extends JotifyPool {
   private static final Logger LOGGER = LoggerFactory.getLogger(Maestro.class);
 
+  /** Longest time a playlist change is held before it's committed. */
+  private static final long FLUSH_DELAY_MILLIS = 2000;
+
+  /** Number of playlist changes that triggers an early commit. */
+  private static final int MAX_PENDING_CHANGES = 100;
+
+  /** Default bounds of the number of concurrent Jotify requests. */
+  private static final int MIN_CONNECTIONS = 2;
+  private static final int MAX_CONNECTIONS = 8;
+
+  /** Longest a request should wait for a connection before the limit grows. */
+  private static final long TARGET_WAIT_MILLIS = 50;
+
+  /** Time without waiting before the limit shrinks. */
+  private static final long SHRINK_DELAY_MILLIS = 60000;
+
+  /** Number of recent playback attempts the failure rate is taken over. */
+  private static final int PLAYBACK_WINDOW = 10;
+
+  /** Share of failed playback attempts that stops playback. */
+  private static final double PLAYBACK_FAILURE_THRESHOLD = 0.5;
+
+  /** How long playback stays stopped before it's tried again. */
+  private static final long PLAYBACK_OPEN_MILLIS = 30000;
+
+  /** Number of times a track is retried after playback fails. */
+  private static final int PLAY_RETRIES = 1;
+
+  /** Number of tracks whose metadata is kept in memory. */
+  private static final int TRACK_CACHE_SIZE = 20000;
+
+  /** Most tracks browsed for in one request. */
+  private static final int BROWSE_BATCH_SIZE = 500;
+
   private PlaygistContainer playgists;
-  
-  private boolean canPlayMusic = true;
+
+  /** Stops playback after repeated failures, until a probe succeeds. */
+  private final CircuitBreaker playback = new CircuitBreaker(PLAYBACK_WINDOW,
+      PLAYBACK_FAILURE_THRESHOLD, PLAYBACK_OPEN_MILLIS);
+
+  /** Wrappers of the playgists by identifier handle, reused across calls. */
+  private List<JotifyPlaylist> wrappers = new ArrayList<JotifyPlaylist>();
+
+  /** Remote playlists merged with the playgists; null if out of date. */
+  private PlaylistContainer merged;
+
+  private long mergedRevision;
+
+  private long mergedChecksum;
+
+  private int mergedRemoteSize;
+
+  private long playlistsCacheHits;
+
+  private long playlistsCacheRebuilds;
 
   /**
-   * 
+   * Admits requests to the pool. The pool itself is sized to the highest
+   * limit and only opens connections as they're needed.
    */
-  private Maestro(PlaygistContainer container) {
-    super(4);
+  private final AdaptiveLimiter limiter;
+
+  /** Fills in the metadata of playgist tracks. */
+  private TrackResolver trackResolver;
+
+  /**
+   * @param container playgists to merge with the remote playlists
+   * @param minConnections lowest number of concurrent Jotify requests
+   * @param maxConnections highest number of concurrent Jotify requests, and
+   *        the size of the connection pool
+   */
+  protected Maestro(PlaygistContainer container, int minConnections, int maxConnections) {
+    super(maxConnections);
+    limiter = new AdaptiveLimiter(minConnections, maxConnections, TARGET_WAIT_MILLIS,
+        SHRINK_DELAY_MILLIS);
     playgists = container;
+    playgists.addListener(new PlaylistListener() {
+      public void playlistChanged(Playlist playlist) {
+        invalidatePlaylists();
+      }
+    });
   }
 
   public static Maestro newInstance(String username, Git git) throws Exception {
-    PlaygistContainer playlists = PlaygistContainer.open(username, git);
+    return newInstance(username, git, MIN_CONNECTIONS, MAX_CONNECTIONS);
+  }
+
+  /**
+   * @param username
+   * @param git
+   * @param minConnections lowest number of concurrent Jotify requests
+   * @param maxConnections highest number of concurrent Jotify requests, and
+   *        the size of the connection pool
+   * @return
+   * @throws Exception
+   */
+  public static Maestro newInstance(String username, Git git, int minConnections,
+      int maxConnections) throws Exception {
+    PlaygistContainer playlists = PlaygistContainer.open(username, git,
+        new PlaygistContainer.Options().setWriteBehind(FLUSH_DELAY_MILLIS, MAX_PENDING_CHANGES)
+            .setUseSnapshot(true).setUseJournal(true)
+            .setEventExecutor(Executors.newSingleThreadExecutor(new ThreadFactory() {
+              public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "playlist-events");
+                t.setDaemon(true);
+                return t;
+              }
+            })));
     LOGGER.info("Using playgist container: {}", playlists.getPlaylists());
     
-    return new Maestro(playlists);
+    final Maestro maestro = new Maestro(playlists, minConnections, maxConnections);
+    maestro.trackResolver = new TrackResolver(new TrackResolver.Source() {
+      public List<Track> browse(List<Track> tracks) {
+        Result result = maestro.browse(tracks);
+        return result != null ? result.getTracks() : null;
+      }
+    }, new File(git.getRepository().getDirectory(), TrackResolver.CACHE_FILE_NAME),
+        TRACK_CACHE_SIZE, BROWSE_BATCH_SIZE);
+    playlists.setTrackResolver(maestro.trackResolver);
+    return maestro;
   }
   
+  /**
+   * Plays a track unless the playback breaker is open. A failed attempt is
+   * retried, which gets the next connection from the pool.
+   */
   @Override
   public void play(Track track, PlaybackListener listener) {
-    if (canPlayMusic) {
-      // Catch all exceptions when trying to play music -- somewhere an NPE is thrown :( 
+    for (int attempt = 0; attempt <= PLAY_RETRIES; attempt++) {
+      if (!playback.allowRequest()) {
+        LOGGER.debug("Can not play music: {}", playback);
+        return;
+      }
+
+      int slot = limiter.acquire();
+
+      // Catch all exceptions when trying to play music -- somewhere an NPE is thrown :(
       try {
         super.play(track, listener);
+        playback.recordSuccess();
         return;
       } catch (Exception e) {
-        canPlayMusic = false;
-        LOGGER.warn("Could not play " + track, e);
+        playback.recordFailure();
+        LOGGER.warn("Could not play " + track + " (attempt " + (attempt + 1) + ")", e);
+      } finally {
+        limiter.release(slot);
       }
-    } else {
-      LOGGER.debug("Can not play music");
     }
   }
 
+  /**
+   * Returns a playgist if the ID is an orchestra ID; anything else is passed
+   * on to Jotify. The ID is looked up as is, without parsing it.
+   */
   @Override
   public de.felixbruns.jotify.media.Playlist playlist(String id) {
     LOGGER.info("Fetching playlist: {}", id);
 
-    try {
-      URI identifier = URI.create(id); 
-      
-      if (identifier.getScheme().equals("orchestra")) {
-        Playlist playgist = playgists.getPlaylist(identifier);
-
-        if (playgist != null) {
-          return new JotifyPlaylist(playgist);
-        }
+    if (PlaylistIdentifiers.isOrchestraId(id)) {
+      int handle = playgists.getHandle(id);
+      Playlist playgist = playgists.getPlaylist(handle);
 
-        return null; // Otherwise Jotify fails
+      // The handle may have been reused since it was looked up
+      if (playgist != null && playgist.getIdentifier().toString().equals(id)) {
+        return wrap(handle, playgist);
       }
-    } catch (IllegalArgumentException e) {
-      LOGGER.info("Failed creating a URI from the playlist ID", e);
+
+      return null; // Otherwise Jotify fails
     }
 
-    return super.playlist(id);
+    int slot = limiter.acquire();
+
+    try {
+      return super.playlist(id);
+    } finally {
+      limiter.release(slot);
+    }
   }
 
+  /**
+   * Returns the remote playlists, preceded by the playgists. The merged
+   * container is cached until a playgist changes or the remote container
+   * comes back with a different revision.
+   */
   @Override
   public PlaylistContainer playlists() {
     LOGGER.info("Fetching playlists from Spotify");
-    PlaylistContainer playlists = super.playlists();
-    LOGGER.info("Received {} playlists", playlists.getPlaylists().size());
+    PlaylistContainer playlists = fetchRemotePlaylists();
+
+    if (playlists == null) {
+      return getCachedPlaylists();
+    }
+
+    List<de.felixbruns.jotify.media.Playlist> remote = playlists.getPlaylists();
+    LOGGER.info("Received {} playlists", remote.size());
+
+    // Of the remote container; merging changes them
+    long revision = playlists.getRevision();
+    long checksum = playlists.getChecksum();
+
+    synchronized (this) {
+      if (merged != null && mergedRevision == revision && mergedChecksum == checksum
+          && mergedRemoteSize == remote.size()) {
+        playlistsCacheHits++;
+        return merged;
+      }
 
-    for (Playlist pl : playgists) {
       // Add new playlists first since Jotify stops updating playlists if one
       // update fails
-      playlists.getPlaylists().add(0, new JotifyPlaylist(pl));
-      LOGGER.info("Added {}", pl.getName());
+      List<de.felixbruns.jotify.media.Playlist> all =
+          new ArrayList<de.felixbruns.jotify.media.Playlist>(playgists.size() + remote.size());
+      List<JotifyPlaylist> used = new ArrayList<JotifyPlaylist>(wrappers.size());
+
+      for (Playlist pl : playgists) {
+        int handle = playgists.getHandle(pl.getIdentifier().toString());
+        JotifyPlaylist wrapper = wrap(handle, pl);
+
+        while (used.size() <= handle) {
+          used.add(null);
+        }
+
+        used.set(handle, wrapper);
+        all.add(wrapper);
+      }
+
+      // Same order as inserting each at the front
+      Collections.reverse(all);
+      all.addAll(remote);
+      playlists.setPlaylists(all);
+
+      // Drop the wrappers of removed playlists
+      wrappers = used;
+
+      merged = playlists;
+      mergedRevision = revision;
+      mergedChecksum = checksum;
+      mergedRemoteSize = remote.size();
+      playlistsCacheRebuilds++;
+      LOGGER.info("Added {} playgists", all.size() - remote.size());
+      return merged;
     }
-    
-    return playlists;
+  }
+
+  /**
+   * Fetches the remote playlists from Jotify.
+   * 
+   * @return the remote container, or <code>null</code> if it couldn't be
+   *         fetched
+   */
+  protected PlaylistContainer fetchRemotePlaylists() {
+    int slot = limiter.acquire();
+
+    try {
+      return super.playlists();
+    } finally {
+      limiter.release(slot);
+    }
+  }
+
+  @Override
+  public Result browse(Track track) {
+    int slot = limiter.acquire();
+
+    try {
+      return super.browse(track);
+    } finally {
+      limiter.release(slot);
+    }
+  }
+
+  @Override
+  public Result browse(List<Track> tracks) {
+    int slot = limiter.acquire();
+
+    try {
+      return super.browse(tracks);
+    } finally {
+      limiter.release(slot);
+    }
+  }
+
+  private synchronized PlaylistContainer getCachedPlaylists() {
+    return merged;
+  }
+
+  /**
+   * Makes the next call to {@link #playlists()} rebuild the merged container.
+   */
+  private synchronized void invalidatePlaylists() {
+    merged = null;
+  }
+
+  /**
+   * Returns the wrapper of a playlist, creating it the first time. A wrapper
+   * left under a reused handle by a removed playlist is replaced.
+   * 
+   * @param handle handle of the playlist's identifier
+   * @param playlist
+   */
+  private synchronized JotifyPlaylist wrap(int handle, Playlist playlist) {
+    while (wrappers.size() <= handle) {
+      wrappers.add(null);
+    }
+
+    JotifyPlaylist wrapper = wrappers.get(handle);
+
+    if (wrapper == null || wrapper.getPlaylist() != playlist) {
+      wrapper = new JotifyPlaylist(playlist);
+      wrappers.set(handle, wrapper);
+    }
+
+    return wrapper;
+  }
+
+  /**
+   * @return number of calls to {@link #playlists()} answered from the cache
+   */
+  public synchronized long getPlaylistsCacheHits() {
+    return playlistsCacheHits;
+  }
+
+  /**
+   * @return number of times the merged container has been built
+   */
+  public synchronized long getPlaylistsCacheRebuilds() {
+    return playlistsCacheRebuilds;
+  }
+
+  /**
+   * Returns the limiter of concurrent Jotify requests, which reports the
+   * current limit, per-connection utilization and how long requests waited.
+   * 
+   * @return
+   */
+  public AdaptiveLimiter getConnectionLimiter() {
+    return limiter;
+  }
+
+  /**
+   * Returns the breaker of the playback path, which reports its state and
+   * how many times it has tripped.
+   * 
+   * @return
+   */
+  public CircuitBreaker getPlaybackBreaker() {
+    return playback;
+  }
+
+  /**
+   * Returns the resolver of playgist track metadata, which reports its cache
+   * hits and browse requests.
+   * 
+   * @return
+   */
+  public TrackResolver getTrackResolver() {
+    return trackResolver;
   }
 }
@@ -20,6 +20,13 @@ public class JotifyPlaylist extends de.felixbruns.jotify.media.Playlist {
     this.playlist = playlist;
   }
 
+  /**
+   * @return the wrapped playlist
+   */
+  public Playlist getPlaylist() {
+    return playlist;
+  }
+
   @Override
   public String getAuthor() {
     return playlist.getAuthor();
@@ -27,7 +34,7 @@ public class JotifyPlaylist extends de.felixbruns.jotify.media.Playlist {
 
   @Override
   public long getChecksum() {
-    return 0;
+    return playlist.getChecksum();
   }
 
   @Override
@@ -58,7 +65,7 @@ public class JotifyPlaylist extends de.felixbruns.jotify.media.Playlist {
 
   @Override
   public boolean hasTracks() {
-    return playlist.getTracks().size() > 0;
+    return playlist.getTrackCount() > 0;
   }
 
   @Override
@@ -0,0 +1,647 @@
+package orchestra.playlist;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+import orchestra.util.Base16;
+import de.felixbruns.jotify.media.Track;
+
+
+/**
+ * A list of tracks that only stores the 128-bit track IDs, in parallel
+ * arrays of longs. {@link Track} objects are created on demand when elements
+ * are read, and only carry the ID.
+ *
+ * <p>
+ * The IDs are kept in chunks of at most {@value #CHUNK_CAPACITY}, so an
+ * insert or remove only shifts the IDs of one chunk. Chunks are copy on
+ * write: {@link #snapshot()} shares them with a copy of the list, and
+ * whichever list is written to next copies the chunk it writes to first.
+ * A snapshot costs one reference per chunk and stays unchanged however the
+ * list is edited afterwards.
+ *
+ * <p>
+ * The list keeps an order-aware checksum of its IDs, see {@link #getChecksum()}.
+ */
+public class PackedTrackList extends AbstractList<Track> implements RandomAccess {
+  private static final int DEFAULT_CAPACITY = 16;
+
+  /** Most IDs in a chunk; full chunks are split in two. */
+  private static final int CHUNK_CAPACITY = 128;
+
+  /** Length of the first chunk, which grows up to the chunk capacity. */
+  private final int firstChunkLength;
+
+  /** High and low 64 bits of the track IDs, by chunk. */
+  private long[][] high;
+  private long[][] low;
+
+  /** Number of IDs in each chunk, and the list index of its first. */
+  private int[] counts;
+  private int[] starts;
+
+  /** Whether a chunk may be written in place, i.e. isn't shared. */
+  private boolean[] owned;
+
+  private int chunkCount;
+
+  private int size;
+
+  /** Chunk of the last lookup, tried first by the next one. */
+  private int hint;
+
+  /** Stand-ins for the IDs before the first and after the last track. */
+  private static final long START = 0x9e3779b97f4a7c15L;
+  private static final long END = 0xc2b2ae3d27d4eb4fL;
+
+  /** Sum of {@link #pair} over all adjacent IDs; valid if checksummed. */
+  private long checksum;
+  private boolean checksummed;
+
+  public PackedTrackList() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param capacity initial number of tracks that fit without growing
+   */
+  public PackedTrackList(int capacity) {
+    final int chunks = Math.max(1, (capacity + CHUNK_CAPACITY - 1) / CHUNK_CAPACITY);
+    firstChunkLength = Math.min(CHUNK_CAPACITY, Math.max(DEFAULT_CAPACITY, capacity));
+    high = new long[chunks][];
+    low = new long[chunks][];
+    counts = new int[chunks];
+    starts = new int[chunks];
+    owned = new boolean[chunks];
+  }
+
+  /**
+   * @param tracks initial tracks
+   */
+  public PackedTrackList(Collection<? extends Track> tracks) {
+    this(Math.max(DEFAULT_CAPACITY, tracks.size()));
+    addAll(tracks);
+  }
+
+  /**
+   * Copies a list, sharing its chunks.
+   */
+  private PackedTrackList(PackedTrackList list) {
+    firstChunkLength = list.firstChunkLength;
+    high = list.high.clone();
+    low = list.low.clone();
+    counts = list.counts.clone();
+    starts = list.starts.clone();
+    owned = new boolean[list.owned.length];
+    chunkCount = list.chunkCount;
+    size = list.size;
+    checksum = list.checksum;
+    checksummed = list.checksummed;
+  }
+
+  /**
+   * Returns a copy of the list that shares its chunks until either is
+   * written to. Costs O(n / {@value #CHUNK_CAPACITY}).
+   *
+   * @return
+   */
+  public PackedTrackList snapshot() {
+    final PackedTrackList copy = new PackedTrackList(this);
+    Arrays.fill(owned, 0, chunkCount, false);
+    return copy;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  private void checkIndex(int index, int size) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+  }
+
+  /**
+   * Finds the chunk that holds a list index, which must be in range.
+   */
+  private int chunkOf(int index) {
+    int c = hint;
+
+    if (c < chunkCount && index >= starts[c] && index < starts[c] + counts[c]) {
+      return c;
+    }
+
+    int lo = 0;
+    int hi = chunkCount - 1;
+
+    while (lo < hi) {
+      final int mid = (lo + hi + 1) >>> 1;
+
+      if (starts[mid] <= index) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+
+    hint = lo;
+    return lo;
+  }
+
+  /**
+   * Returns the high 64 bits of the ID of the track at an index.
+   */
+  public long getHigh(int index) {
+    checkIndex(index, size);
+    final int c = chunkOf(index);
+    return high[c][index - starts[c]];
+  }
+
+  /**
+   * Returns the low 64 bits of the ID of the track at an index.
+   */
+  public long getLow(int index) {
+    checkIndex(index, size);
+    final int c = chunkOf(index);
+    return low[c][index - starts[c]];
+  }
+
+  @Override
+  public Track get(int index) {
+    checkIndex(index, size);
+    final int c = chunkOf(index);
+    final int i = index - starts[c];
+    return new Track(Base16.encode(high[c][i], low[c][i]), null, null, null);
+  }
+
+  @Override
+  public Track set(int index, Track track) {
+    final Track previous = get(index);
+    final long[] id = decode(track);
+    final int c = chunkOf(index);
+    final int i = index - starts[c];
+
+    if (checksummed) {
+      final long prevHi = index > 0 ? getHigh(index - 1) : START;
+      final long prevLo = index > 0 ? getLow(index - 1) : START;
+      final long nextHi = index < size - 1 ? getHigh(index + 1) : END;
+      final long nextLo = index < size - 1 ? getLow(index + 1) : END;
+      checksum += pair(prevHi, prevLo, id[0], id[1]) + pair(id[0], id[1], nextHi, nextLo)
+          - pair(prevHi, prevLo, high[c][i], low[c][i])
+          - pair(high[c][i], low[c][i], nextHi, nextLo);
+    }
+
+    makeWritable(c, counts[c]);
+    high[c][i] = id[0];
+    low[c][i] = id[1];
+    return previous;
+  }
+
+  @Override
+  public void add(int index, Track track) {
+    final long[] id = decode(track);
+    add(index, id[0], id[1]);
+  }
+
+  /**
+   * Inserts a track ID at an index.
+   *
+   * @param index
+   * @param hi high 64 bits of the ID
+   * @param lo low 64 bits of the ID
+   */
+  public void add(int index, long hi, long lo) {
+    checkIndex(index, size + 1);
+
+    if (checksummed) {
+      final long prevHi = index > 0 ? getHigh(index - 1) : START;
+      final long prevLo = index > 0 ? getLow(index - 1) : START;
+      final long nextHi = index < size ? getHigh(index) : END;
+      final long nextLo = index < size ? getLow(index) : END;
+      checksum += pair(prevHi, prevLo, hi, lo) + pair(hi, lo, nextHi, nextLo)
+          - pair(prevHi, prevLo, nextHi, nextLo);
+    }
+
+    int c;
+    int offset;
+
+    if (chunkCount == 0) {
+      insertChunk(0, new long[firstChunkLength], new long[firstChunkLength], 0, 0);
+      c = 0;
+      offset = 0;
+    } else if (index == size) {
+      c = chunkCount - 1;
+      offset = counts[c];
+    } else {
+      c = chunkOf(index);
+      offset = index - starts[c];
+    }
+
+    if (counts[c] == CHUNK_CAPACITY) {
+      if (offset == CHUNK_CAPACITY && c == chunkCount - 1) {
+        // Appending: start a new chunk rather than leave two half-full ones
+        insertChunk(c + 1, new long[CHUNK_CAPACITY], new long[CHUNK_CAPACITY], 0, size);
+        c++;
+        offset = 0;
+      } else {
+        split(c);
+
+        if (offset > counts[c]) {
+          offset -= counts[c];
+          c++;
+        }
+      }
+    }
+
+    makeWritable(c, counts[c] + 1);
+    System.arraycopy(high[c], offset, high[c], offset + 1, counts[c] - offset);
+    System.arraycopy(low[c], offset, low[c], offset + 1, counts[c] - offset);
+    high[c][offset] = hi;
+    low[c][offset] = lo;
+    counts[c]++;
+
+    for (int j = c + 1; j < chunkCount; j++) {
+      starts[j]++;
+    }
+
+    size++;
+    modCount++;
+  }
+
+  /**
+   * Appends a track ID.
+   *
+   * @param hi high 64 bits of the ID
+   * @param lo low 64 bits of the ID
+   */
+  public void add(long hi, long lo) {
+    add(size, hi, lo);
+  }
+
+  @Override
+  public Track remove(int index) {
+    final Track previous = get(index);
+    removeAt(index);
+    return previous;
+  }
+
+  private void removeAt(int index) {
+    if (checksummed) {
+      final long hi = getHigh(index);
+      final long lo = getLow(index);
+      final long prevHi = index > 0 ? getHigh(index - 1) : START;
+      final long prevLo = index > 0 ? getLow(index - 1) : START;
+      final long nextHi = index < size - 1 ? getHigh(index + 1) : END;
+      final long nextLo = index < size - 1 ? getLow(index + 1) : END;
+      checksum += pair(prevHi, prevLo, nextHi, nextLo) - pair(prevHi, prevLo, hi, lo)
+          - pair(hi, lo, nextHi, nextLo);
+    }
+
+    int c = chunkOf(index);
+    final int offset = index - starts[c];
+
+    if (counts[c] == 1) {
+      removeChunk(c);
+    } else {
+      makeWritable(c, counts[c]);
+      System.arraycopy(high[c], offset + 1, high[c], offset, counts[c] - offset - 1);
+      System.arraycopy(low[c], offset + 1, low[c], offset, counts[c] - offset - 1);
+      counts[c]--;
+      c++;
+    }
+
+    for (int j = c; j < chunkCount; j++) {
+      starts[j]--;
+    }
+
+    size--;
+    modCount++;
+  }
+
+  @Override
+  public int indexOf(Object o) {
+    final long[] id = tryDecode(o);
+
+    if (id != null) {
+      for (int c = 0; c < chunkCount; c++) {
+        final long[] hs = high[c];
+        final long[] ls = low[c];
+
+        for (int i = 0, n = counts[c]; i < n; i++) {
+          if (hs[i] == id[0] && ls[i] == id[1]) {
+            return starts[c] + i;
+          }
+        }
+      }
+    }
+
+    return -1;
+  }
+
+  @Override
+  public int lastIndexOf(Object o) {
+    final long[] id = tryDecode(o);
+
+    if (id != null) {
+      for (int c = chunkCount - 1; c >= 0; c--) {
+        final long[] hs = high[c];
+        final long[] ls = low[c];
+
+        for (int i = counts[c] - 1; i >= 0; i--) {
+          if (hs[i] == id[0] && ls[i] == id[1]) {
+            return starts[c] + i;
+          }
+        }
+      }
+    }
+
+    return -1;
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    return indexOf(o) >= 0;
+  }
+
+  @Override
+  public boolean remove(Object o) {
+    final int index = indexOf(o);
+
+    if (index < 0) {
+      return false;
+    }
+
+    removeAt(index);
+    return true;
+  }
+
+  /**
+   * Removes every occurrence of the tracks in a collection, in a single pass.
+   */
+  @Override
+  public boolean removeAll(Collection<?> c) {
+    final IdSet ids = new IdSet(c);
+
+    if (ids.isEmpty()) {
+      return false;
+    }
+
+    final PackedTrackList kept = new PackedTrackList(size);
+
+    for (int k = 0; k < chunkCount; k++) {
+      for (int i = 0, n = counts[k]; i < n; i++) {
+        if (!ids.contains(high[k][i], low[k][i])) {
+          kept.add(high[k][i], low[k][i]);
+        }
+      }
+    }
+
+    if (kept.size == size) {
+      return false;
+    }
+
+    high = kept.high;
+    low = kept.low;
+    counts = kept.counts;
+    starts = kept.starts;
+    owned = kept.owned;
+    chunkCount = kept.chunkCount;
+    size = kept.size;
+    hint = 0;
+    checksummed = false;
+    modCount++;
+    return true;
+  }
+
+  @Override
+  public void clear() {
+    Arrays.fill(high, 0, chunkCount, null);
+    Arrays.fill(low, 0, chunkCount, null);
+    chunkCount = 0;
+    size = 0;
+    hint = 0;
+    checksum = pair(START, START, END, END);
+    checksummed = true;
+    modCount++;
+  }
+
+  /**
+   * Returns a checksum of the track IDs in order. It's the sum of a hash of
+   * every pair of adjacent IDs, with stand-ins before the first and after the
+   * last, so an insert or a remove only replaces the pairs around it and
+   * costs O(1). The first call computes it in a single pass.
+   *
+   * @return the checksum; equal lists have equal checksums
+   */
+  public long getChecksum() {
+    if (!checksummed) {
+      long sum = 0;
+      long prevHi = START;
+      long prevLo = START;
+
+      for (int c = 0; c < chunkCount; c++) {
+        for (int i = 0, n = counts[c]; i < n; i++) {
+          sum += pair(prevHi, prevLo, high[c][i], low[c][i]);
+          prevHi = high[c][i];
+          prevLo = low[c][i];
+        }
+      }
+
+      checksum = sum + pair(prevHi, prevLo, END, END);
+      checksummed = true;
+    }
+
+    return checksum;
+  }
+
+  /**
+   * Hashes an ordered pair of IDs.
+   */
+  private static long pair(long hi1, long lo1, long hi2, long lo2) {
+    return mix(hi1 ^ mix(lo1 ^ mix(hi2 ^ mix(lo2 + START))));
+  }
+
+  /**
+   * The 64-bit finalizer of MurmurHash3.
+   */
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * Makes a chunk safe to write to, with room for <code>needed</code> IDs:
+   * copies it if it's shared or too short.
+   */
+  private void makeWritable(int c, int needed) {
+    int length = high[c].length;
+
+    if (length < needed) {
+      length = Math.min(CHUNK_CAPACITY, Math.max(needed, length * 2));
+    }
+
+    if (!owned[c] || length != high[c].length) {
+      high[c] = Arrays.copyOf(high[c], length);
+      low[c] = Arrays.copyOf(low[c], length);
+      owned[c] = true;
+    }
+  }
+
+  /**
+   * Moves the upper half of a full chunk to a new chunk after it.
+   */
+  private void split(int c) {
+    final int left = counts[c] / 2;
+    final int right = counts[c] - left;
+    final long[] hs = new long[CHUNK_CAPACITY];
+    final long[] ls = new long[CHUNK_CAPACITY];
+    System.arraycopy(high[c], left, hs, 0, right);
+    System.arraycopy(low[c], left, ls, 0, right);
+    counts[c] = left;
+    insertChunk(c + 1, hs, ls, right, starts[c] + left);
+  }
+
+  private void insertChunk(int c, long[] hs, long[] ls, int count, int start) {
+    if (chunkCount == high.length) {
+      final int capacity = Math.max(1, chunkCount * 2);
+      high = Arrays.copyOf(high, capacity);
+      low = Arrays.copyOf(low, capacity);
+      counts = Arrays.copyOf(counts, capacity);
+      starts = Arrays.copyOf(starts, capacity);
+      owned = Arrays.copyOf(owned, capacity);
+    }
+
+    final int n = chunkCount - c;
+    System.arraycopy(high, c, high, c + 1, n);
+    System.arraycopy(low, c, low, c + 1, n);
+    System.arraycopy(counts, c, counts, c + 1, n);
+    System.arraycopy(starts, c, starts, c + 1, n);
+    System.arraycopy(owned, c, owned, c + 1, n);
+    high[c] = hs;
+    low[c] = ls;
+    counts[c] = count;
+    starts[c] = start;
+    owned[c] = true;
+    chunkCount++;
+  }
+
+  private void removeChunk(int c) {
+    final int n = chunkCount - c - 1;
+    System.arraycopy(high, c + 1, high, c, n);
+    System.arraycopy(low, c + 1, low, c, n);
+    System.arraycopy(counts, c + 1, counts, c, n);
+    System.arraycopy(starts, c + 1, starts, c, n);
+    System.arraycopy(owned, c + 1, owned, c, n);
+    chunkCount--;
+    high[chunkCount] = null;
+    low[chunkCount] = null;
+  }
+
+  /**
+   * Decodes the ID of a track.
+   *
+   * @throws IllegalArgumentException if the ID isn't 32 hex digits
+   */
+  private static long[] decode(Track track) throws IllegalArgumentException {
+    final String id = track.getId();
+
+    if (id == null || id.length() != Base16.LENGTH_128) {
+      throw new IllegalArgumentException("Not a track ID: " + id);
+    }
+
+    final long[] value = new long[2];
+    Base16.decode(id, 0, value);
+    return value;
+  }
+
+  /**
+   * Decodes the ID of an object if it's a track with a valid ID.
+   *
+   * @return the ID, or <code>null</code>
+   */
+  private static long[] tryDecode(Object o) {
+    if (o instanceof Track) {
+      try {
+        return decode((Track) o);
+      } catch (IllegalArgumentException e) {
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * A minimal open-addressing hash set of 128-bit IDs.
+   */
+  private static class IdSet {
+    private final long[] high;
+    private final long[] low;
+    private final boolean[] used;
+    private final int mask;
+    private int size;
+
+    IdSet(Collection<?> c) {
+      int capacity = 4;
+
+      while (capacity < c.size() * 2) {
+        capacity <<= 1;
+      }
+
+      high = new long[capacity];
+      low = new long[capacity];
+      used = new boolean[capacity];
+      mask = capacity - 1;
+
+      for (Object o : c) {
+        final long[] id = tryDecode(o);
+
+        if (id != null) {
+          add(id[0], id[1]);
+        }
+      }
+    }
+
+    private int slot(long hi, long lo) {
+      long h = (hi ^ lo) * 0x9e3779b97f4a7c15L;
+      return (int) (h >>> 32) & mask;
+    }
+
+    void add(long hi, long lo) {
+      int i = slot(hi, lo);
+
+      while (used[i]) {
+        if (high[i] == hi && low[i] == lo) {
+          return;
+        }
+
+        i = (i + 1) & mask;
+      }
+
+      used[i] = true;
+      high[i] = hi;
+      low[i] = lo;
+      size++;
+    }
+
+    boolean contains(long hi, long lo) {
+      for (int i = slot(hi, lo); used[i]; i = (i + 1) & mask) {
+        if (high[i] == hi && low[i] == lo) {
+          return true;
+        }
+      }
+
+      return false;
+    }
+
+    boolean isEmpty() {
+      return size == 0;
+    }
+  }
+}
@@ -20,6 +20,9 @@ public abstract class Playlist implements Iterable<Track> {
 
   /** Indicates if the playlist is collaborative */
   private boolean collaborative;
+
+  /** Edit in progress on the current thread; unset if none */
+  private final ThreadLocal<Edit> edit = new ThreadLocal<Edit>();
   
   /**
    * 
@@ -87,6 +90,25 @@ public abstract class Playlist implements Iterable<Track> {
     throw new UnsupportedOperationException();
   }
 
+  /**
+   * Returns the number of tracks. Subclasses that can count their tracks
+   * without building the list should override this.
+   * 
+   * @return
+   */
+  public int getTrackCount() {
+    return getTracks().size();
+  }
+
+  /**
+   * Returns a checksum of the tracks, in order.
+   * 
+   * @return the checksum, or 0 if the playlist doesn't keep one
+   */
+  public long getChecksum() {
+    return 0;
+  }
+
   public boolean isCollaborative() {
     return collaborative;
   }
@@ -96,6 +118,92 @@ public abstract class Playlist implements Iterable<Track> {
     return this;
   }
 
+  /**
+   * Starts an edit. Changes made until the matching {@link #commitEdit()} are
+   * applied as usual, but listeners are notified only once, when the outermost
+   * edit is committed. Edits can be nested.
+   * 
+   * <p>
+   * An edit belongs to the thread that began it: it batches the changes made
+   * by that thread only, and doesn't hold back those made by other threads.
+   * 
+   * <pre>
+   * playlist.beginEdit();
+   * 
+   * try {
+   *   playlist.addTracks(tracks).setName(name);
+   * } finally {
+   *   playlist.commitEdit();
+   * }
+   * </pre>
+   * 
+   * @return
+   */
+  public Playlist beginEdit() {
+    Edit current = edit.get();
+
+    if (current == null) {
+      current = new Edit();
+      edit.set(current);
+    }
+
+    current.depth++;
+    return this;
+  }
+
+  /**
+   * Ends an edit started by {@link #beginEdit()}. Sends a single change
+   * notification if this ends the outermost edit and the playlist changed.
+   * 
+   * @return
+   * @throws IllegalStateException if no edit is in progress on this thread
+   */
+  public Playlist commitEdit() throws IllegalStateException {
+    final Edit current = edit.get();
+
+    if (current == null) {
+      throw new IllegalStateException("No edit in progress");
+    }
+
+    if (--current.depth == 0) {
+      edit.remove();
+
+      if (current.changed) {
+        notifyListeners();
+      }
+    }
+
+    return this;
+  }
+
+  /**
+   * @return <code>true</code> if an edit is in progress on this thread
+   */
+  public boolean isEditing() {
+    return edit.get() != null;
+  }
+
+  /**
+   * Signals that the playlist has changed. Listeners are notified right away,
+   * or when the current thread's edit is committed.
+   */
+  protected void changed() {
+    final Edit current = edit.get();
+
+    if (current != null) {
+      current.changed = true;
+    } else {
+      notifyListeners();
+    }
+  }
+
+  /**
+   * Notifies interested parties that this playlist has changed. Does nothing
+   * by default.
+   */
+  protected void notifyListeners() {
+  }
+
   /**
    * Adds a track at a specific index.
    * 
@@ -110,8 +218,14 @@ public abstract class Playlist implements Iterable<Track> {
   }
 
   public Playlist addTracks(int index, List<Track> tracks) {
-    for (Track track : tracks) {
-      addTrack(index++, track);
+    beginEdit();
+
+    try {
+      for (Track track : tracks) {
+        addTrack(index++, track);
+      }
+    } finally {
+      commitEdit();
     }
 
     return this;
@@ -128,8 +242,14 @@ public abstract class Playlist implements Iterable<Track> {
    * @return
    */
   public Playlist setTracks(List<Track> tracks) {
-    removeTracks(getTracks());
-    return addTracks(tracks);
+    beginEdit();
+
+    try {
+      removeTracks(getTracks());
+      return addTracks(tracks);
+    } finally {
+      commitEdit();
+    }
   }
 
   /**
@@ -142,8 +262,14 @@ public abstract class Playlist implements Iterable<Track> {
   public abstract Playlist removeTrack(Track track);
 
   public Playlist removeTracks(List<Track> tracks) {
-    for (Track track : tracks) {
-      removeTrack(track);
+    beginEdit();
+
+    try {
+      for (Track track : tracks) {
+        removeTrack(track);
+      }
+    } finally {
+      commitEdit();
     }
 
     return this;
@@ -159,4 +285,15 @@ public abstract class Playlist implements Iterable<Track> {
   public Iterator<Track> iterator() {
     return getTracks().iterator();
   }
+
+  /**
+   * An edit in progress on one thread.
+   */
+  private static class Edit {
+    /** Number of nested edits */
+    int depth;
+
+    /** Indicates if the playlist has changed during the edit */
+    boolean changed;
+  }
 }
@@ -0,0 +1,129 @@
+package orchestra.playlist;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Describes what changed in a playlist: a range of track indices and the
+ * metadata keys that were set. Changes to the same playlist can be merged
+ * into one that covers both.
+ *
+ * <p>
+ * If tracks were inserted or removed, the change is <em>shifted</em>: the
+ * tracks from the start of the range to the end of the list may have moved,
+ * not only those in the range. A change with neither tracks nor metadata
+ * only says that something changed.
+ */
+public class PlaylistChange {
+  private final Playlist playlist;
+
+  /** Changed track indices are in <code>[fromIndex, toIndex)</code>. */
+  private int fromIndex = -1;
+  private int toIndex = -1;
+
+  private boolean shifted;
+
+  private final Set<String> metadataKeys = new LinkedHashSet<String>();
+
+  private int count = 1;
+
+  public PlaylistChange(Playlist playlist) {
+    this.playlist = playlist;
+  }
+
+  /**
+   * Adds a range of changed tracks.
+   *
+   * @param fromIndex first changed index
+   * @param toIndex index after the last changed one
+   * @param shifted whether tracks were inserted or removed
+   * @return
+   */
+  public PlaylistChange tracksChanged(int fromIndex, int toIndex, boolean shifted) {
+    if (fromIndex < toIndex) {
+      if (hasTrackChanges()) {
+        this.fromIndex = Math.min(this.fromIndex, fromIndex);
+        this.toIndex = Math.max(this.toIndex, toIndex);
+      } else {
+        this.fromIndex = fromIndex;
+        this.toIndex = toIndex;
+      }
+    }
+
+    this.shifted |= shifted;
+    return this;
+  }
+
+  /**
+   * Adds a changed metadata key.
+   *
+   * @param key
+   * @return
+   */
+  public PlaylistChange metadataChanged(String key) {
+    metadataKeys.add(key);
+    return this;
+  }
+
+  /**
+   * Folds a later change to the same playlist into this one.
+   *
+   * @param later
+   * @return
+   */
+  public PlaylistChange merge(PlaylistChange later) {
+    if (later.hasTrackChanges()) {
+      tracksChanged(later.fromIndex, later.toIndex, later.shifted);
+    }
+
+    shifted |= later.shifted;
+    metadataKeys.addAll(later.metadataKeys);
+    count += later.count;
+    return this;
+  }
+
+  public Playlist getPlaylist() {
+    return playlist;
+  }
+
+  public boolean hasTrackChanges() {
+    return fromIndex >= 0;
+  }
+
+  /**
+   * @return the first changed track index, or -1 if no tracks changed
+   */
+  public int getFromIndex() {
+    return fromIndex;
+  }
+
+  /**
+   * @return the index after the last changed track, or -1 if no tracks
+   *         changed
+   */
+  public int getToIndex() {
+    return toIndex;
+  }
+
+  public boolean isShifted() {
+    return shifted;
+  }
+
+  public Set<String> getMetadataKeys() {
+    return Collections.unmodifiableSet(metadataKeys);
+  }
+
+  /**
+   * @return the number of changes merged into this one
+   */
+  public int getCount() {
+    return count;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s tracks=[%d, %d)%s metadata=%s x%d", playlist.getIdentifier(),
+        fromIndex, toIndex, shifted ? " shifted" : "", metadataKeys, count);
+  }
+}
@@ -0,0 +1,16 @@
+package orchestra.playlist;
+
+import java.util.List;
+
+/**
+ * A listener that takes change notifications in batches, with a description
+ * of each change. Listeners that only implement {@link PlaylistListener} get
+ * one {@link PlaylistListener#playlistChanged(Playlist)} call per change
+ * instead.
+ */
+public interface PlaylistChangeListener extends PlaylistListener {
+  /**
+   * @param changes at most one change per playlist, oldest first
+   */
+  public void playlistsChanged(List<PlaylistChange> changes);
+}
@@ -1,21 +1,45 @@
 package orchestra.playlist;
 
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
- * Base implementation of an playlist container.
+ * Base implementation of an playlist container. Listeners are notified when a
+ * playlist is added, removed or changed.
+ * 
+ * <p>
+ * Playlists are stored by the handle of their identifier, see
+ * {@link PlaylistIdentifiers}. The handle of a removed playlist is reused by
+ * the next one added. The container is thread-safe: lookups don't
+ * lock, adding and removing playlists do, and iteration works on a snapshot,
+ * so it never sees a concurrent change.
  * 
  */
 public class PlaylistContainer implements Iterable<Playlist>, PlaylistListener {
-  private final Map<URI, Playlist> playlists;
+  private final PlaylistIdentifiers identifiers = new PlaylistIdentifiers();
+
+  /**
+   * Playlists indexed by handle; null where there is none. Replaced by a
+   * larger copy when it's full.
+   */
+  private volatile AtomicReferenceArray<Playlist> playlists =
+      new AtomicReferenceArray<Playlist>(16);
+
+  private volatile int size;
+
+  /** Guards adding and removing playlists. */
+  private final Object lock = new Object();
   
   private final String author;
+
+  private final List<PlaylistListener> listeners =
+      new CopyOnWriteArrayList<PlaylistListener>();
   
   public PlaylistContainer(String author) {
     this(author, Collections.<Playlist>emptyList());
@@ -23,7 +47,6 @@ public class PlaylistContainer implements Iterable<Playlist>, PlaylistListener {
   
   public PlaylistContainer(String author, List<Playlist> playlists) {
     this.author = author;
-    this.playlists = new HashMap<URI, Playlist>();
     
     for (final Playlist playlist : playlists) {
       addPlaylist(playlist);
@@ -40,16 +63,50 @@ public class PlaylistContainer implements Iterable<Playlist>, PlaylistListener {
    * @return
    */
   public int size() {
-    return playlists.size();
+    return size;
   }
   
   public PlaylistContainer addPlaylist(Playlist playlist) {
-    playlists.put(playlist.getIdentifier(), playlist);
+    synchronized (lock) {
+      // Under the lock, so that a concurrent removal can't free the handle
+      final int handle = identifiers.intern(playlist.getIdentifier().toString());
+      AtomicReferenceArray<Playlist> table = playlists;
+
+      if (handle >= table.length()) {
+        final AtomicReferenceArray<Playlist> larger =
+            new AtomicReferenceArray<Playlist>(Math.max(handle + 1, table.length() * 2));
+
+        for (int i = 0; i < table.length(); i++) {
+          larger.set(i, table.get(i));
+        }
+
+        playlists = table = larger;
+      }
+
+      if (table.getAndSet(handle, playlist) == null) {
+        size++;
+      }
+    }
+
+    notifyListeners(playlist);
     return this;
   }
   
   public PlaylistContainer removePlaylist(Playlist playlist) {
-    playlists.remove(playlist.getIdentifier());
+    final String identifier = playlist.getIdentifier().toString();
+
+    synchronized (lock) {
+      final AtomicReferenceArray<Playlist> table = playlists;
+      final int handle = identifiers.getHandle(identifier);
+
+      if (handle != PlaylistIdentifiers.NONE && handle < table.length()
+          && table.getAndSet(handle, null) != null) {
+        size--;
+        identifiers.release(identifier);
+      }
+    }
+
+    notifyListeners(playlist);
     return this;
   }
   
@@ -65,17 +122,92 @@ public class PlaylistContainer implements Iterable<Playlist>, PlaylistListener {
   }
   
   public Playlist getPlaylist(URI identifier) {
-    return playlists.get(identifier);
+    return getPlaylist(identifier.toString());
   }
 
+  /**
+   * Looks up a playlist by its identifier string, without parsing it.
+   * 
+   * @param identifier
+   * @return the playlist, or <code>null</code>
+   */
+  public Playlist getPlaylist(String identifier) {
+    final Playlist playlist = getPlaylist(identifiers.getHandle(identifier));
+
+    // The handle may have been reused since it was looked up
+    if (playlist != null && !playlist.getIdentifier().toString().equals(identifier)) {
+      return null;
+    }
+
+    return playlist;
+  }
+
+  /**
+   * Handles are reused, so a handle kept after its playlist was removed may
+   * refer to another playlist.
+   * 
+   * @param handle
+   * @return the playlist with an identifier handle, or <code>null</code>
+   */
+  public Playlist getPlaylist(int handle) {
+    final AtomicReferenceArray<Playlist> table = playlists;
+    return handle >= 0 && handle < table.length() ? table.get(handle) : null;
+  }
+
+  /**
+   * @param identifier
+   * @return the handle of a playlist identifier, or
+   *         {@link PlaylistIdentifiers#NONE}
+   */
+  public int getHandle(String identifier) {
+    return identifiers.getHandle(identifier);
+  }
+
+  /**
+   * Returns a snapshot of the playlists, in the order of their handles: the
+   * order they were added, except that a playlist may take the place of one
+   * that was removed.
+   * 
+   * @return
+   */
   public Collection<Playlist> getPlaylists() {
-    return Collections.unmodifiableCollection(playlists.values());
+    final AtomicReferenceArray<Playlist> table = playlists;
+    final List<Playlist> list = new ArrayList<Playlist>(size);
+
+    for (int i = 0, n = table.length(); i < n; i++) {
+      final Playlist playlist = table.get(i);
+
+      if (playlist != null) {
+        list.add(playlist);
+      }
+    }
+
+    return Collections.unmodifiableList(list);
   }
 
   public Iterator<Playlist> iterator() {
-    return playlists.values().iterator();
+    return getPlaylists().iterator();
   }
 
+  /**
+   * Called when one of the playlists has changed. Notifies the listeners of
+   * the container.
+   */
   public void playlistChanged(Playlist playlist) {
+    notifyListeners(playlist);
+  }
+
+  public void addListener(PlaylistListener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(PlaylistListener listener) {
+    listeners.remove(listener);
+  }
+
+  protected void notifyListeners(Playlist playlist) {
+    for (final PlaylistListener listener : listeners) {
+      listener.playlistChanged(playlist);
+    }
   }
 }
@@ -0,0 +1,269 @@
+package orchestra.playlist;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import orchestra.util.Histogram;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers playlist change notifications on an executor instead of on the
+ * thread that made the change. Changes are queued; a change to a playlist
+ * that already has one queued is merged into it. Queued changes are
+ * delivered in batches, one batch at a time, in the order the playlists
+ * first changed.
+ *
+ * <p>
+ * If the executor rejects the delivery, the publishing thread delivers
+ * instead. Changes published after {@link #close()} are dropped.
+ */
+public class PlaylistEventDispatcher {
+  private static final Logger LOG = LoggerFactory.getLogger(PlaylistEventDispatcher.class);
+
+  private final Executor executor;
+
+  /** Queued changes by playlist. */
+  private final Map<Playlist, Pending> pending = new LinkedHashMap<Playlist, Pending>();
+
+  /** Whether a delivery task has been handed to the executor. */
+  private boolean scheduled;
+
+  private boolean closed;
+
+  /** Serializes deliveries. */
+  private final Object deliveryLock = new Object();
+
+  private final Runnable deliveryTask = new Runnable() {
+    public void run() {
+      drain(true);
+    }
+  };
+
+  private final Histogram latency = new Histogram();
+
+  private long published;
+
+  private long merged;
+
+  private long delivered;
+
+  private long dropped;
+
+  private long failures;
+
+  /**
+   * @param executor where changes are delivered
+   */
+  public PlaylistEventDispatcher(Executor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Queues a change for delivery to listeners.
+   *
+   * @param change
+   * @param listeners listeners of the changed playlist; only the most
+   *        recently published list is used for a merged change
+   */
+  public void publish(PlaylistChange change, List<? extends PlaylistListener> listeners) {
+    synchronized (this) {
+      published++;
+
+      if (closed) {
+        dropped++;
+        return;
+      }
+
+      final Pending queued = pending.get(change.getPlaylist());
+
+      if (queued != null) {
+        queued.change.merge(change);
+        queued.listeners = listeners;
+        merged++;
+        return;
+      }
+
+      pending.put(change.getPlaylist(), new Pending(change, listeners));
+
+      if (scheduled) {
+        return;
+      }
+
+      scheduled = true;
+    }
+
+    try {
+      executor.execute(deliveryTask);
+    } catch (RejectedExecutionException e) {
+      LOG.debug("Delivering changes on the publishing thread", e);
+      drain(true);
+    }
+  }
+
+  /**
+   * Delivers all queued changes on the calling thread.
+   */
+  public void flush() {
+    drain(false);
+  }
+
+  /**
+   * Delivers the queued changes and drops any published from now on.
+   */
+  public void close() {
+    synchronized (this) {
+      closed = true;
+    }
+
+    flush();
+  }
+
+  /**
+   * Delivers batches until the queue is empty.
+   *
+   * @param task whether this is the scheduled delivery task
+   */
+  private void drain(boolean task) {
+    synchronized (deliveryLock) {
+      while (true) {
+        final List<Pending> batch;
+
+        synchronized (this) {
+          if (pending.isEmpty()) {
+            if (task) {
+              scheduled = false;
+            }
+
+            return;
+          }
+
+          batch = new ArrayList<Pending>(pending.values());
+          pending.clear();
+        }
+
+        deliver(batch);
+      }
+    }
+  }
+
+  private void deliver(List<Pending> batch) {
+    // Each listener gets its changes in one call
+    final Map<PlaylistListener, List<PlaylistChange>> byListener =
+        new IdentityHashMap<PlaylistListener, List<PlaylistChange>>();
+    final List<PlaylistListener> order = new ArrayList<PlaylistListener>();
+
+    for (Pending p : batch) {
+      for (PlaylistListener listener : p.listeners) {
+        List<PlaylistChange> changes = byListener.get(listener);
+
+        if (changes == null) {
+          changes = new ArrayList<PlaylistChange>();
+          byListener.put(listener, changes);
+          order.add(listener);
+        }
+
+        changes.add(p.change);
+      }
+    }
+
+    int failed = 0;
+
+    for (PlaylistListener listener : order) {
+      final List<PlaylistChange> changes = byListener.get(listener);
+
+      try {
+        if (listener instanceof PlaylistChangeListener) {
+          ((PlaylistChangeListener) listener).playlistsChanged(changes);
+        } else {
+          for (PlaylistChange change : changes) {
+            listener.playlistChanged(change.getPlaylist());
+          }
+        }
+      } catch (RuntimeException e) {
+        failed++;
+        LOG.warn("Listener failed to handle playlist changes", e);
+      }
+    }
+
+    final long now = System.nanoTime();
+
+    synchronized (this) {
+      for (Pending p : batch) {
+        latency.record(TimeUnit.NANOSECONDS.toMicros(now - p.publishedNanos));
+        delivered += p.change.getCount();
+      }
+
+      failures += failed;
+    }
+  }
+
+  /**
+   * @return time from a playlist's first queued change to its delivery, in
+   *         microseconds
+   */
+  public Histogram getLatency() {
+    return latency;
+  }
+
+  /**
+   * @return number of changes published
+   */
+  public synchronized long getPublished() {
+    return published;
+  }
+
+  /**
+   * @return number of changes merged into one already queued
+   */
+  public synchronized long getMerged() {
+    return merged;
+  }
+
+  /**
+   * @return number of changes delivered, counting merged ones
+   */
+  public synchronized long getDelivered() {
+    return delivered;
+  }
+
+  /**
+   * @return number of changes dropped because the dispatcher was closed
+   */
+  public synchronized long getDropped() {
+    return dropped;
+  }
+
+  /**
+   * @return number of times a listener threw while handling changes
+   */
+  public synchronized long getFailures() {
+    return failures;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("published=%d merged=%d delivered=%d dropped=%d failures=%d latency: %s",
+        published, merged, delivered, dropped, failures, latency);
+  }
+
+  private static class Pending {
+    final PlaylistChange change;
+
+    final long publishedNanos = System.nanoTime();
+
+    List<? extends PlaylistListener> listeners;
+
+    Pending(PlaylistChange change, List<? extends PlaylistListener> listeners) {
+      this.change = change;
+      this.listeners = listeners;
+    }
+  }
+}
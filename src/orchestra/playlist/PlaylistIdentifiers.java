@@ -0,0 +1,135 @@
+package orchestra.playlist;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of playlist identifiers, which maps each identifier string, e.g.
+ * <code>orchestra:playlist:&lt;hash&gt;</code>, to a small int handle. Handles
+ * are handed out in order, starting at 0. The handle of a released identifier
+ * is handed out again before any new one, so the handles stay dense and can
+ * index arrays.
+ *
+ * <p>
+ * Lookups take the string as is: nothing is parsed and nothing is allocated.
+ * They don't lock either; only registering a new identifier does.
+ */
+public class PlaylistIdentifiers {
+  /** Prefix of all identifiers handled by orchestra. */
+  public static final String SCHEME_PREFIX = "orchestra:";
+
+  /** Prefix of playlist identifiers, followed by the playlist's hash. */
+  public static final String PLAYLIST_PREFIX = "orchestra:playlist:";
+
+  /** Handle of an unknown identifier. */
+  public static final int NONE = -1;
+
+  private final Map<String, Integer> handles = new ConcurrentHashMap<String, Integer>();
+
+  /** Identifiers by handle; null where the handle is free. */
+  private final List<String> identifiers = new ArrayList<String>();
+
+  /** Released handles, to be handed out again. */
+  private final Deque<Integer> free = new ArrayDeque<Integer>();
+
+  /**
+   * Tells whether an ID belongs to orchestra rather than Spotify.
+   *
+   * @param id
+   * @return
+   */
+  public static boolean isOrchestraId(String id) {
+    return id != null && id.startsWith(SCHEME_PREFIX);
+  }
+
+  /**
+   * Returns the handle of an identifier, registering it if it's new.
+   *
+   * @param identifier
+   * @return
+   */
+  public int intern(String identifier) {
+    final Integer handle = handles.get(identifier);
+
+    if (handle != null) {
+      return handle;
+    }
+
+    return register(identifier);
+  }
+
+  private synchronized int register(String identifier) {
+    final Integer handle = handles.get(identifier);
+
+    if (handle != null) {
+      return handle;
+    }
+
+    final int next;
+
+    if (free.isEmpty()) {
+      next = identifiers.size();
+      identifiers.add(identifier);
+    } else {
+      next = free.pop();
+      identifiers.set(next, identifier);
+    }
+
+    // Published last, so that a handle seen by getHandle has an identifier
+    handles.put(identifier, next);
+    return next;
+  }
+
+  /**
+   * Unregisters an identifier. Its handle will be given to the next new
+   * identifier, so anything indexed by it must have been cleared.
+   *
+   * @param identifier
+   * @return the handle the identifier had, or {@link #NONE}
+   */
+  public synchronized int release(String identifier) {
+    final Integer handle = handles.remove(identifier);
+
+    if (handle == null) {
+      return NONE;
+    }
+
+    identifiers.set(handle, null);
+    free.push(handle);
+    return handle;
+  }
+
+  /**
+   * @param identifier
+   * @return the handle of the identifier, or {@link #NONE} if it isn't
+   *         registered
+   */
+  public int getHandle(String identifier) {
+    final Integer handle = identifier != null ? handles.get(identifier) : null;
+    return handle != null ? handle : NONE;
+  }
+
+  /**
+   * @param handle
+   * @return the identifier registered under a handle, or <code>null</code> if
+   *         the handle is free
+   * @throws IndexOutOfBoundsException if there's no such handle
+   */
+  public synchronized String getIdentifier(int handle) {
+    return identifiers.get(handle);
+  }
+
+  /**
+   * Returns one more than the highest handle that has been handed out, which
+   * includes handles that are free.
+   *
+   * @return
+   */
+  public synchronized int size() {
+    return identifiers.size();
+  }
+}
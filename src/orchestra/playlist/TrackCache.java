@@ -0,0 +1,501 @@
+package orchestra.playlist;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import orchestra.util.Base16;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.felixbruns.jotify.media.Album;
+import de.felixbruns.jotify.media.Artist;
+import de.felixbruns.jotify.media.Track;
+
+/**
+ * Append-only file of track metadata, with an in-memory index of where each
+ * track's record starts. The index is an open-addressed table keyed on the
+ * two halves of the ID, built by streaming through the file, so it costs a
+ * few dozen bytes per track. Records are read with positional reads, which
+ * don't hold the cache's lock. Layout, big-endian:
+ *
+ * <pre>
+ * int      magic
+ * records:
+ *   int      length of the rest of the record
+ *   byte[16] track ID
+ *   string   title, artist ID, artist name, album ID, album name
+ *   int      length of the track in milliseconds
+ * </pre>
+ *
+ * Strings are a short length followed by UTF-8 bytes; a length of -1 stands
+ * for null. A record that is cut short ends the file and is dropped. A track
+ * is only written once per cache, but caches sharing a file may each write
+ * it; once such duplicates take up as much of the file as the records in
+ * use, it is compacted when opened.
+ */
+class TrackCache {
+  private static final Logger LOG = LoggerFactory.getLogger(TrackCache.class);
+
+  private static final int MAGIC = 0x54524331; // "TRC1"
+
+  private static final int HEADER_LENGTH = 4;
+
+  private static final int ID_LENGTH = 16;
+
+  /** Length and ID at the start of each record. */
+  private static final int RECORD_HEAD_LENGTH = 4 + ID_LENGTH;
+
+  /** Size of the buffer the file is streamed through. */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** Smallest number of duplicate bytes worth compacting. */
+  private static final long MIN_COMPACT_LENGTH = 64 * 1024;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final File file;
+
+  private FileChannel channel;
+
+  /** Offset of the record of each track. */
+  private final OffsetTable offsets = new OffsetTable();
+
+  private ByteBuffer record = ByteBuffer.allocate(256);
+
+  /**
+   * Opens a cache file, creating it if needed, and indexes its records.
+   *
+   * @param file
+   * @throws IOException
+   */
+  TrackCache(File file) throws IOException {
+    this.file = file;
+    this.channel = new RandomAccessFile(file, "rw").getChannel();
+
+    try {
+      index();
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  private void index() throws IOException {
+    final long size = channel.size();
+
+    if (size < HEADER_LENGTH) {
+      final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+      header.putInt(MAGIC).flip();
+      channel.truncate(0);
+      writeFully(header, 0);
+      return;
+    }
+
+    final ByteBuffer magic = ByteBuffer.allocate(HEADER_LENGTH);
+    readFully(magic, 0);
+
+    if (magic.getInt(0) != MAGIC) {
+      throw new IOException("Not a track cache: " + file);
+    }
+
+    // Streamed rather than read whole or mapped, since a mapped file can't be
+    // truncated on all platforms
+    final ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+    long bufStart = 0;
+    long position = HEADER_LENGTH;
+    long duplicates = 0;
+    buf.limit(0);
+
+    while (size - position >= RECORD_HEAD_LENGTH) {
+      if (position + RECORD_HEAD_LENGTH > bufStart + buf.limit()) {
+        bufStart = position;
+        fill(buf, bufStart);
+      }
+
+      final int at = (int) (position - bufStart);
+      final int length = buf.getInt(at);
+
+      if (length < ID_LENGTH || length > size - position - 4) {
+        break;
+      }
+
+      if (!offsets.add(buf.getLong(at + 4), buf.getLong(at + 12), position)) {
+        duplicates += 4 + length;
+      }
+
+      position += 4 + length;
+    }
+
+    if (position < size) {
+      LOG.info("Dropping {} bytes at the end of {}", size - position, file);
+      channel.truncate(position);
+    }
+
+    // As many bytes of duplicates as of records in use
+    if (duplicates >= MIN_COMPACT_LENGTH && duplicates * 2 >= position - HEADER_LENGTH) {
+      compact(position);
+    }
+  }
+
+  /**
+   * Rewrites the file without duplicate records, through a temporary file
+   * which then replaces it.
+   *
+   * @param end end of the last record
+   */
+  private void compact(long end) throws IOException {
+    final File tmp = new File(file.getPath() + ".tmp");
+    final FileChannel out = new RandomAccessFile(tmp, "rw").getChannel();
+    final ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+    final ByteBuffer head = ByteBuffer.allocate(RECORD_HEAD_LENGTH);
+    long written;
+
+    try {
+      out.truncate(0);
+      final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+      header.putInt(MAGIC).flip();
+      out.write(header);
+      written = HEADER_LENGTH;
+
+      for (long position = HEADER_LENGTH; position < end;) {
+        head.clear();
+        readFully(head, position);
+        final int length = head.getInt(0);
+        final long hi = head.getLong(4);
+        final long lo = head.getLong(12);
+
+        if (offsets.get(hi, lo) == position) {
+          // Copy the record in pieces, whatever its length
+          for (long from = position, to = position + 4 + length; from < to;) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), to - from));
+            readFully(buf, from);
+            buf.flip();
+            from += buf.remaining();
+
+            while (buf.hasRemaining()) {
+              out.write(buf);
+            }
+          }
+
+          offsets.put(hi, lo, written);
+          written += 4 + length;
+        }
+
+        position += 4 + length;
+      }
+
+      out.force(false);
+    } finally {
+      out.close();
+    }
+
+    channel.close();
+
+    if (!tmp.renameTo(file)) {
+      file.delete();
+
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Failed to replace " + file);
+      }
+    }
+
+    channel = new RandomAccessFile(file, "rw").getChannel();
+    LOG.info("Compacted {} from {} to {} bytes", new Object[] {file, end, written});
+  }
+
+  /**
+   * @param hi high 64 bits of the ID
+   * @param lo low 64 bits of the ID
+   * @return whether the cache has a record of a track
+   */
+  synchronized boolean contains(long hi, long lo) {
+    return offsets.get(hi, lo) >= 0;
+  }
+
+  synchronized int size() {
+    return offsets.size();
+  }
+
+  /**
+   * Reads a track. Only the index is looked up with the lock held; the
+   * record is read with positional reads, next to other lookups and writes.
+   *
+   * @param hi high 64 bits of the ID
+   * @param lo low 64 bits of the ID
+   * @return the track, or <code>null</code> if it isn't in the cache
+   * @throws IOException
+   */
+  Track read(long hi, long lo) throws IOException {
+    final long offset;
+
+    synchronized (this) {
+      offset = offsets.get(hi, lo);
+    }
+
+    if (offset < 0) {
+      return null;
+    }
+
+    final String id = Base16.encode(hi, lo);
+    final ByteBuffer length = ByteBuffer.allocate(4);
+    readFully(length, offset);
+    final ByteBuffer buf = ByteBuffer.allocate(length.getInt(0));
+    readFully(buf, offset + 4);
+    buf.flip();
+
+    try {
+      buf.position(ID_LENGTH);
+      final String title = readString(buf);
+      final String artistId = readString(buf);
+      final String artistName = readString(buf);
+      final String albumId = readString(buf);
+      final String albumName = readString(buf);
+      final Artist artist = artistId != null || artistName != null
+          ? new Artist(artistId, artistName) : null;
+      final Album album = albumId != null || albumName != null
+          ? new Album(albumId, albumName, artist) : null;
+      final Track track = new Track(id, title, artist, album);
+      track.setLength(buf.getInt());
+      return track;
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated record of " + id + " in " + file);
+    }
+  }
+
+  /**
+   * Appends the tracks that aren't in the cache yet. Tracks whose IDs aren't
+   * 32 hex digits are skipped.
+   *
+   * @param tracks
+   * @throws IOException
+   */
+  synchronized void write(List<Track> tracks) throws IOException {
+    final long[] id = new long[2];
+    long end = channel.size();
+
+    for (Track track : tracks) {
+      final String trackId = track.getId();
+
+      if (trackId == null || trackId.length() != Base16.LENGTH_128) {
+        continue;
+      }
+
+      try {
+        Base16.decode(trackId, 0, id);
+      } catch (IllegalArgumentException e) {
+        continue;
+      }
+
+      if (offsets.get(id[0], id[1]) >= 0) {
+        continue;
+      }
+
+      final Artist artist = track.getArtist();
+      final Album album = track.getAlbum();
+      final byte[][] strings = {
+          encode(track.getTitle()),
+          encode(artist != null ? artist.getId() : null),
+          encode(artist != null ? artist.getName() : null),
+          encode(album != null ? album.getId() : null),
+          encode(album != null ? album.getName() : null)};
+      int length = ID_LENGTH + 4;
+
+      for (byte[] s : strings) {
+        length += 2 + (s != null ? s.length : 0);
+      }
+
+      if (record.capacity() < 4 + length) {
+        record = ByteBuffer.allocate(4 + length);
+      }
+
+      record.clear();
+      record.putInt(length).putLong(id[0]).putLong(id[1]);
+
+      for (byte[] s : strings) {
+        if (s == null) {
+          record.putShort((short) -1);
+        } else {
+          record.putShort((short) s.length).put(s);
+        }
+      }
+
+      record.putInt(track.getLength());
+      record.flip();
+      writeFully(record, end);
+      offsets.put(id[0], id[1], end);
+      end += 4 + length;
+    }
+  }
+
+  synchronized void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * Encodes a string, cutting it short if it doesn't fit a short length.
+   */
+  private static byte[] encode(String s) {
+    if (s == null) {
+      return null;
+    }
+
+    final byte[] bytes = s.getBytes(UTF_8);
+
+    if (bytes.length > Short.MAX_VALUE) {
+      final byte[] cut = new byte[Short.MAX_VALUE];
+      System.arraycopy(bytes, 0, cut, 0, cut.length);
+      return cut;
+    }
+
+    return bytes;
+  }
+
+  private static String readString(ByteBuffer buf) {
+    final short length = buf.getShort();
+
+    if (length < 0) {
+      return null;
+    }
+
+    final byte[] bytes = new byte[length];
+    buf.get(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  private void writeFully(ByteBuffer buf, long position) throws IOException {
+    while (buf.hasRemaining()) {
+      position += channel.write(buf, position);
+    }
+  }
+
+  /**
+   * Reads as much of the file as fits in the buffer, from a position, and
+   * flips it.
+   */
+  private void fill(ByteBuffer buf, long position) throws IOException {
+    buf.clear();
+
+    while (buf.hasRemaining()) {
+      final int n = channel.read(buf, position);
+
+      if (n < 0) {
+        break;
+      }
+
+      position += n;
+    }
+
+    buf.flip();
+  }
+
+  private void readFully(ByteBuffer buf, long position) throws IOException {
+    while (buf.hasRemaining()) {
+      final int n = channel.read(buf, position);
+
+      if (n < 0) {
+        throw new IOException("Unexpected end of " + file);
+      }
+
+      position += n;
+    }
+  }
+
+  /**
+   * A minimal open-addressing hash map from 128-bit IDs to record offsets,
+   * which grows when half full. Offsets are never 0, which marks a free
+   * slot.
+   */
+  private static class OffsetTable {
+    private long[] high = new long[1024];
+    private long[] low = new long[1024];
+    private long[] offset = new long[1024];
+    private int mask = 1023;
+    private int size;
+
+    private int slot(long hi, long lo) {
+      long h = (hi ^ lo) * 0x9e3779b97f4a7c15L;
+      return (int) (h >>> 32) & mask;
+    }
+
+    /**
+     * @return the offset of a track's record, or -1
+     */
+    long get(long hi, long lo) {
+      for (int i = slot(hi, lo); offset[i] != 0; i = (i + 1) & mask) {
+        if (high[i] == hi && low[i] == lo) {
+          return offset[i];
+        }
+      }
+
+      return -1;
+    }
+
+    /**
+     * Adds a track, unless it's already there.
+     *
+     * @return whether it was added
+     */
+    boolean add(long hi, long lo, long position) {
+      if (get(hi, lo) >= 0) {
+        return false;
+      }
+
+      put(hi, lo, position);
+      return true;
+    }
+
+    /**
+     * Adds a track or moves its record.
+     */
+    void put(long hi, long lo, long position) {
+      if (size * 2 >= offset.length) {
+        grow();
+      }
+
+      int i = slot(hi, lo);
+
+      while (offset[i] != 0) {
+        if (high[i] == hi && low[i] == lo) {
+          offset[i] = position;
+          return;
+        }
+
+        i = (i + 1) & mask;
+      }
+
+      high[i] = hi;
+      low[i] = lo;
+      offset[i] = position;
+      size++;
+    }
+
+    private void grow() {
+      final long[] oldHigh = high;
+      final long[] oldLow = low;
+      final long[] oldOffset = offset;
+      high = new long[oldOffset.length * 2];
+      low = new long[high.length];
+      offset = new long[high.length];
+      mask = high.length - 1;
+      size = 0;
+
+      for (int i = 0; i < oldOffset.length; i++) {
+        if (oldOffset[i] != 0) {
+          put(oldHigh[i], oldLow[i], oldOffset[i]);
+        }
+      }
+    }
+
+    int size() {
+      return size;
+    }
+  }
+}
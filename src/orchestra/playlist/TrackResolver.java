@@ -0,0 +1,324 @@
+package orchestra.playlist;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import orchestra.util.Base16;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.felixbruns.jotify.media.Track;
+
+/**
+ * Fills in the metadata of tracks that are only known by ID. Tracks are
+ * looked up in a bounded in-memory LRU cache, then in a cache file, and the
+ * rest are browsed for in batches. Browsed tracks are written through to the
+ * cache file, so a track is only ever browsed for once, and the LRU cache
+ * hands out the same {@link Track} instance to every playlist that has it.
+ * The LRU cache is keyed on the two halves of the ID and split into
+ * segments with a lock each, so that lookups neither allocate nor wait for
+ * each other, nor for a read from the file.
+ *
+ * <pre>
+ * resolver.resolve(tracks);      // a few batched browse requests
+ * track = resolver.getTrack(hi, lo);  // from the cache
+ * </pre>
+ */
+public class TrackResolver {
+  private static final Logger LOG = LoggerFactory.getLogger(TrackResolver.class);
+
+  /** Name of the cache file, in the repository's git directory. */
+  public static final String CACHE_FILE_NAME = "track-cache";
+
+  /** Number of segments of the LRU cache; a power of two. */
+  private static final int SEGMENTS = 16;
+
+  /**
+   * Where tracks are resolved from.
+   */
+  public interface Source {
+    /**
+     * Returns the tracks with the given IDs, with metadata. Tracks that can't
+     * be found may be left out.
+     */
+    List<Track> browse(List<Track> tracks) throws Exception;
+  }
+
+  private final Source source;
+
+  private final TrackCache cache;
+
+  private final int batchSize;
+
+  private final Segment[] memory;
+
+  private final AtomicLong memoryHits = new AtomicLong();
+
+  private final AtomicLong cacheHits = new AtomicLong();
+
+  private final AtomicLong browsed = new AtomicLong();
+
+  private final AtomicLong browseRequests = new AtomicLong();
+
+  /**
+   * @param source where tracks are browsed for
+   * @param cacheFile file that tracks are stored in
+   * @param memoryCapacity number of tracks kept in memory
+   * @param batchSize most tracks browsed for in one request
+   * @throws IOException if the cache file can't be opened
+   */
+  public TrackResolver(Source source, File cacheFile, int memoryCapacity, int batchSize)
+      throws IOException {
+    this.source = source;
+    this.cache = new TrackCache(cacheFile);
+    this.batchSize = batchSize;
+    this.memory = new Segment[SEGMENTS];
+
+    for (int i = 0; i < SEGMENTS; i++) {
+      memory[i] = new Segment(Math.max(1, memoryCapacity / SEGMENTS));
+    }
+  }
+
+  private Segment segment(long hi, long lo) {
+    long h = (hi ^ lo) * 0x9e3779b97f4a7c15L;
+    return memory[(int) (h >>> 32) & (SEGMENTS - 1)];
+  }
+
+  /**
+   * Returns a track, with metadata if it's known.
+   *
+   * @param hi high 64 bits of the ID
+   * @param lo low 64 bits of the ID
+   * @return the shared instance, or a track that only has the ID
+   */
+  public Track getTrack(long hi, long lo) {
+    final Track track = lookup(hi, lo);
+    return track != null ? track : new Track(Base16.encode(hi, lo), null, null, null);
+  }
+
+  /**
+   * Looks a track up in memory and then in the cache file. The file is read
+   * without holding the segment's lock.
+   */
+  private Track lookup(long hi, long lo) {
+    final Segment segment = segment(hi, lo);
+    Track track = segment.find(hi, lo);
+
+    if (track != null) {
+      memoryHits.incrementAndGet();
+      return track;
+    }
+
+    try {
+      track = cache.read(hi, lo);
+    } catch (IOException e) {
+      LOG.warn("Failed to read track cache", e);
+    }
+
+    if (track != null) {
+      cacheHits.incrementAndGet();
+      // Another thread may have read it too; hand out the first one
+      track = segment.putIfAbsent(hi, lo, track);
+    }
+
+    return track;
+  }
+
+  /**
+   * Makes sure the tracks of a list are known, browsing for the ones that
+   * aren't in batches.
+   *
+   * @param tracks
+   * @return false if a batch couldn't be browsed for, in which case its
+   *         tracks are browsed for again on the next call
+   */
+  public boolean resolve(PackedTrackList tracks) {
+    final Set<String> missing = new LinkedHashSet<String>();
+
+    for (int i = 0, n = tracks.size(); i < n; i++) {
+      final long hi = tracks.getHigh(i);
+      final long lo = tracks.getLow(i);
+
+      if (!segment(hi, lo).contains(hi, lo) && !cache.contains(hi, lo)) {
+        missing.add(Base16.encode(hi, lo));
+      }
+    }
+
+    final List<Track> batch = new ArrayList<Track>(Math.min(batchSize, missing.size()));
+    boolean complete = true;
+
+    for (String id : missing) {
+      batch.add(new Track(id, null, null, null));
+
+      if (batch.size() == batchSize) {
+        complete &= browse(batch);
+        batch.clear();
+      }
+    }
+
+    if (!batch.isEmpty()) {
+      complete &= browse(batch);
+    }
+
+    return complete;
+  }
+
+  /**
+   * Browses for a batch of tracks and stores the results. Failures are
+   * logged; the tracks stay unresolved.
+   *
+   * @return whether the batch was browsed for
+   */
+  private boolean browse(List<Track> batch) {
+    final List<Track> result;
+
+    try {
+      result = source.browse(batch);
+    } catch (Exception e) {
+      LOG.warn("Failed to browse " + batch.size() + " tracks", e);
+      return false;
+    }
+
+    if (result == null) {
+      return false;
+    }
+
+    browseRequests.incrementAndGet();
+    browsed.addAndGet(result.size());
+
+    try {
+      cache.write(result);
+    } catch (IOException e) {
+      LOG.warn("Failed to write track cache", e);
+    }
+
+    final long[] id = new long[2];
+
+    for (Track track : result) {
+      try {
+        Base16.decode(track.getId(), 0, id);
+      } catch (RuntimeException e) {
+        continue;
+      }
+
+      segment(id[0], id[1]).put(id[0], id[1], track);
+    }
+
+    return true;
+  }
+
+  public void close() throws IOException {
+    cache.close();
+  }
+
+  /**
+   * @return number of lookups answered from memory
+   */
+  public long getMemoryHits() {
+    return memoryHits.get();
+  }
+
+  /**
+   * @return number of lookups answered from the cache file
+   */
+  public long getCacheHits() {
+    return cacheHits.get();
+  }
+
+  /**
+   * @return number of browse requests made
+   */
+  public long getBrowseRequests() {
+    return browseRequests.get();
+  }
+
+  /**
+   * @return number of tracks browsed for
+   */
+  public long getBrowsed() {
+    return browsed.get();
+  }
+
+  /**
+   * 128-bit track ID, as a map key.
+   */
+  private static class Key {
+    long hi;
+    long lo;
+
+    Key(long hi, long lo) {
+      this.hi = hi;
+      this.lo = lo;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Key && ((Key) o).hi == hi && ((Key) o).lo == lo;
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) (hi ^ (hi >>> 32) ^ lo ^ (lo >>> 32));
+    }
+  }
+
+  /**
+   * One segment of the LRU cache. Lookups reuse a probe key, under the
+   * segment's lock, instead of allocating one.
+   */
+  private static class Segment {
+    private final Key probe = new Key(0, 0);
+
+    private final Map<Key, Track> tracks;
+
+    Segment(final int capacity) {
+      this.tracks = new LinkedHashMap<Key, Track>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Track> eldest) {
+          // Already in the cache file
+          return size() > capacity;
+        }
+      };
+    }
+
+    synchronized Track find(long hi, long lo) {
+      probe.hi = hi;
+      probe.lo = lo;
+      return tracks.get(probe);
+    }
+
+    synchronized boolean contains(long hi, long lo) {
+      probe.hi = hi;
+      probe.lo = lo;
+      return tracks.containsKey(probe);
+    }
+
+    synchronized void put(long hi, long lo, Track track) {
+      tracks.put(new Key(hi, lo), track);
+    }
+
+    /**
+     * @return the track that's in the segment after the call
+     */
+    synchronized Track putIfAbsent(long hi, long lo, Track track) {
+      final Track existing = find(hi, lo);
+
+      if (existing != null) {
+        return existing;
+      }
+
+      tracks.put(new Key(hi, lo), track);
+      return track;
+    }
+  }
+}
@@ -0,0 +1,240 @@
+package orchestra.playlist.git;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+
+import orchestra.playlist.PackedTrackList;
+
+/**
+ * Reads and writes playgists in the {@link PlaygistFormat#BINARY} format.
+ *
+ * <pre>
+ * byte[4] magic: 0 'P' 'G' 'B'
+ * byte    version
+ * byte    flags: 1 if track IDs are delta-encoded
+ * varint  number of metadata properties
+ *   varint key length, key (UTF-8), varint value length, value (UTF-8)
+ * varint  number of tracks
+ * tracks, either
+ *   long, long                     raw high and low 64 bits, big-endian
+ *   varint, varint                 zig-zag encoded difference between the
+ *                                  high and low bits and those of the
+ *                                  previous track
+ * </pre>
+ *
+ * Delta encoding only pays off for runs of similar IDs, so the writer uses it
+ * only when it makes the file smaller.
+ */
+final class BinaryPlaygist {
+  /** Starts with a zero byte, which never starts a text playgist. */
+  static final byte[] MAGIC = {0, 'P', 'G', 'B'};
+
+  private static final int VERSION = 1;
+
+  private static final int FLAG_DELTA = 1;
+
+  private static final int MAX_VARINT_LENGTH = 10;
+
+  private BinaryPlaygist() {
+  }
+
+  /**
+   * Reads metadata and tracks, from the buffer's position. If
+   * <code>tracks</code> is null, stops after the metadata.
+   *
+   * @throws IOException
+   */
+  static void read(ByteBuffer buf, Map<String, String> metadata, PackedTrackList tracks)
+      throws IOException {
+    final ByteBuffer data = buf.duplicate().order(ByteOrder.BIG_ENDIAN);
+
+    try {
+      for (int i = 0; i < MAGIC.length; i++) {
+        if (data.get() != MAGIC[i]) {
+          throw new IOException("Not a binary playgist");
+        }
+      }
+
+      final int version = data.get() & 0xff;
+
+      if (version != VERSION) {
+        throw new IOException("Unsupported binary playgist version: " + version);
+      }
+
+      final int flags = data.get() & 0xff;
+
+      for (int n = readCount(data); n > 0; n--) {
+        final String key = readString(data);
+        metadata.put(key, readString(data));
+      }
+
+      if (tracks == null) {
+        return;
+      }
+
+      final int count = readCount(data);
+
+      // At least 2 bytes per delta-encoded track, 16 per raw one
+      if (count > data.remaining() / ((flags & FLAG_DELTA) == 0 ? 16 : 2)) {
+        throw new IOException("Truncated binary playgist");
+      }
+
+      if ((flags & FLAG_DELTA) == 0) {
+        for (int i = 0; i < count; i++) {
+          tracks.add(data.getLong(), data.getLong());
+        }
+      } else {
+        long hi = 0;
+        long lo = 0;
+
+        for (int i = 0; i < count; i++) {
+          hi += unzigzag(readVarLong(data));
+          lo += unzigzag(readVarLong(data));
+          tracks.add(hi, lo);
+        }
+      }
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated binary playgist");
+    }
+  }
+
+  /**
+   * Writes metadata and tracks through a buffer, which is drained to the
+   * channel when full. Leaves the rest in the buffer.
+   *
+   * @throws IOException
+   */
+  static void write(Map<String, String> metadata, PackedTrackList tracks,
+      WritableByteChannel out, ByteBuffer buf) throws IOException {
+    final int count = tracks.size();
+    final boolean delta = deltaSize(tracks) < count * 16L;
+
+    buf.order(ByteOrder.BIG_ENDIAN);
+    PlaygistWriter.ensureRemaining(buf, out, MAGIC.length + 2 + MAX_VARINT_LENGTH);
+    buf.put(MAGIC);
+    buf.put((byte) VERSION);
+    buf.put((byte) (delta ? FLAG_DELTA : 0));
+    writeVarLong(buf, metadata.size());
+
+    for (Map.Entry<String, String> property : metadata.entrySet()) {
+      writeString(buf, out, property.getKey());
+      writeString(buf, out, property.getValue());
+    }
+
+    PlaygistWriter.ensureRemaining(buf, out, MAX_VARINT_LENGTH);
+    writeVarLong(buf, count);
+    long prevHi = 0;
+    long prevLo = 0;
+
+    for (int i = 0; i < count; i++) {
+      final long hi = tracks.getHigh(i);
+      final long lo = tracks.getLow(i);
+      PlaygistWriter.ensureRemaining(buf, out, 2 * MAX_VARINT_LENGTH);
+
+      if (delta) {
+        writeVarLong(buf, zigzag(hi - prevHi));
+        writeVarLong(buf, zigzag(lo - prevLo));
+        prevHi = hi;
+        prevLo = lo;
+      } else {
+        buf.putLong(hi).putLong(lo);
+      }
+    }
+  }
+
+  /**
+   * Returns the size of the delta-encoded tracks.
+   */
+  private static long deltaSize(PackedTrackList tracks) {
+    long size = 0;
+    long prevHi = 0;
+    long prevLo = 0;
+
+    for (int i = 0, n = tracks.size(); i < n; i++) {
+      final long hi = tracks.getHigh(i);
+      final long lo = tracks.getLow(i);
+      size += varLongSize(zigzag(hi - prevHi)) + varLongSize(zigzag(lo - prevLo));
+      prevHi = hi;
+      prevLo = lo;
+    }
+
+    return size;
+  }
+
+  private static long zigzag(long n) {
+    return (n << 1) ^ (n >> 63);
+  }
+
+  private static long unzigzag(long n) {
+    return (n >>> 1) ^ -(n & 1);
+  }
+
+  private static int varLongSize(long n) {
+    int size = 1;
+
+    while ((n >>>= 7) != 0) {
+      size++;
+    }
+
+    return size;
+  }
+
+  private static void writeVarLong(ByteBuffer out, long n) {
+    while ((n & ~0x7fL) != 0) {
+      out.put((byte) ((n & 0x7f) | 0x80));
+      n >>>= 7;
+    }
+
+    out.put((byte) n);
+  }
+
+  private static long readVarLong(ByteBuffer in) throws IOException {
+    long n = 0;
+
+    for (int shift = 0; shift < 64; shift += 7) {
+      final int b = in.get() & 0xff;
+      n |= (long) (b & 0x7f) << shift;
+
+      if ((b & 0x80) == 0) {
+        return n;
+      }
+    }
+
+    throw new IOException("Malformed varint");
+  }
+
+  private static int readCount(ByteBuffer in) throws IOException {
+    final long n = readVarLong(in);
+
+    if (n < 0 || n > Integer.MAX_VALUE) {
+      throw new IOException("Malformed count: " + n);
+    }
+
+    return (int) n;
+  }
+
+  private static void writeString(ByteBuffer buf, WritableByteChannel out, String s)
+      throws IOException {
+    final byte[] bytes = s.getBytes("UTF-8");
+    PlaygistWriter.ensureRemaining(buf, out, MAX_VARINT_LENGTH);
+    writeVarLong(buf, bytes.length);
+    PlaygistWriter.put(buf, out, bytes);
+  }
+
+  private static String readString(ByteBuffer in) throws IOException {
+    final int length = readCount(in);
+
+    // Before allocating, so that a corrupt length can't exhaust the heap
+    if (length > in.remaining()) {
+      throw new IOException("Truncated binary playgist");
+    }
+
+    final byte[] bytes = new byte[length];
+    in.get(bytes);
+    return new String(bytes, "UTF-8");
+  }
+}
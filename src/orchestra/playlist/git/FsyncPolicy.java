@@ -0,0 +1,18 @@
+package orchestra.playlist.git;
+
+/**
+ * Whether a playlist file is forced to disk before it replaces the old
+ * version.
+ *
+ * @see java.nio.channels.FileChannel#force(boolean)
+ */
+public enum FsyncPolicy {
+  /** Leave it to the operating system. Fastest; fine if the commit follows. */
+  NEVER,
+
+  /** Force the contents, but not necessarily file metadata such as times. */
+  DATA,
+
+  /** Force the contents and the file metadata. */
+  DATA_AND_METADATA
+}
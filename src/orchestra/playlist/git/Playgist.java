@@ -1,21 +1,34 @@
 package orchestra.playlist.git;
 
-import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.StringReader;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
 import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Properties;
+import java.util.RandomAccess;
 import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import orchestra.playlist.PackedTrackList;
 import orchestra.playlist.Playlist;
+import orchestra.playlist.PlaylistChange;
+import orchestra.playlist.PlaylistChangeListener;
+import orchestra.playlist.PlaylistEventDispatcher;
+import orchestra.playlist.PlaylistIdentifiers;
 import orchestra.playlist.PlaylistListener;
+import orchestra.playlist.TrackResolver;
+import orchestra.util.RevisionIndex;
+
+import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.ObjectLoader;
+import org.spearce.jgit.lib.Repository;
+
 import de.felixbruns.jotify.media.Track;
 
 public class Playgist extends Playlist {
@@ -26,28 +39,78 @@ public class Playgist extends Playlist {
 
   private final Map<String, String> metadata;
 
-  /** Path to the file on disk. */
+  /** Path to the file on disk; null if the playlist isn't backed by a file. */
   private final File absolutePath;
+
+  /** Repository-relative path; null if opened from a file. */
+  private final String repositoryPath;
   
   private final URI identifier;
 
   private final List<PlaylistListener> listeners;
 
-  private final List<Track> tracks;
+  /**
+   * Track IDs; {@link Track} objects are only created when read. Null until
+   * loaded if the playlist was opened lazily.
+   */
+  private PackedTrackList tracks;
+
+  /** Where to read the tracks from when they are first needed. */
+  private TrackSource source;
+
+  /** Checksum of the tracks in {@link #source}, once asked for. */
+  private boolean sourceChecksumKnown;
+  private long sourceChecksum;
+
+  /** Number of tracks in {@link #source}, once asked for; -1 if unknown. */
+  private int sourceSize = -1;
+
+  /** Log of uncommitted edits; null if not journaled. */
+  private PlaygistJournal journal;
+
+  /** Where the revision is looked up; null if unknown. */
+  private RevisionIndex revisions;
+
+  /** Repository-relative path in {@link #revisions}. */
+  private String revisionPath;
 
   private boolean dirty;
 
-  private Playgist(File path, List<Track> tracks, Map<String, String> metadata) {
+  /** Changes not yet reported to listeners; null if none. */
+  private PlaylistChange pendingChange;
+
+  /** Delivers change notifications; null to deliver them right away. */
+  private PlaylistEventDispatcher dispatcher;
+
+  /** Snapshot of the tracks handed to readers; null after an edit. */
+  private PackedTrackList published;
+
+  /** Fills in track metadata; null to leave tracks as IDs. */
+  private TrackResolver resolver;
+
+  /** Whether the tracks have been resolved, and the checksum they had. */
+  private boolean resolved;
+  private long resolvedChecksum;
+
+  private Playgist(File absolutePath, String repositoryPath, PackedTrackList tracks,
+      TrackSource source, Map<String, String> metadata) {
     super(metadata.get(NAME_PROPERTY_NAME), "<Unknown author>");
     
     super.setCollaborative(metadata.containsKey(COLLABORATIVE_PROPERTY_NAME)
         && metadata.get(COLLABORATIVE_PROPERTY_NAME).equalsIgnoreCase("true"));
     
     this.metadata = metadata;
-    this.absolutePath = path;
-    this.identifier = URI.create("orchestra:playlist:" + path.getName());
-    this.tracks = new LinkedList<Track>(tracks);
-    this.listeners = new LinkedList<PlaylistListener>();
+    this.absolutePath = absolutePath;
+    this.repositoryPath = repositoryPath;
+    this.identifier = URI.create(PlaylistIdentifiers.PLAYLIST_PREFIX
+        + (absolutePath != null ? absolutePath.getName() : baseName(repositoryPath)));
+    this.tracks = tracks;
+    this.source = source;
+    this.listeners = new CopyOnWriteArrayList<PlaylistListener>();
+  }
+
+  private static String baseName(String repositoryPath) {
+    return repositoryPath.substring(repositoryPath.lastIndexOf('/') + 1);
   }
 
   /**
@@ -56,32 +119,241 @@ public class Playgist extends Playlist {
    * @param filename
    * @return
    * @throws FileNotFoundException
-   * @throws IOException
+   * @throws IOException if the file can't be read; lines that are neither
+   *         metadata nor a track ID are skipped
    */
   public static Playgist open(File file) throws FileNotFoundException, IOException {
-    BufferedReader reader = new BufferedReader(new FileReader(file));
+    return open(file.getAbsoluteFile(), null, new FileSource(file), false);
+  }
+
+  /**
+   * Opens a playlist file, but only reads the metadata at the start of the
+   * file. Tracks are read, and kept, the first time they are needed.
+   * 
+   * @param file
+   * @return
+   * @throws FileNotFoundException
+   * @throws IOException
+   */
+  public static Playgist openLazily(File file) throws FileNotFoundException, IOException {
+    return open(file.getAbsoluteFile(), null, new FileSource(file), true);
+  }
+
+  /**
+   * Opens a playlist stored as a blob in a repository's object database,
+   * without going through the working directory.
+   * 
+   * @param repo
+   * @param path repository-relative path of the playlist
+   * @param blobId
+   * @param lazy if <code>true</code>, only read the metadata until the tracks
+   *        are needed
+   * @return
+   * @throws IOException
+   */
+  public static Playgist openBlob(Repository repo, String path, ObjectId blobId, boolean lazy)
+      throws IOException {
+    return open(null, path, new BlobSource(repo, blobId), lazy);
+  }
+
+  /**
+   * Creates a new, empty playlist that is not yet stored anywhere.
+   * 
+   * @param path repository-relative path of the playlist
+   * @return
+   */
+  public static Playgist create(String path) {
+    return create(null, path);
+  }
+
+  /**
+   * Creates a new, empty playlist, backed by a file or stored in the object
+   * database.
+   */
+  static Playgist create(File absolutePath, String repositoryPath) {
+    return new Playgist(absolutePath, repositoryPath, new PackedTrackList(), null,
+        new TreeMap<String, String>());
+  }
+
+  /**
+   * Creates a playlist whose metadata is known and whose tracks are read from
+   * a source when first needed.
+   */
+  static Playgist open(File absolutePath, String repositoryPath, Map<String, String> metadata,
+      TrackSource source) {
+    return new Playgist(absolutePath, repositoryPath, null, source,
+        new TreeMap<String, String>(metadata));
+  }
+
+  private static Playgist open(File absolutePath, String repositoryPath, StreamSource source,
+      boolean lazy) throws IOException {
     Map<String, String> metadata = new TreeMap<String, String>();
-    List<Track> tracks = new LinkedList<Track>();
 
-    for (String line; (line = reader.readLine()) != null;) {
-      if (line.startsWith(METADATA_PREFIX)) {
-        parseMetadataLine(line, metadata);
-      } else {
-        tracks.add(new Track(line, null, null, null));
-      }
+    if (lazy) {
+      read(source.open(), metadata, null);
+      return new Playgist(absolutePath, repositoryPath, null, source, metadata);
     }
 
-    return new Playgist(file.getAbsoluteFile(), tracks, metadata);
+    PackedTrackList tracks = new PackedTrackList();
+    read(source.open(), metadata, tracks);
+    return new Playgist(absolutePath, repositoryPath, tracks, null, metadata);
   }
 
-  private static void parseMetadataLine(String line, Map<String, String> metadata)
+  /**
+   * Reads metadata and tracks in either format, from the buffer's position to
+   * its limit. If <code>tracks</code> is null, stops after the metadata.
+   */
+  static void read(ByteBuffer buf, Map<String, String> metadata, PackedTrackList tracks)
       throws IOException {
-    Properties props = new Properties();
-    props.load(new StringReader(line.substring(METADATA_PREFIX.length())));
+    if (PlaygistFormat.detect(buf) == PlaygistFormat.BINARY) {
+      BinaryPlaygist.read(buf, metadata, tracks);
+    } else {
+      TextPlaygist.read(buf, metadata, tracks);
+    }
+  }
+
+  /**
+   * Returns the tracks, reading them if the playlist was opened lazily.
+   * Metadata is ignored at that point; it was read when the playlist was
+   * opened and may have changed since.
+   * 
+   * @throws IllegalStateException if the tracks can't be read
+   */
+  private synchronized PackedTrackList tracks() throws IllegalStateException {
+    if (tracks == null) {
+      try {
+        tracks = source.readTracks();
+      } catch (IOException e) {
+        throw new IllegalStateException("Failed to read tracks of " + identifier, e);
+      }
+
+      source = null;
+    }
 
-    for (String key : props.stringPropertyNames()) {
-      metadata.put(key, props.getProperty(key));
+    return tracks;
+  }
+
+  /**
+   * Returns the tracks for an edit, which readers will see in their next
+   * snapshot. Must be called with the lock held.
+   */
+  private PackedTrackList editTracks() {
+    published = null;
+    return tracks();
+  }
+
+  /**
+   * Returns the tracks themselves, for serialization. Reads them if needed.
+   */
+  PackedTrackList getPackedTracks() {
+    return tracks();
+  }
+
+  /**
+   * Replaces metadata and tracks, e.g. with those recovered from a journal.
+   * Neither journaled nor reported as a change.
+   */
+  synchronized void restore(Map<String, String> metadata, PackedTrackList tracks) {
+    this.metadata.clear();
+    this.metadata.putAll(metadata);
+    super.setName(metadata.get(NAME_PROPERTY_NAME));
+    super.setCollaborative(metadata.containsKey(COLLABORATIVE_PROPERTY_NAME)
+        && metadata.get(COLLABORATIVE_PROPERTY_NAME).equalsIgnoreCase("true"));
+    this.tracks = tracks;
+    this.source = null;
+    this.published = null;
+  }
+
+  /**
+   * Sets the index that the revision of the playlist is looked up in.
+   * 
+   * @param revisions
+   * @param path repository-relative path of the playlist, using '/' as
+   *        separator
+   */
+  void setRevisionIndex(RevisionIndex revisions, String path) {
+    this.revisions = revisions;
+    this.revisionPath = path;
+  }
+
+  /**
+   * Returns the number of commits that touched the playlist's file, from the
+   * revision index. Edits that are yet to be committed don't count.
+   * 
+   * @return the revision, or 0 if the playlist has never been committed
+   */
+  @Override
+  public long getRevision() {
+    return revisions != null ? revisions.getRevision(revisionPath) : 0;
+  }
+
+  /**
+   * Returns the checksum of the track IDs, which is kept up to date as tracks
+   * are inserted and removed. If the tracks haven't been read, the checksum
+   * is taken from where they would be read from, without keeping them.
+   * 
+   * @see PackedTrackList#getChecksum()
+   */
+  @Override
+  public synchronized long getChecksum() {
+    if (tracks != null) {
+      return tracks.getChecksum();
+    }
+
+    if (!sourceChecksumKnown) {
+      try {
+        sourceChecksum = source.getChecksum();
+      } catch (IOException e) {
+        throw new IllegalStateException("Failed to read tracks of " + identifier, e);
+      }
+
+      sourceChecksumKnown = true;
+    }
+
+    return sourceChecksum;
+  }
+
+  /**
+   * Returns the number of tracks, without reading them or resolving their
+   * metadata. If the tracks haven't been read, the number is taken from where
+   * they would be read from.
+   */
+  @Override
+  public synchronized int getTrackCount() {
+    if (tracks != null) {
+      return tracks.size();
+    }
+
+    if (sourceSize < 0) {
+      try {
+        sourceSize = source.size();
+      } catch (IOException e) {
+        throw new IllegalStateException("Failed to read tracks of " + identifier, e);
+      }
     }
+
+    return sourceSize;
+  }
+
+  /**
+   * Sets the journal that edits are logged to from now on.
+   */
+  synchronized void setJournal(PlaygistJournal journal) {
+    this.journal = journal;
+  }
+
+  /**
+   * @return the journal, or <code>null</code> if edits aren't journaled
+   */
+  synchronized PlaygistJournal getJournal() {
+    return journal;
+  }
+
+  /**
+   * @return <code>true</code> if the tracks have been read
+   */
+  public synchronized boolean isLoaded() {
+    return tracks != null;
   }
 
   @Override
@@ -90,12 +362,21 @@ public class Playgist extends Playlist {
   }
 
   /**
-   * @return the path to the file on disk.
+   * @return the path to the file on disk, or <code>null</code> if the playlist
+   *         isn't backed by a file
    */
   public File getPath() {
     return absolutePath;
   }
 
+  /**
+   * @return the repository-relative path of a playlist stored in the object
+   *         database, or <code>null</code> if it was opened from a file
+   */
+  public String getRepositoryPath() {
+    return repositoryPath;
+  }
+
   // TODO(liesen): remove this asap and use getName etc. instead
   public Map<String, String> getMetadata() {
     return Collections.unmodifiableMap(metadata);
@@ -110,9 +391,9 @@ public class Playgist extends Playlist {
     String currentName = getName();
 
     if (currentName == null || !currentName.equals(name)) {
-      metadata.put(NAME_PROPERTY_NAME, name);
+      setMetadata(NAME_PROPERTY_NAME, name);
       super.setName(name);
-      notifyListeners();
+      changed();
     }
 
     return this;
@@ -121,18 +402,27 @@ public class Playgist extends Playlist {
   @Override
   public Playlist setCollaborative(boolean collaborative) {
     if (!isCollaborative() && collaborative) {
-      metadata.put(COLLABORATIVE_PROPERTY_NAME, "true");
+      setMetadata(COLLABORATIVE_PROPERTY_NAME, "true");
       super.setCollaborative(true);
-      notifyListeners();
+      changed();
     } else if (isCollaborative() && !collaborative) {
-      metadata.put(COLLABORATIVE_PROPERTY_NAME, "false");
+      setMetadata(COLLABORATIVE_PROPERTY_NAME, "false");
       super.setCollaborative(false);
-      notifyListeners();
+      changed();
     }
     
     return this;
   }
 
+  private synchronized void setMetadata(String key, String value) {
+    metadata.put(key, value);
+    change().metadataChanged(key);
+
+    if (journal != null) {
+      journal.setMetadata(key, value);
+    }
+  }
+
   public boolean isDirty() {
     return dirty;
   }
@@ -144,49 +434,225 @@ public class Playgist extends Playlist {
 
   @Override
   public Playlist addTrack(int index, Track track) {
-    tracks.add(index, track);
-    notifyListeners();
+    synchronized (this) {
+      editTracks().add(index, track);
+      change().tracksChanged(index, index + 1, true);
+
+      if (journal != null) {
+        journal.insert(index, tracks, 1);
+      }
+    }
+
+    changed();
     return this;
   }
 
   @Override
   public Playlist addTrack(Track track) {
-    tracks.add(track);
-    notifyListeners();
+    synchronized (this) {
+      editTracks().add(track);
+      change().tracksChanged(tracks.size() - 1, tracks.size(), true);
+
+      if (journal != null) {
+        journal.insert(tracks.size() - 1, tracks, 1);
+      }
+    }
+
+    changed();
     return this;
   }
 
   @Override
   public Playlist addTracks(List<Track> tracks) {
-    tracks.addAll(tracks); // Batch
-    notifyListeners();
+    synchronized (this) {
+      final int index = editTracks().size();
+      this.tracks.addAll(tracks); // Batch
+      change().tracksChanged(index, this.tracks.size(), true);
+
+      if (journal != null) {
+        journal.insert(index, this.tracks, tracks.size());
+      }
+    }
+
+    changed();
+    return this;
+  }
+
+  /**
+   * Moves a track to another position.
+   * 
+   * @param from index of the track
+   * @param to index of the track after the move
+   * @return
+   */
+  public Playlist moveTrack(int from, int to) {
+    synchronized (this) {
+      final PackedTrackList tracks = editTracks();
+      final long hi = tracks.getHigh(from);
+      final long lo = tracks.getLow(from);
+      tracks.remove(from);
+      tracks.add(to, hi, lo);
+      change().tracksChanged(Math.min(from, to), Math.max(from, to) + 1, false);
+
+      if (journal != null) {
+        journal.move(from, to);
+      }
+    }
+
+    changed();
     return this;
   }
 
+  /**
+   * Returns a snapshot of the tracks, which isn't affected by later edits and
+   * can be read without locking. Snapshots are shared until the next edit.
+   * With a track resolver, the tracks carry their metadata: tracks that
+   * aren't known yet are resolved in batches when a track is first read from
+   * the list after a change, and again from every new list until they all
+   * have been. Its size is known without resolving.
+   */
   @Override
   public List<Track> getTracks() {
-    return Collections.unmodifiableList(tracks);
+    final TrackResolver resolver;
+    final PackedTrackList snapshot;
+    final long checksum;
+    boolean resolve = false;
+
+    synchronized (this) {
+      if (published == null) {
+        published = tracks().snapshot();
+      }
+
+      snapshot = published;
+      resolver = this.resolver;
+
+      if (resolver == null) {
+        return Collections.unmodifiableList(snapshot);
+      }
+
+      checksum = tracks.getChecksum();
+
+      if (!resolved || resolvedChecksum != checksum) {
+        resolve = true;
+      }
+    }
+
+    return new ResolvedTrackList(snapshot, resolver, resolve, checksum);
+  }
+
+  /**
+   * Resolves the tracks of a snapshot, outside the lock since it may take a
+   * few round trips. The checksum is only recorded as resolved if every
+   * track could be browsed for; otherwise the next list tries again.
+   */
+  private void resolve(PackedTrackList snapshot, TrackResolver resolver, long checksum) {
+    if (resolver.resolve(snapshot)) {
+      synchronized (this) {
+        if (this.resolver == resolver) {
+          resolved = true;
+          resolvedChecksum = checksum;
+        }
+      }
+    }
+  }
+
+  /**
+   * Sets the resolver that fills in the metadata of the tracks.
+   */
+  synchronized void setTrackResolver(TrackResolver resolver) {
+    this.resolver = resolver;
+    this.resolved = false;
+  }
+
+  /**
+   * Read-only view of a track list whose tracks come from a resolver. The
+   * tracks are resolved when the first one is read.
+   */
+  private class ResolvedTrackList extends AbstractList<Track> implements RandomAccess {
+    private final PackedTrackList tracks;
+
+    private final TrackResolver resolver;
+
+    private final long checksum;
+
+    private volatile boolean unresolved;
+
+    ResolvedTrackList(PackedTrackList tracks, TrackResolver resolver, boolean unresolved,
+        long checksum) {
+      this.tracks = tracks;
+      this.resolver = resolver;
+      this.unresolved = unresolved;
+      this.checksum = checksum;
+    }
+
+    @Override
+    public Track get(int index) {
+      if (unresolved) {
+        unresolved = false;
+        resolve(tracks, resolver, checksum);
+      }
+
+      return resolver.getTrack(tracks.getHigh(index), tracks.getLow(index));
+    }
+
+    @Override
+    public int size() {
+      return tracks.size();
+    }
   }
 
   @Override
   public Playlist removeTrack(Track track) {
-    tracks.remove(track);
-    notifyListeners();
+    synchronized (this) {
+      final int index = editTracks().indexOf(track);
+
+      if (index >= 0) {
+        tracks.remove(index);
+        change().tracksChanged(index, index + 1, true);
+
+        if (journal != null) {
+          journal.remove(index, 1);
+        }
+      }
+    }
+
+    changed();
     return this;
   }
 
   @Override
   public Playlist removeTracks(List<Track> tracks) {
-    this.tracks.removeAll(tracks);
-    notifyListeners();
+    synchronized (this) {
+      final int size = editTracks().size();
+
+      if (this.tracks.removeAll(tracks)) {
+        change().tracksChanged(0, size, true);
+      }
+
+      if (journal != null) {
+        journal.removeAll(tracks);
+      }
+    }
+
+    changed();
     return this;
   }
 
   @Override
   public Playlist setTracks(List<Track> tracks) {
-    this.tracks.clear();
-    this.tracks.addAll(tracks);
-    notifyListeners();
+    synchronized (this) {
+      final int size = editTracks().size();
+      this.tracks.clear();
+      this.tracks.addAll(tracks);
+      change().tracksChanged(0, Math.max(size, tracks.size()), true);
+
+      if (journal != null) {
+        journal.clear();
+        journal.insert(0, this.tracks, tracks.size());
+      }
+    }
+
+    changed();
     return this;
   }
 
@@ -199,11 +665,149 @@ public class Playgist extends Playlist {
   }
 
   /**
-   * Notifies interested parties that this playlist has changed.
+   * Returns the description of the changes made since listeners were last
+   * notified. Must be called with the lock held.
+   */
+  private PlaylistChange change() {
+    if (pendingChange == null) {
+      pendingChange = new PlaylistChange(this);
+    }
+
+    return pendingChange;
+  }
+
+  /**
+   * Sets the dispatcher that delivers change notifications; null to notify
+   * listeners right away, on the thread that made the change.
    */
-  private void notifyListeners() {
+  synchronized void setEventDispatcher(PlaylistEventDispatcher dispatcher) {
+    this.dispatcher = dispatcher;
+  }
+
+  /**
+   * Notifies interested parties that this playlist has changed, with a
+   * description of what changed since they were last notified.
+   */
+  @Override
+  protected void notifyListeners() {
+    final PlaylistChange change;
+    final PlaylistEventDispatcher dispatcher;
+
+    synchronized (this) {
+      change = pendingChange != null ? pendingChange : new PlaylistChange(this);
+      pendingChange = null;
+      dispatcher = this.dispatcher;
+    }
+
+    if (dispatcher != null) {
+      dispatcher.publish(change, listeners);
+      return;
+    }
+
     for (final PlaylistListener listener : listeners) {
-      listener.playlistChanged(this);
+      if (listener instanceof PlaylistChangeListener) {
+        ((PlaylistChangeListener) listener).playlistsChanged(Collections.singletonList(change));
+      } else {
+        listener.playlistChanged(this);
+      }
+    }
+  }
+
+  /**
+   * Where the tracks of a lazily opened playlist are read from.
+   */
+  interface TrackSource {
+    PackedTrackList readTracks() throws IOException;
+
+    /**
+     * @return the checksum of the tracks, as kept by {@link PackedTrackList}
+     */
+    long getChecksum() throws IOException;
+
+    /**
+     * @return the number of tracks
+     */
+    int size() throws IOException;
+  }
+
+  /**
+   * A playlist file in either format; metadata is skipped when reading tracks.
+   */
+  private abstract static class StreamSource implements TrackSource {
+    abstract ByteBuffer open() throws IOException;
+
+    public PackedTrackList readTracks() throws IOException {
+      PackedTrackList tracks = new PackedTrackList();
+      read(open(), new TreeMap<String, String>(), tracks);
+      return tracks;
+    }
+
+    /**
+     * Parses the file, since the checksum isn't stored in it; the tracks
+     * aren't kept.
+     */
+    public long getChecksum() throws IOException {
+      return readTracks().getChecksum();
+    }
+
+    /**
+     * Parses the file, like {@link #getChecksum()}.
+     */
+    public int size() throws IOException {
+      return readTracks().size();
+    }
+  }
+
+  private static class FileSource extends StreamSource {
+    /** Smaller files are cheaper to read than to map. */
+    private static final long MAP_THRESHOLD = 64 * 1024;
+
+    private final File file;
+
+    FileSource(File file) {
+      this.file = file;
+    }
+
+    ByteBuffer open() throws IOException {
+      final FileChannel channel = new FileInputStream(file).getChannel();
+
+      try {
+        final long size = channel.size();
+
+        if (size >= MAP_THRESHOLD) {
+          return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        final ByteBuffer buf = ByteBuffer.allocate((int) size);
+
+        while (buf.hasRemaining() && channel.read(buf) >= 0) {
+        }
+
+        buf.flip();
+        return buf;
+      } finally {
+        channel.close();
+      }
+    }
+  }
+
+  private static class BlobSource extends StreamSource {
+    private final Repository repo;
+    private final ObjectId blobId;
+
+    BlobSource(Repository repo, ObjectId blobId) {
+      this.repo = repo;
+      this.blobId = blobId;
+    }
+
+    ByteBuffer open() throws IOException {
+      final ObjectLoader loader = repo.openBlob(blobId);
+
+      if (loader == null) {
+        throw new IOException("Missing blob " + blobId.name());
+      }
+
+      return ByteBuffer.wrap(loader.getCachedBytes());
     }
   }
 }
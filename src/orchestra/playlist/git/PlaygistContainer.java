@@ -1,47 +1,145 @@
 package orchestra.playlist.git;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.math.BigInteger;
-import java.nio.channels.Channels;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import orchestra.playlist.PackedTrackList;
 import orchestra.playlist.Playlist;
+import orchestra.playlist.PlaylistChange;
+import orchestra.playlist.PlaylistChangeListener;
 import orchestra.playlist.PlaylistContainer;
+import orchestra.playlist.PlaylistEventDispatcher;
+import orchestra.playlist.TrackResolver;
 import orchestra.util.Git;
 import orchestra.util.LoggingProgressMonitor;
+import orchestra.util.PushWorker;
+import orchestra.util.RevisionIndex;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.FileTreeEntry;
+import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.ObjectLoader;
 import org.spearce.jgit.lib.Repository;
 import org.spearce.jgit.lib.SymlinkTreeEntry;
 import org.spearce.jgit.lib.Tree;
 import org.spearce.jgit.lib.TreeVisitor;
 
-import de.felixbruns.jotify.media.Track;
-
 /**
  * A "playlist of playlists" for git-backed "gists".
  * 
  */
-public class PlaygistContainer extends PlaylistContainer {
+public class PlaygistContainer extends PlaylistContainer implements PlaylistChangeListener {
   private static final Logger LOG = LoggerFactory.getLogger(PlaygistContainer.class);
 
+  private static final long PUSH_SHUTDOWN_TIMEOUT_MILLIS = 30 * 1000;
+
   private final MessageDigest messageDigest;
 
   private final Git git;
 
-  private PlaygistContainer(String owner, Git git, MessageDigest digest) {
+  /** Read and write playlists in the object database, not the working tree. */
+  private final boolean useObjectDatabase;
+
+  /** Load playlists from, and maintain, a snapshot of the parsed tree. */
+  private final boolean useSnapshot;
+
+  /** Format that playlists are written in. */
+  private final PlaygistFormat format;
+
+  private final PlaygistWriter writer;
+
+  /** Directory of the edit journals; null if journaling is disabled. */
+  private final File journalDirectory;
+
+  /**
+   * Whether new edits are journaled. Only in write-behind mode; writing
+   * through commits every edit right away, so a journal would only add I/O.
+   * Journals left by a write-behind session are still recovered.
+   */
+  private final boolean journalEdits;
+
+  private final FsyncPolicy fsyncPolicy;
+
+  /** Revisions of the playlists. */
+  private final RevisionIndex revisions;
+
+  /** Pushes commits to origin; null if there is no origin. */
+  private final PushWorker pushWorker;
+
+  /** Flushes dirty playlists in write-behind mode; null when writing through. */
+  private ScheduledExecutorService flusher;
+
+  /** Longest time a change is held before it's committed. */
+  private long flushDelayMillis;
+
+  /** Number of changes that triggers a flush before the delay has passed. */
+  private int maxPendingChanges;
+
+  /** Playlists changed since the last flush, in order of first change. */
+  private final Set<Playgist> dirtyPlaygists = new LinkedHashSet<Playgist>();
+
+  /** Number of changes since the last flush. */
+  private int pendingChanges;
+
+  private ScheduledFuture<?> scheduledFlush;
+
+  /**
+   * Serializes flushes and commits, so that a playlist's serializations are
+   * committed in the order they were made.
+   */
+  private final Object flushLock = new Object();
+
+  private Thread shutdownHook;
+
+  /** Fills in the metadata of playlist tracks; null if not set. */
+  private volatile TrackResolver trackResolver;
+
+  /** Delivers change notifications; null to deliver them right away. */
+  private final PlaylistEventDispatcher dispatcher;
+
+  private PlaygistContainer(String owner, Git git, MessageDigest digest, Options options) {
     super(owner);
     this.git = git;
     this.messageDigest = digest;
+    this.useObjectDatabase = options.useObjectDatabase;
+    this.useSnapshot = options.useSnapshot;
+    this.format = options.format;
+    this.writer = new PlaygistWriter(options.format, options.fsyncPolicy);
+    this.journalDirectory =
+        options.useJournal ? PlaygistJournal.getDirectory(git.getRepository()) : null;
+    this.journalEdits = options.useJournal && options.flushDelayMillis >= 0;
+    this.fsyncPolicy = options.fsyncPolicy;
+    this.revisions = openRevisionIndex(git);
+    this.pushWorker =
+        git.hasRemoteOrigin() ? new PushWorker(git, new LoggingProgressMonitor(LOG)) : null;
+    this.dispatcher =
+        options.eventExecutor != null ? new PlaylistEventDispatcher(options.eventExecutor) : null;
   }
 
   /**
@@ -55,51 +153,413 @@ public class PlaygistContainer extends PlaylistContainer {
    */
   public static PlaygistContainer open(String owner, Git git) throws IOException,
       GeneralSecurityException {
+    return open(owner, git, new Options());
+  }
+
+  /**
+   * Opens and reads all playlists in a playgist repository.
+   * 
+   * @param owner
+   * @param git
+   * @param options
+   * @return
+   * @throws IOException
+   * @throws GeneralSecurityException
+   */
+  public static PlaygistContainer open(String owner, Git git, Options options)
+      throws IOException, GeneralSecurityException {
     MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
-    PlaygistContainer container = new PlaygistContainer(owner, git, sha1);
-    container.readPlaylists();
+    PlaygistContainer container = new PlaygistContainer(owner, git, sha1, options);
+    List<Playgist> recovered = container.readPlaylists();
+
+    if (options.flushDelayMillis >= 0) {
+      container.startWriteBehind(options.flushDelayMillis, options.maxPendingChanges);
+    }
+
+    if (container.flusher != null || container.dispatcher != null) {
+      container.addShutdownHook();
+    }
+
+    // Store recovered edits like any other change
+    for (Playgist gist : recovered) {
+      container.playlistChanged(gist);
+    }
+
     return container;
   }
 
   /**
-   * Reads the Git tree and populates the container with playlists.
+   * Opens the revision index and catches it up with HEAD in the background,
+   * since after a pull or on first use that means walking the history.
+   */
+  private static RevisionIndex openRevisionIndex(Git git) {
+    final RevisionIndex revisions = git.getRevisionIndex();
+    revisions.catchUpInBackground();
+    return revisions;
+  }
+
+  private void startWriteBehind(long flushDelayMillis, int maxPendingChanges) {
+    this.flushDelayMillis = flushDelayMillis;
+    this.maxPendingChanges = maxPendingChanges;
+    this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "playgist-flusher");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+   * Stores changes that are still queued or held back when the JVM exits
+   * without {@link #close()} being called.
+   */
+  private void addShutdownHook() {
+    this.shutdownHook = new Thread("playgist-shutdown-flush") {
+      @Override
+      public void run() {
+        if (dispatcher != null) {
+          // Deliver the last changes, so that they're flushed below
+          dispatcher.close();
+        }
+
+        tryFlush();
+        stopPushWorker();
+      }
+    };
+    Runtime.getRuntime().addShutdownHook(shutdownHook);
+  }
+
+  /**
+   * Reads the Git tree and populates the container with playlists. The tree is
+   * listed first, then the files are opened in parallel. Only the metadata is
+   * read up front; tracks are read when a playlist is first used.
+   * 
+   * <p>
+   * If enabled, playlists whose blobs are unchanged since the last snapshot
+   * are taken from the snapshot instead, and a new snapshot is written in the
+   * background if the tree has changed.
+   * 
+   * <p>
+   * If journaling is enabled, edits left in journals are replayed.
    * 
+   * @return playlists with recovered edits, which are yet to be stored
    * @throws IOException
    */
-  private void readPlaylists() throws IOException {
+  private List<Playgist> readPlaylists() throws IOException {
     final Repository repo = git.getRepository();
     final Tree head = repo.mapTree(Constants.HEAD);
+    final Map<String, Playgist> opened = new LinkedHashMap<String, Playgist>();
+    final Map<String, ObjectId> headBlobIds = new LinkedHashMap<String, ObjectId>();
+
+    if (head == null) {
+      return recoverJournals(opened, headBlobIds);
+    }
+
+    final List<String> paths = new ArrayList<String>();
+    final List<ObjectId> blobIds = new ArrayList<ObjectId>();
+    listFiles(head, paths, blobIds);
+
+    final PlaygistSnapshot snapshot = useSnapshot ? openSnapshot() : null;
+    final Playgist[] fromSnapshot = new Playgist[paths.size()];
+    boolean snapshotMissed = false;
+    final List<Future<Playgist>> results = new ArrayList<Future<Playgist>>(paths.size());
+    ExecutorService executor = null;
+
+    try {
+      for (int i = 0; i < paths.size(); i++) {
+        final String path = paths.get(i);
+        final ObjectId blobId = blobIds.get(i);
+
+        if (snapshot != null) {
+          fromSnapshot[i] = snapshot.open(path, blobId,
+              useObjectDatabase ? null : new File(repo.getWorkDir(), path));
+        }
 
-    if (head != null) {
-      head.accept(new TreeVisitor() {
-        public void visitFile(FileTreeEntry f) throws IOException {
-          try {
-            Playgist gist = Playgist.open(new File(repo.getWorkDir(), f.getFullName()));
+        if (fromSnapshot[i] != null) {
+          results.add(null);
+          continue;
+        }
+
+        snapshotMissed = true;
+
+        if (executor == null) {
+          executor = Executors.newFixedThreadPool(
+              Math.max(1, Math.min(paths.size(), Runtime.getRuntime().availableProcessors())));
+        }
 
-            if (gist.getName() != null) {
-              LOG.info("Added playlist: {}", gist.getName());
-              addPlaygist(gist);
+        results.add(executor.submit(new Callable<Playgist>() {
+          public Playgist call() throws IOException {
+            if (useObjectDatabase) {
+              return Playgist.openBlob(repo, path, blobId, true);
             }
-          } catch (IOException e) {
-            LOG.info("Failed to open gist: {}", e.getMessage());
+
+            return Playgist.openLazily(new File(repo.getWorkDir(), path));
+          }
+        }));
+      }
+
+      // Add in tree order, on this thread
+      for (int i = 0; i < paths.size(); i++) {
+        final Playgist gist =
+            fromSnapshot[i] != null ? fromSnapshot[i] : getOpenedPlaygist(results.get(i));
+
+        headBlobIds.put(paths.get(i), blobIds.get(i));
+
+        if (gist != null && gist.getName() != null) {
+          LOG.info("Added playlist: {}", gist.getName());
+          addPlaygist(gist);
+          opened.put(paths.get(i), gist);
+          attachJournal(gist, paths.get(i), blobIds.get(i));
+        }
+      }
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+    }
+
+    // Also refreshes entries of working files that have changed since
+    if (useSnapshot
+        && (snapshotMissed || snapshot == null || !head.getId().equals(snapshot.getTreeId()))) {
+      writeSnapshotInBackground(head.getId(), paths, blobIds, snapshot);
+    }
+
+    return recoverJournals(opened, headBlobIds);
+  }
+
+  /**
+   * Logs the edits of a playlist, if journaling is enabled in write-behind
+   * mode.
+   * 
+   * @param gist
+   * @param path repository-relative path
+   * @param baseId ID of the committed blob, or <code>null</code>
+   */
+  private void attachJournal(Playgist gist, String path, ObjectId baseId) {
+    if (journalEdits) {
+      gist.setJournal(new PlaygistJournal(journalDirectory, path, baseId, fsyncPolicy));
+    }
+  }
+
+  /**
+   * Replays the journals left by a previous session over the committed
+   * versions of their playlists. A journal whose playlist has been committed
+   * since it was started is out of date and is discarded.
+   * 
+   * @param opened playlists read from the tree, by path
+   * @param headBlobIds IDs of the committed blobs, by path
+   * @return playlists with recovered edits
+   */
+  private List<Playgist> recoverJournals(Map<String, Playgist> opened,
+      Map<String, ObjectId> headBlobIds) {
+    final List<Playgist> recovered = new ArrayList<Playgist>();
+
+    if (journalDirectory == null) {
+      return recovered;
+    }
+
+    for (Map.Entry<String, File> entry : PlaygistJournal.list(journalDirectory).entrySet()) {
+      final String path = entry.getKey();
+      final PlaygistJournal journal =
+          new PlaygistJournal(journalDirectory, path, headBlobIds.get(path), fsyncPolicy);
+
+      try {
+        final ObjectId baseId = PlaygistJournal.readBaseId(entry.getValue());
+
+        if (baseId == null ? headBlobIds.containsKey(path)
+            : !baseId.equals(headBlobIds.get(path))) {
+          LOG.warn("Discarding out-of-date journal of {}", path);
+          journal.delete();
+          continue;
+        }
+
+        final Map<String, String> metadata = new TreeMap<String, String>();
+        final PackedTrackList tracks = new PackedTrackList();
+
+        if (baseId != null) {
+          final ObjectLoader loader = git.getRepository().openBlob(baseId);
+
+          if (loader == null) {
+            throw new IOException("Missing blob " + baseId.name());
           }
+
+          Playgist.read(ByteBuffer.wrap(loader.getCachedBytes()), metadata, tracks);
         }
 
-        public void endVisitTree(Tree t) throws IOException {
+        final int edits = journal.replay(metadata, tracks);
+        Playgist gist = opened.get(path);
+
+        if (gist == null) {
+          gist = createRecoveredPlaygist(path);
         }
 
-        public void startVisitTree(Tree t) throws IOException {
+        gist.restore(metadata, tracks);
+        journal.reopen();
+        gist.setJournal(journal);
+
+        if (!opened.containsKey(path) && gist.getName() != null) {
+          addPlaygist(gist);
         }
 
-        public void visitSymlink(SymlinkTreeEntry s) throws IOException {
+        LOG.info("Recovered {} uncommitted edits of {}", edits, path);
+        recovered.add(gist);
+      } catch (IOException e) {
+        LOG.warn("Failed to recover journal of " + path, e);
+      }
+    }
+
+    return recovered;
+  }
+
+  /**
+   * Creates a playlist that was never committed, for its recovered edits.
+   */
+  private Playgist createRecoveredPlaygist(String path) throws IOException {
+    if (useObjectDatabase) {
+      return Playgist.create(path);
+    }
+
+    final File absolutePath = new File(git.getRepository().getWorkDir(), path);
+
+    if (!absolutePath.exists()) {
+      createFile(absolutePath);
+    }
+
+    git.add(absolutePath);
+    return Playgist.create(absolutePath, null);
+  }
+
+  /**
+   * Lists the files in a tree and their blob IDs.
+   */
+  private static void listFiles(Tree tree, final List<String> paths, final List<ObjectId> blobIds)
+      throws IOException {
+    tree.accept(new TreeVisitor() {
+      public void visitFile(FileTreeEntry f) throws IOException {
+        paths.add(f.getFullName());
+        blobIds.add(f.getId());
+      }
+
+      public void endVisitTree(Tree t) throws IOException {
+      }
+
+      public void startVisitTree(Tree t) throws IOException {
+      }
+
+      public void visitSymlink(SymlinkTreeEntry s) throws IOException {
+      }
+    });
+  }
+
+  /**
+   * @return the snapshot, or <code>null</code> if there is none or it's
+   *         unreadable
+   */
+  private PlaygistSnapshot openSnapshot() {
+    try {
+      return PlaygistSnapshot.open(PlaygistSnapshot.getFile(git.getRepository()));
+    } catch (IOException e) {
+      LOG.warn("Ignoring playgist snapshot", e);
+      return null;
+    }
+  }
+
+  private void writeSnapshotInBackground(final ObjectId treeId, final List<String> paths,
+      final List<ObjectId> blobIds, final PlaygistSnapshot previous) {
+    final Thread writer = new Thread("playgist-snapshot") {
+      @Override
+      public void run() {
+        try {
+          PlaygistSnapshot.write(PlaygistSnapshot.getFile(git.getRepository()),
+              git.getRepository(), getSnapshotWorkDir(), treeId, paths, blobIds, previous);
+        } catch (IOException e) {
+          LOG.warn("Failed to write playgist snapshot", e);
         }
-      });
+      }
+    };
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Writes a snapshot of the current HEAD tree, reusing the entries of the
+   * existing snapshot for unchanged files.
+   * 
+   * @throws IOException
+   */
+  public void writeSnapshot() throws IOException {
+    final Repository repo = git.getRepository();
+    final Tree head = repo.mapTree(Constants.HEAD);
+
+    if (head == null) {
+      return;
+    }
+
+    final List<String> paths = new ArrayList<String>();
+    final List<ObjectId> blobIds = new ArrayList<ObjectId>();
+    listFiles(head, paths, blobIds);
+
+    final PlaygistSnapshot previous = openSnapshot();
+
+    if (previous == null || !head.getId().equals(previous.getTreeId())) {
+      PlaygistSnapshot.write(PlaygistSnapshot.getFile(repo), repo, getSnapshotWorkDir(),
+          head.getId(), paths, blobIds, previous);
+    }
+  }
+
+  /**
+   * @return the directory that snapshot entries are parsed from, or
+   *         <code>null</code> for the object database
+   */
+  private File getSnapshotWorkDir() {
+    return useObjectDatabase ? null : git.getRepository().getWorkDir();
+  }
+
+  /**
+   * Waits for a playlist to be opened.
+   * 
+   * @return the playlist, or <code>null</code> if it failed to open
+   * @throws IOException if interrupted
+   */
+  private static Playgist getOpenedPlaygist(Future<Playgist> result) throws IOException {
+    try {
+      return result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while reading playlists");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        LOG.info("Failed to open gist: {}", e.getCause().getMessage());
+        return null;
+      } else if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+
+      throw new IOException(e.getCause());
     }
   }
 
   @Override
   public Playlist createPlaylist(String name) throws Exception {
     String hash = getNextHash();
+
+    if (useObjectDatabase) {
+      String path = getAuthor() + "/" + hash;
+
+      if (git.existsInHead(path)) {
+        throw new IllegalStateException("Playlist already exists: " + path);
+      }
+
+      // Stored by the commit that follows the change of name
+      Playgist gist = Playgist.create(path);
+      attachJournal(gist, path, null);
+      addPlaygist(gist);
+      gist.setName(name);
+      LOG.info("Created new playlist at {}", path);
+      return gist;
+    }
+
     String repoRelativePath = new File(getAuthor(), hash).getPath();
     File absolutePath = new File(git.getRepository().getWorkDir(), repoRelativePath);
 
@@ -113,6 +573,7 @@ public class PlaygistContainer extends PlaylistContainer {
 
     LOG.info("Created new playlist at {}", absolutePath);
     Playgist gist = Playgist.open(absolutePath);
+    attachJournal(gist, getAuthor() + "/" + hash, null);
     gist.setName(name);
     addPlaygist(gist);
     return gist;
@@ -144,9 +605,31 @@ public class PlaygistContainer extends PlaylistContainer {
    */
   private void addPlaygist(Playgist gist) throws IOException {
     gist.addListener(this);
+    gist.setEventDispatcher(dispatcher);
+
+    gist.setRevisionIndex(revisions, getRepositoryPath(gist));
+
+    if (trackResolver != null) {
+      gist.setTrackResolver(trackResolver);
+    }
+
     addPlaylist(gist);
   }
 
+  /**
+   * Sets the resolver that fills in the metadata of the tracks of all
+   * playlists, including ones created later.
+   * 
+   * @param resolver
+   */
+  public void setTrackResolver(TrackResolver resolver) {
+    trackResolver = resolver;
+
+    for (Playlist playlist : this) {
+      ((Playgist) playlist).setTrackResolver(resolver);
+    }
+  }
+
   /**
    * @return
    * @throws Exception
@@ -165,65 +648,472 @@ public class PlaygistContainer extends PlaylistContainer {
       return;
     }
 
+    super.playlistChanged(playlist);
+
     if (playlist instanceof Playgist) {
       Playgist gist = (Playgist) playlist;
-      tryWriteFile(gist);
+
+      if (markDirty(Collections.singletonList(gist))) {
+        return;
+      }
 
       try {
-        git.commit("Playlist update", gist.getPath());
-        
-        if (git.hasRemoteOrigin()) {
-          git.pushOriginMaster(new LoggingProgressMonitor(LOG));
-        }
+        commit("Playlist update", Collections.singletonList(gist));
+        requestPush();
       } catch (IOException e) {
+        gist.setDirty(true);
         LOG.warn("Failed to commit", e);
       }
     }
   }
 
   /**
-   * Tries to write the playlist to disk. If it fails then the playlist is set
-   * to a dirty state.
+   * Handles a batch of changes from the event dispatcher: without
+   * write-behind, the changed playlists are committed together.
+   */
+  public void playlistsChanged(List<PlaylistChange> changes) {
+    final List<Playgist> gists = new ArrayList<Playgist>(changes.size());
+
+    for (PlaylistChange change : changes) {
+      super.playlistChanged(change.getPlaylist());
+
+      if (change.getPlaylist() instanceof Playgist) {
+        gists.add((Playgist) change.getPlaylist());
+      }
+    }
+
+    if (gists.isEmpty() || markDirty(gists)) {
+      return;
+    }
+
+    try {
+      commit("Playlist update", gists);
+      requestPush();
+    } catch (IOException e) {
+      for (Playgist gist : gists) {
+        gist.setDirty(true);
+      }
+
+      LOG.warn("Failed to commit", e);
+    }
+  }
+
+  /**
+   * @return the dispatcher of change notifications, or <code>null</code> if
+   *         they're delivered right away
    */
-  private void tryWriteFile(Playgist gist) {
+  public PlaylistEventDispatcher getEventDispatcher() {
+    return dispatcher;
+  }
+
+  /**
+   * Queues changed playlists for the next background flush. Checks the
+   * flusher with the lock held, which {@link #close()} shuts it down with,
+   * so that a flush is never scheduled on a flusher that has been shut down.
+   * 
+   * @return <code>false</code> if not in write-behind mode, or no longer, in
+   *         which case the playlists are to be committed right away
+   */
+  private synchronized boolean markDirty(List<Playgist> gists) {
+    if (flusher == null || flusher.isShutdown()) {
+      return false;
+    }
+
+    for (Playgist gist : gists) {
+      gist.setDirty(true);
+      dirtyPlaygists.add(gist);
+      pendingChanges++;
+    }
+
+    if (pendingChanges >= maxPendingChanges) {
+      if (scheduledFlush != null) {
+        scheduledFlush.cancel(false);
+      }
+
+      scheduledFlush = flusher.schedule(newFlushTask(), 0, TimeUnit.MILLISECONDS);
+    } else if (scheduledFlush == null) {
+      scheduledFlush = flusher.schedule(newFlushTask(), flushDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    return true;
+  }
+
+  private Runnable newFlushTask() {
+    return new Runnable() {
+      public void run() {
+        tryFlush();
+      }
+    };
+  }
+
+  private void tryFlush() {
     try {
-      writeFile(gist);
+      flush();
     } catch (IOException e) {
-      e.printStackTrace();
+      LOG.warn("Failed to flush playlists", e);
+    }
+  }
+
+  /**
+   * Writes all dirty playlists to disk and commits them in a single commit.
+   * Does nothing unless the container is in write-behind mode. Playlists that
+   * fail to be written or committed stay dirty and are retried by the next
+   * flush.
+   * 
+   * @throws IOException
+   */
+  public void flush() throws IOException {
+    synchronized (flushLock) {
+      final List<Playgist> batch;
+
+      synchronized (this) {
+        if (scheduledFlush != null) {
+          scheduledFlush.cancel(false);
+          scheduledFlush = null;
+        }
+
+        batch = new ArrayList<Playgist>(dirtyPlaygists);
+        dirtyPlaygists.clear();
+        pendingChanges = 0;
+
+        for (Playgist gist : batch) {
+          gist.setDirty(false);
+        }
+      }
+
+      if (batch.isEmpty()) {
+        return;
+      }
+
+      try {
+        commit(batch.size() == 1 ? "Playlist update" : "Playlist update (" + batch.size()
+            + " playlists)", batch);
+      } catch (IOException e) {
+        requeue(batch);
+        throw e;
+      } catch (RuntimeException e) {
+        requeue(batch);
+        throw e;
+      }
+
+      LOG.info("Flushed {} playlists", batch.size());
+      requestPush();
+    }
+  }
+
+  private void requestPush() {
+    if (pushWorker == null) {
+      return;
+    }
+
+    try {
+      pushWorker.requestPush();
+    } catch (IllegalStateException e) {
+      LOG.warn("Not pushing, the container is closed");
+    }
+  }
+
+  /**
+   * @return the worker that pushes commits to origin, or <code>null</code> if
+   *         the repository has no origin
+   */
+  public PushWorker getPushWorker() {
+    return pushWorker;
+  }
+
+  private void stopPushWorker() {
+    if (pushWorker == null) {
+      return;
+    }
+
+    pushWorker.shutdown();
+
+    try {
+      if (!pushWorker.awaitTermination(PUSH_SHUTDOWN_TIMEOUT_MILLIS)) {
+        LOG.warn("Gave up waiting for the last push to origin");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Marks playlists of a failed flush as dirty again.
+   */
+  private synchronized void requeue(List<Playgist> batch) {
+    for (Playgist gist : batch) {
+      gist.setDirty(true);
+      dirtyPlaygists.add(gist);
+      pendingChanges++;
+    }
+
+    if (scheduledFlush == null && !flusher.isShutdown()) {
+      scheduledFlush = flusher.schedule(newFlushTask(), flushDelayMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Stops background flushing, flushes pending changes, updates the snapshot
+   * (if enabled) and waits for the last push to origin.
+   * 
+   * @throws IOException
+   */
+  public void close() throws IOException {
+    if (dispatcher != null) {
+      // Deliver the last changes, so that they're flushed below
+      dispatcher.close();
+    }
+
+    if (flusher != null) {
+      synchronized (this) {
+        flusher.shutdown();
+      }
+    }
+
+    if (shutdownHook != null) {
+      try {
+        Runtime.getRuntime().removeShutdownHook(shutdownHook);
+      } catch (IllegalStateException e) {
+        // Already shutting down; the hook flushes
+      }
+    }
+
+    try {
+      flush();
+
+      if (useSnapshot) {
+        writeSnapshot();
+      }
+    } finally {
+      stopPushWorker();
+    }
+  }
+
+  /**
+   * Rewrites every playlist in the container's format, in a single commit.
+   * Reads the tracks of all playlists.
+   * 
+   * @return the number of playlists rewritten
+   * @throws IOException
+   */
+  public int migrate() throws IOException {
+    final List<Playgist> gists = new ArrayList<Playgist>();
+
+    for (Playlist playlist : getPlaylists()) {
+      if (playlist instanceof Playgist) {
+        gists.add((Playgist) playlist);
+      }
     }
+
+    if (!gists.isEmpty()) {
+      commit("Convert playlists to " + format.name().toLowerCase() + " format", gists);
+    }
+
+    return gists.size();
   }
 
   /**
-   * Writes the playlist to disk.
+   * Stores a set of playlists in a single commit: in the object database, or
+   * by writing the files to the working tree and committing the same
+   * contents. Journals are then folded into the committed versions. Holds
+   * the flush lock throughout: otherwise two threads committing the same
+   * playlist could commit the older serialization last.
    * 
    * @throws IOException
    */
-  private void writeFile(Playgist gist) throws IOException {
-    File path = gist.getPath();
+  private void commit(String message, List<Playgist> gists) throws IOException {
+    synchronized (flushLock) {
+      commitLocked(message, gists);
+    }
+  }
+
+  private void commitLocked(String message, List<Playgist> gists) throws IOException {
+    final long[] marks = new long[gists.size()];
+    final Map<String, byte[]> contents = new LinkedHashMap<String, byte[]>();
+
+    for (int i = 0; i < marks.length; i++) {
+      final Playgist gist = gists.get(i);
+
+      synchronized (gist) {
+        if (useObjectDatabase) {
+          contents.put(gist.getRepositoryPath(), writer.serialize(gist));
+        } else {
+          contents.put(getRepositoryPath(gist), writer.write(gist, gist.getPath()));
+        }
+
+        marks[i] = mark(gist);
+      }
+    }
+
+    // The working tree's files are committed from memory, not read back
+    git.commit(message, contents, !useObjectDatabase);
+
+    for (int i = 0; i < marks.length; i++) {
+      final PlaygistJournal journal = gists.get(i).getJournal();
+
+      if (journal != null) {
+        journal.compact(git.getHeadBlobId(journal.getPath()), marks[i]);
+
+        if (!journalEdits) {
+          // Recovered edits are committed; later edits aren't journaled
+          gists.get(i).setJournal(null);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the repository-relative path of a playlist, using '/' as separator
+   */
+  private String getRepositoryPath(Playgist gist) {
+    if (gist.getRepositoryPath() != null) {
+      return gist.getRepositoryPath();
+    }
+
+    return git.makeRepositoryRelative(gist.getPath()).getPath().replace(File.separatorChar, '/');
+  }
+
+  private static long mark(Playgist gist) {
+    final PlaygistJournal journal = gist.getJournal();
+    return journal != null ? journal.mark() : 0;
+  }
+
+  /**
+   * Settings for {@link PlaygistContainer#open(String, Git, Options)}. By
+   * default, changes are written and committed right away, through the
+   * working tree.
+   */
+  public static class Options {
+    private long flushDelayMillis = -1;
+
+    private int maxPendingChanges;
+
+    private boolean useObjectDatabase;
+
+    private boolean useSnapshot;
+
+    private PlaygistFormat format = PlaygistFormat.TEXT;
+
+    private FsyncPolicy fsyncPolicy = FsyncPolicy.NEVER;
+
+    private boolean useJournal;
+
+    private Executor eventExecutor;
 
-    if (!path.exists()) {
-      path.createNewFile();
+    /**
+     * Enables write-behind mode. Changed playlists are marked dirty and
+     * written and committed together, in one commit, by a background thread:
+     * at most <code>flushDelayMillis</code> after the first change, or as
+     * soon as <code>maxPendingChanges</code> changes have piled up. Pending
+     * changes are also flushed by {@link PlaygistContainer#flush()},
+     * {@link PlaygistContainer#close()} and when the JVM shuts down.
+     * 
+     * @param flushDelayMillis
+     * @param maxPendingChanges
+     * @return
+     */
+    public Options setWriteBehind(long flushDelayMillis, int maxPendingChanges) {
+      if (flushDelayMillis < 0 || maxPendingChanges < 1) {
+        throw new IllegalArgumentException("Invalid write-behind settings");
+      }
+
+      this.flushDelayMillis = flushDelayMillis;
+      this.maxPendingChanges = maxPendingChanges;
+      return this;
+    }
+
+    /**
+     * Reads playlists straight from the object database and commits changes
+     * as new blobs and trees, never touching the working tree. This is the
+     * only mode that works with a bare repository.
+     * 
+     * @param useObjectDatabase
+     * @return
+     */
+    public Options setUseObjectDatabase(boolean useObjectDatabase) {
+      this.useObjectDatabase = useObjectDatabase;
+      return this;
     }
 
-    BufferedWriter out =
-        new BufferedWriter(Channels.newWriter(new FileOutputStream(path).getChannel(), "UTF-8"));
+    /**
+     * Keeps a binary snapshot of all parsed playlists, tagged with the tree it
+     * was made from, in the repository's git directory. Playlists whose blobs
+     * haven't changed since the snapshot are loaded from it without parsing.
+     * 
+     * @param useSnapshot
+     * @return
+     */
+    public Options setUseSnapshot(boolean useSnapshot) {
+      this.useSnapshot = useSnapshot;
+      return this;
+    }
 
-    // Write metadata
-    Map<String, String> metadata = gist.getMetadata();
+    /**
+     * Sets the format that changed playlists are written in. Playlists are
+     * read in whichever format they are in, so a playlist is converted the
+     * next time it's written; {@link PlaygistContainer#migrate()} converts
+     * them all at once. Defaults to {@link PlaygistFormat#TEXT}.
+     * 
+     * @param format
+     * @return
+     */
+    public Options setFormat(PlaygistFormat format) {
+      if (format == null) {
+        throw new IllegalArgumentException("Format can not be null");
+      }
 
-    for (String prop : metadata.keySet()) {
-      // TODO(liesen): user some lib for storing metadata
-      out.write(String.format("%s%s = %s", Playgist.METADATA_PREFIX, prop, metadata.get(prop)));
-      out.newLine();
+      this.format = format;
+      return this;
     }
 
-    // Write tracks
-    for (Track track : gist.getTracks()) {
-      out.write(track.getId());
-      out.newLine();
+    /**
+     * Sets whether playlist files in the working tree are forced to disk
+     * before they replace the old versions. Defaults to
+     * {@link FsyncPolicy#NEVER}.
+     * 
+     * @param fsyncPolicy
+     * @return
+     */
+    public Options setFsyncPolicy(FsyncPolicy fsyncPolicy) {
+      if (fsyncPolicy == null) {
+        throw new IllegalArgumentException("Fsync policy can not be null");
+      }
+
+      this.fsyncPolicy = fsyncPolicy;
+      return this;
     }
 
-    out.flush();
-    out.close();
+    /**
+     * Logs every edit to a small append-only journal in the repository's git
+     * directory until the playlist is committed. Edits that were made but
+     * never committed, e.g. because the process died, are recovered from the
+     * journals the next time the repository is opened. Only edits made in
+     * write-behind mode are journaled: writing through commits each edit
+     * right away, so the journal would only add I/O. Journals left by an
+     * earlier session are recovered either way. The journals are forced to
+     * disk according to the fsync policy.
+     * 
+     * @param useJournal
+     * @return
+     */
+    public Options setUseJournal(boolean useJournal) {
+      this.useJournal = useJournal;
+      return this;
+    }
+
+    /**
+     * Delivers change notifications on an executor, so that the thread that
+     * edits a playlist doesn't wait for it to be written. Repeated changes to
+     * a playlist are merged while they wait, and changes to several
+     * playlists are committed together. By default, listeners are notified
+     * right away, by the thread that made the change.
+     * 
+     * @param eventExecutor
+     * @return
+     */
+    public Options setEventExecutor(Executor eventExecutor) {
+      this.eventExecutor = eventExecutor;
+      return this;
+    }
   }
 }
@@ -0,0 +1,46 @@
+package orchestra.playlist.git;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The file formats of a playgist. Both can be read at any time; the format
+ * is detected from the first bytes of the file.
+ *
+ */
+public enum PlaygistFormat {
+  /**
+   * One line per metadata property (<code>&gt; key = value</code>) followed by
+   * one line per track with its 32-digit hex ID. Easy to read and diff.
+   */
+  TEXT,
+
+  /**
+   * A small header, length-prefixed metadata and 16-byte raw track IDs,
+   * optionally delta-encoded. About half the size of the text format and
+   * needs no text parsing.
+   */
+  BINARY;
+
+  /**
+   * Detects the format of a playgist from the bytes at the buffer's position.
+   * The position is not changed.
+   *
+   * @param buf
+   * @return
+   */
+  static PlaygistFormat detect(ByteBuffer buf) {
+    final byte[] magic = BinaryPlaygist.MAGIC;
+
+    if (buf.remaining() < magic.length) {
+      return TEXT;
+    }
+
+    for (int i = 0; i < magic.length; i++) {
+      if (buf.get(buf.position() + i) != magic[i]) {
+        return TEXT;
+      }
+    }
+
+    return BINARY;
+  }
+}
@@ -0,0 +1,562 @@
+package orchestra.playlist.git;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import orchestra.playlist.PackedTrackList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.Repository;
+
+import de.felixbruns.jotify.media.Track;
+
+/**
+ * Append-only log of the edits made to a playlist since it was last
+ * committed. Each edit costs one small record at the end of the file instead
+ * of a rewrite of the whole playlist. The log is folded back into the
+ * playlist file when it's committed, and replayed over the committed version
+ * to recover edits that were never committed, e.g. because the process died.
+ *
+ * <p>
+ * The file is only created on the first edit after a commit, so only
+ * playlists with uncommitted edits have one. Layout, big-endian:
+ *
+ * <pre>
+ * int      magic
+ * byte[20] ID of the blob the edits apply to; zeros for a new playlist
+ * records:
+ *   int    length of type and payload
+ *   int    CRC-32 of type and payload
+ *   byte   type
+ *   payload
+ * </pre>
+ *
+ * A record that is cut short or fails its checksum ends the log; anything
+ * after it is dropped.
+ *
+ * <p>
+ * Appends never throw. If the log can't be written, the error is logged and
+ * further edits are not journaled; they are still committed as usual.
+ */
+class PlaygistJournal {
+  private static final Logger LOG = LoggerFactory.getLogger(PlaygistJournal.class);
+
+  /** Name of the journal directory, in the repository's git directory. */
+  static final String DIRECTORY_NAME = "playgist-journal";
+
+  private static final int MAGIC = 0x50474a31; // "PGJ1"
+
+  private static final int ID_LENGTH = 20;
+
+  private static final int HEADER_LENGTH = 4 + ID_LENGTH;
+
+  private static final int RECORD_HEADER_LENGTH = 8;
+
+  private static final byte INSERT = 1;
+  private static final byte REMOVE = 2;
+  private static final byte REMOVE_ALL = 3;
+  private static final byte MOVE = 4;
+  private static final byte SET_METADATA = 5;
+  private static final byte CLEAR = 6;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final File file;
+
+  private final String path;
+
+  private final FsyncPolicy fsyncPolicy;
+
+  /** ID of the blob the edits apply to, or null for a new playlist. */
+  private ObjectId baseId;
+
+  /** Open while the file exists; null otherwise. */
+  private FileChannel channel;
+
+  /** Reused for building records. */
+  private ByteBuffer record = ByteBuffer.allocate(256);
+
+  private final CRC32 crc = new CRC32();
+
+  private boolean failed;
+
+  /**
+   * @param directory journal directory
+   * @param path repository-relative path of the playlist
+   * @param baseId ID of the committed blob, or <code>null</code> if the
+   *        playlist hasn't been committed
+   * @param fsyncPolicy whether each record is forced to disk
+   */
+  PlaygistJournal(File directory, String path, ObjectId baseId, FsyncPolicy fsyncPolicy) {
+    this.file = new File(directory, encodeName(path));
+    this.path = path;
+    this.baseId = baseId;
+    this.fsyncPolicy = fsyncPolicy;
+  }
+
+  /**
+   * @param repo
+   * @return the journal directory of a repository
+   */
+  static File getDirectory(Repository repo) {
+    return new File(repo.getDirectory(), DIRECTORY_NAME);
+  }
+
+  /**
+   * Lists the journals left in a directory.
+   *
+   * @param directory
+   * @return maps repository-relative paths to journal files
+   */
+  static Map<String, File> list(File directory) {
+    final Map<String, File> journals = new TreeMap<String, File>();
+    final File[] files = directory.listFiles();
+
+    if (files != null) {
+      for (File file : files) {
+        try {
+          journals.put(URLDecoder.decode(file.getName(), "UTF-8"), file);
+        } catch (UnsupportedEncodingException e) {
+          throw new AssertionError(e);
+        } catch (IllegalArgumentException e) {
+          LOG.warn("Ignoring {} in the journal directory", file.getName());
+        }
+      }
+    }
+
+    return journals;
+  }
+
+  private static String encodeName(String path) {
+    try {
+      return URLEncoder.encode(path, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * @return the repository-relative path of the playlist
+   */
+  String getPath() {
+    return path;
+  }
+
+  /**
+   * Reads the ID of the blob a journal file applies to.
+   *
+   * @param file
+   * @return the blob ID, or <code>null</code> for a new playlist
+   * @throws IOException if the file is not a journal
+   */
+  static ObjectId readBaseId(File file) throws IOException {
+    final ByteBuffer header = readFully(file, HEADER_LENGTH);
+
+    if (header.remaining() < HEADER_LENGTH || header.getInt() != MAGIC) {
+      throw new IOException("Not a playgist journal: " + file);
+    }
+
+    final byte[] raw = new byte[ID_LENGTH];
+    header.get(raw);
+    return isZero(raw) ? null : ObjectId.fromRaw(raw);
+  }
+
+  /**
+   * Applies the edits in a journal file, as far as it's intact, and truncates
+   * whatever follows.
+   *
+   * @param metadata metadata of the base version, updated in place
+   * @param tracks tracks of the base version, updated in place
+   * @return the number of edits applied
+   * @throws IOException
+   */
+  synchronized int replay(Map<String, String> metadata, PackedTrackList tracks)
+      throws IOException {
+    final ByteBuffer buf = readFully(file, Integer.MAX_VALUE);
+    buf.position(HEADER_LENGTH);
+    int applied = 0;
+    int validEnd = HEADER_LENGTH;
+
+    while (buf.remaining() >= RECORD_HEADER_LENGTH) {
+      final int length = buf.getInt();
+      final int checksum = buf.getInt();
+
+      if (length < 1 || length > buf.remaining()) {
+        break;
+      }
+
+      crc.reset();
+      crc.update(buf.array(), buf.position(), length);
+
+      if ((int) crc.getValue() != checksum) {
+        break;
+      }
+
+      final ByteBuffer payload = buf.slice();
+      payload.limit(length);
+      buf.position(buf.position() + length);
+
+      try {
+        apply(payload, metadata, tracks);
+      } catch (BufferUnderflowException e) {
+        throw new IOException("Corrupt record in " + file);
+      } catch (IndexOutOfBoundsException e) {
+        throw new IOException("Record doesn't apply to the playlist: " + file);
+      }
+
+      applied++;
+      validEnd = buf.position();
+    }
+
+    if (validEnd < buf.limit()) {
+      LOG.warn("Dropping {} bytes at the end of {}", buf.limit() - validEnd, file);
+      final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+      try {
+        raf.setLength(validEnd);
+      } finally {
+        raf.close();
+      }
+    }
+
+    return applied;
+  }
+
+  private static void apply(ByteBuffer payload, Map<String, String> metadata,
+      PackedTrackList tracks) {
+    switch (payload.get()) {
+      case INSERT: {
+        int index = payload.getInt();
+
+        for (int n = payload.getInt(); n > 0; n--) {
+          tracks.add(index++, payload.getLong(), payload.getLong());
+        }
+
+        break;
+      }
+
+      case REMOVE: {
+        final int index = payload.getInt();
+
+        for (int n = payload.getInt(); n > 0; n--) {
+          tracks.remove(index);
+        }
+
+        break;
+      }
+
+      case REMOVE_ALL: {
+        final int n = payload.getInt();
+        final PackedTrackList ids = new PackedTrackList(n);
+
+        for (int i = 0; i < n; i++) {
+          ids.add(payload.getLong(), payload.getLong());
+        }
+
+        tracks.removeAll(ids);
+        break;
+      }
+
+      case MOVE: {
+        final int from = payload.getInt();
+        final int to = payload.getInt();
+        final long hi = tracks.getHigh(from);
+        final long lo = tracks.getLow(from);
+        tracks.remove(from);
+        tracks.add(to, hi, lo);
+        break;
+      }
+
+      case SET_METADATA: {
+        final String key = readString(payload);
+        metadata.put(key, readString(payload));
+        break;
+      }
+
+      case CLEAR:
+        tracks.clear();
+        break;
+
+      default:
+        throw new IllegalArgumentException("Unknown record type");
+    }
+  }
+
+  /**
+   * Journals the insertion of tracks.
+   *
+   * @param index index of the first inserted track
+   * @param tracks the playlist's tracks, after the insertion
+   * @param count number of tracks inserted
+   */
+  synchronized void insert(int index, PackedTrackList tracks, int count) {
+    final ByteBuffer buf = startRecord(INSERT, 8 + count * 16);
+    buf.putInt(index).putInt(count);
+
+    for (int i = index; i < index + count; i++) {
+      buf.putLong(tracks.getHigh(i)).putLong(tracks.getLow(i));
+    }
+
+    append();
+  }
+
+  /**
+   * Journals the removal of <code>count</code> tracks starting at an index.
+   */
+  synchronized void remove(int index, int count) {
+    startRecord(REMOVE, 8).putInt(index).putInt(count);
+    append();
+  }
+
+  /**
+   * Journals the removal of every occurrence of a set of tracks.
+   */
+  synchronized void removeAll(Collection<Track> removed) {
+    final PackedTrackList ids = new PackedTrackList(removed);
+    final ByteBuffer buf = startRecord(REMOVE_ALL, 4 + ids.size() * 16);
+    buf.putInt(ids.size());
+
+    for (int i = 0; i < ids.size(); i++) {
+      buf.putLong(ids.getHigh(i)).putLong(ids.getLow(i));
+    }
+
+    append();
+  }
+
+  /**
+   * Journals moving a track from one index to another.
+   */
+  synchronized void move(int from, int to) {
+    startRecord(MOVE, 8).putInt(from).putInt(to);
+    append();
+  }
+
+  /**
+   * Journals a change of a metadata property.
+   */
+  synchronized void setMetadata(String key, String value) {
+    final byte[] keyBytes = key.getBytes(UTF_8);
+    final byte[] valueBytes = value.getBytes(UTF_8);
+    final ByteBuffer buf = startRecord(SET_METADATA, 8 + keyBytes.length + valueBytes.length);
+    buf.putInt(keyBytes.length).put(keyBytes);
+    buf.putInt(valueBytes.length).put(valueBytes);
+    append();
+  }
+
+  /**
+   * Journals the removal of all tracks.
+   */
+  synchronized void clear() {
+    startRecord(CLEAR, 0);
+    append();
+  }
+
+  /**
+   * @return a position in the log; edits journaled after it are kept by
+   *         {@link #compact(ObjectId, long)}
+   */
+  synchronized long mark() {
+    try {
+      return channel != null ? channel.size() : HEADER_LENGTH;
+    } catch (IOException e) {
+      return HEADER_LENGTH;
+    }
+  }
+
+  /**
+   * Folds the log into a newly committed version of the playlist: edits up to
+   * <code>mark</code> are in the new blob and are dropped, later edits are
+   * kept on top of it.
+   *
+   * @param newBaseId ID of the committed blob
+   * @param mark position returned by {@link #mark()} when the playlist was
+   *        serialized for the commit
+   */
+  synchronized void compact(ObjectId newBaseId, long mark) {
+    baseId = newBaseId;
+
+    try {
+      if (channel == null) {
+        return;
+      }
+
+      final long size = channel.size();
+
+      if (size <= mark) {
+        close();
+        delete();
+        return;
+      }
+
+      // Keep the edits made during the commit
+      final ByteBuffer tail = ByteBuffer.allocate((int) (size - mark));
+
+      while (tail.hasRemaining() && channel.read(tail, mark + tail.position()) >= 0) {
+      }
+
+      tail.flip();
+      channel.truncate(0);
+      channel.position(0);
+      writeHeader();
+      writeFully(tail);
+      force();
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  /**
+   * Closes the file, if it's open.
+   */
+  synchronized void close() {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        LOG.warn("Failed to close " + file, e);
+      }
+
+      channel = null;
+    }
+  }
+
+  /**
+   * Deletes the journal file.
+   */
+  synchronized void delete() {
+    close();
+
+    if (file.exists() && !file.delete()) {
+      LOG.warn("Failed to delete {}", file);
+    }
+  }
+
+  /**
+   * Continues an existing journal file, e.g. after it has been replayed.
+   *
+   * @throws IOException
+   */
+  synchronized void reopen() throws IOException {
+    close();
+    channel = new RandomAccessFile(file, "rw").getChannel();
+    channel.position(channel.size());
+  }
+
+  private ByteBuffer startRecord(byte type, int payloadLength) {
+    final int needed = RECORD_HEADER_LENGTH + 1 + payloadLength;
+
+    if (record.capacity() < needed) {
+      record = ByteBuffer.allocate(Math.max(needed, record.capacity() * 2));
+    }
+
+    record.clear();
+    record.putInt(1 + payloadLength);
+    record.putInt(0); // Checksum, filled in by append
+    record.put(type);
+    return record;
+  }
+
+  private void append() {
+    if (failed) {
+      return;
+    }
+
+    record.flip();
+    crc.reset();
+    crc.update(record.array(), RECORD_HEADER_LENGTH, record.limit() - RECORD_HEADER_LENGTH);
+    record.putInt(4, (int) crc.getValue());
+
+    try {
+      if (channel == null) {
+        file.getParentFile().mkdirs();
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        channel.truncate(0);
+        writeHeader();
+      }
+
+      writeFully(record);
+      force();
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  private void writeHeader() throws IOException {
+    final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+    header.putInt(MAGIC);
+
+    if (baseId != null) {
+      final byte[] raw = new byte[ID_LENGTH];
+      baseId.copyRawTo(raw, 0);
+      header.put(raw);
+    }
+
+    header.clear();
+    writeFully(header);
+  }
+
+  private void writeFully(ByteBuffer buf) throws IOException {
+    while (buf.hasRemaining()) {
+      channel.write(buf);
+    }
+  }
+
+  private void force() throws IOException {
+    if (fsyncPolicy != FsyncPolicy.NEVER) {
+      channel.force(fsyncPolicy == FsyncPolicy.DATA_AND_METADATA);
+    }
+  }
+
+  private void fail(IOException e) {
+    LOG.warn("Journaling of " + path + " stopped; edits are still committed as usual", e);
+    failed = true;
+    delete();
+  }
+
+  private static ByteBuffer readFully(File file, int maxLength) throws IOException {
+    final FileChannel in = new FileInputStream(file).getChannel();
+
+    try {
+      final ByteBuffer buf = ByteBuffer.allocate((int) Math.min(in.size(), maxLength));
+
+      while (buf.hasRemaining() && in.read(buf) >= 0) {
+      }
+
+      buf.flip();
+      return buf;
+    } finally {
+      in.close();
+    }
+  }
+
+  private static String readString(ByteBuffer buf) {
+    final byte[] bytes = new byte[buf.getInt()];
+    buf.get(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  private static boolean isZero(byte[] raw) {
+    for (byte b : raw) {
+      if (b != 0) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+}
@@ -0,0 +1,502 @@
+package orchestra.playlist.git;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import orchestra.playlist.PackedTrackList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.ObjectLoader;
+import org.spearce.jgit.lib.Repository;
+
+/**
+ * A binary cache of every parsed playlist in a tree, stored next to the
+ * repository. Opening a repository whose HEAD tree matches the snapshot needs
+ * no parsing at all: metadata is read from the memory-mapped snapshot and
+ * tracks are copied out of it when first needed. When the tree has changed,
+ * only the files whose blob IDs differ need to be parsed again.
+ *
+ * <p>
+ * With a working tree, an entry holds what was parsed from the working file,
+ * which may have changes that aren't committed. The entry is only used while
+ * the file's length and modification time are the ones recorded with it.
+ * Files modified shortly before the snapshot was written get no such stamp,
+ * since a later change within the same clock tick would go unnoticed; they
+ * are parsed again next time.
+ *
+ * <p>
+ * Layout, big-endian:
+ *
+ * <pre>
+ * int     magic
+ * byte[20] tree ID
+ * int     number of entries
+ * entries:
+ *   int     length of the rest of the entry
+ *   short   path length, path (UTF-8)
+ *   byte[20] blob ID
+ *   long    length of the working file, or -1
+ *   long    modification time of the working file, or -1
+ *   short   number of metadata entries
+ *     short key length, key (UTF-8), int value length, value (UTF-8)
+ *   long    checksum of the tracks, see {@link PackedTrackList#getChecksum()}
+ *   int     number of tracks
+ *   long[2] per track: high and low 64 bits of the ID
+ * </pre>
+ */
+class PlaygistSnapshot {
+  private static final Logger LOG = LoggerFactory.getLogger(PlaygistSnapshot.class);
+
+  /** File name of the snapshot, in the repository's git directory. */
+  static final String FILE_NAME = "playgists.snapshot";
+
+  private static final int MAGIC = 0x50475333; // "PGS3"
+
+  private static final int ID_LENGTH = 20;
+
+  /** Length and modification time of an entry that isn't stamped. */
+  private static final long NO_STAT = -1;
+
+  /** Files modified this recently aren't stamped. */
+  private static final long RACY_MILLIS = 2000;
+
+  /** Size of the buffer that entries are written through. */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** Longest string with a short length prefix. */
+  private static final int MAX_SHORT_LENGTH = 0xffff;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final ByteBuffer buffer;
+
+  private final ObjectId treeId;
+
+  /** Maps a path to the position of its entry, after the length field. */
+  private final Map<String, Integer> entries;
+
+  private PlaygistSnapshot(ByteBuffer buffer, ObjectId treeId, Map<String, Integer> entries) {
+    this.buffer = buffer;
+    this.treeId = treeId;
+    this.entries = entries;
+  }
+
+  /**
+   * @param repo
+   * @return the snapshot file of a repository
+   */
+  static File getFile(Repository repo) {
+    return new File(repo.getDirectory(), FILE_NAME);
+  }
+
+  /**
+   * Memory-maps a snapshot and indexes its entries.
+   *
+   * @param file
+   * @return the snapshot, or <code>null</code> if there is none
+   * @throws IOException if the file can't be read or is corrupt
+   */
+  static PlaygistSnapshot open(File file) throws IOException {
+    if (!file.exists()) {
+      return null;
+    }
+
+    final FileChannel channel = new FileInputStream(file).getChannel();
+    final ByteBuffer buffer;
+
+    try {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      channel.close();
+    }
+
+    try {
+      if (buffer.getInt() != MAGIC) {
+        throw new IOException("Not a playgist snapshot: " + file);
+      }
+
+      final ObjectId treeId = readObjectId(buffer);
+      final int count = buffer.getInt();
+      final Map<String, Integer> entries = new HashMap<String, Integer>(count * 2);
+
+      for (int i = 0; i < count; i++) {
+        final int length = buffer.getInt();
+        final int position = buffer.position();
+        entries.put(readString(buffer, buffer.getShort() & 0xffff), position);
+        buffer.position(position + length);
+      }
+
+      return new PlaygistSnapshot(buffer, treeId, entries);
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated playgist snapshot: " + file);
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Corrupt playgist snapshot: " + file);
+    }
+  }
+
+  /**
+   * @return the ID of the tree the snapshot was made from
+   */
+  ObjectId getTreeId() {
+    return treeId;
+  }
+
+  /**
+   * Creates a playlist from the snapshot, if the snapshot has an entry for
+   * the same version of the file: the same blob and, with a working tree, the
+   * same working file.
+   *
+   * @param path repository-relative path
+   * @param blobId ID of the file's blob in the current tree
+   * @param absolutePath path to the file on disk, or <code>null</code> if the
+   *        playlist lives in the object database
+   * @return the playlist, with tracks read on demand and the checksum known
+   *         without reading them, or <code>null</code>
+   */
+  Playgist open(String path, ObjectId blobId, File absolutePath) {
+    final Integer position = findEntry(path, blobId, absolutePath);
+
+    if (position == null) {
+      return null;
+    }
+
+    final ByteBuffer entry = buffer.duplicate();
+    entry.position(position);
+    skipHeader(entry);
+
+    final Map<String, String> metadata = new TreeMap<String, String>();
+
+    for (int i = entry.getShort() & 0xffff; i > 0; i--) {
+      final String key = readString(entry, entry.getShort() & 0xffff);
+      metadata.put(key, readString(entry, entry.getInt()));
+    }
+
+    return Playgist.open(absolutePath, absolutePath == null ? path : null, metadata,
+        new SnapshotTrackSource(entry.position()));
+  }
+
+  /**
+   * Returns the position of the entry for a path, if its blob ID matches and,
+   * with a working tree, it's stamped with the file's current length and
+   * modification time.
+   *
+   * @param file the working file, or <code>null</code> for the blob
+   */
+  private Integer findEntry(String path, ObjectId blobId, File file) {
+    final Integer position = entries.get(path);
+
+    if (position == null) {
+      return null;
+    }
+
+    final ByteBuffer entry = buffer.duplicate();
+    entry.position(position);
+    entry.position(position + 2 + (entry.getShort() & 0xffff));
+
+    final byte[] expected = new byte[ID_LENGTH];
+    blobId.copyRawTo(expected, 0);
+
+    for (int i = 0; i < ID_LENGTH; i++) {
+      if (entry.get() != expected[i]) {
+        return null;
+      }
+    }
+
+    final long length = entry.getLong();
+    final long lastModified = entry.getLong();
+
+    if (file == null) {
+      // Must have been made from the blob too
+      return length == NO_STAT ? position : null;
+    }
+
+    if (lastModified == NO_STAT || length != file.length() || lastModified != file.lastModified()) {
+      return null;
+    }
+
+    return position;
+  }
+
+  /**
+   * Skips the path, blob ID and stamp at the start of an entry.
+   */
+  private static void skipHeader(ByteBuffer entry) {
+    final int pathLength = entry.getShort() & 0xffff;
+    entry.position(entry.position() + pathLength + ID_LENGTH + 16);
+  }
+
+  /**
+   * Copies the tracks of an entry out of the mapped snapshot.
+   */
+  private class SnapshotTrackSource implements Playgist.TrackSource {
+    /** Position of the checksum, which the tracks follow. */
+    private final int position;
+
+    SnapshotTrackSource(int position) {
+      this.position = position;
+    }
+
+    public long getChecksum() {
+      return buffer.getLong(position);
+    }
+
+    public int size() {
+      return buffer.getInt(position + 8);
+    }
+
+    public PackedTrackList readTracks() {
+      final ByteBuffer entry = buffer.duplicate();
+      entry.position(position + 8);
+      final int count = entry.getInt();
+      final PackedTrackList tracks = new PackedTrackList(count);
+
+      for (int i = 0; i < count; i++) {
+        tracks.add(entry.getLong(), entry.getLong());
+      }
+
+      return tracks;
+    }
+  }
+
+  /**
+   * Writes a snapshot of a tree. Entries for files that haven't changed since
+   * a previous snapshot are copied from it; other files are read, from the
+   * working tree if there is one and otherwise from the object database, and
+   * parsed. Files that fail to parse are left out. The snapshot is written to
+   * a temporary file which then replaces the old one.
+   *
+   * @param file
+   * @param repo
+   * @param workDir working directory that playlists are read from, or
+   *        <code>null</code> if they are read from the object database
+   * @param treeId
+   * @param paths repository-relative paths of the files in the tree
+   * @param blobIds blob IDs of the files, in the same order
+   * @param previous previous snapshot, or <code>null</code>
+   * @throws IOException
+   */
+  static synchronized void write(File file, Repository repo, File workDir, ObjectId treeId,
+      List<String> paths, List<ObjectId> blobIds, PlaygistSnapshot previous) throws IOException {
+    final long racyAfter = System.currentTimeMillis() - RACY_MILLIS;
+    final File tmp = new File(file.getPath() + ".tmp");
+    final FileChannel channel = new FileOutputStream(tmp).getChannel();
+    int count = 0;
+    int copied = 0;
+
+    try {
+      // Entries are streamed through the buffer, so the snapshot is never
+      // held in memory as a whole
+      final ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+      out.putInt(MAGIC);
+      writeObjectId(out, treeId);
+      out.putInt(0); // Number of entries, filled in below
+
+      for (int i = 0; i < paths.size(); i++) {
+        final String path = paths.get(i);
+        final ObjectId blobId = blobIds.get(i);
+        final File workFile = workDir != null ? new File(workDir, path) : null;
+        final Integer position =
+            previous != null ? previous.findEntry(path, blobId, workFile) : null;
+
+        if (position != null) {
+          final ByteBuffer entry = previous.buffer.duplicate();
+          entry.position(position - 4);
+          entry.limit(position + entry.getInt(position - 4));
+
+          if (entry.remaining() > out.remaining()) {
+            // Straight from the old snapshot
+            PlaygistWriter.drain(out, channel);
+
+            while (entry.hasRemaining()) {
+              channel.write(entry);
+            }
+          } else {
+            out.put(entry);
+          }
+
+          copied++;
+        } else if (!writeEntry(out, channel, repo, path, blobId, workFile, racyAfter)) {
+          continue;
+        }
+
+        count++;
+      }
+
+      PlaygistWriter.drain(out, channel);
+      final ByteBuffer countBuf = ByteBuffer.allocate(4);
+      countBuf.putInt(0, count);
+
+      for (long at = 4 + ID_LENGTH; countBuf.hasRemaining();) {
+        at += channel.write(countBuf, at);
+      }
+    } finally {
+      channel.close();
+    }
+
+    if (!tmp.renameTo(file)) {
+      file.delete();
+
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Failed to replace " + file);
+      }
+    }
+
+    LOG.info("Wrote snapshot of {} playlists ({} reused)", count, copied);
+  }
+
+  /**
+   * Parses a playlist and writes its entry. The playlist is read and checked
+   * against the layout before anything is written.
+   *
+   * @param workFile the working file, or <code>null</code> to read the blob
+   * @param racyAfter working files modified after this time aren't stamped
+   * @return <code>false</code> if the playlist can't be read or doesn't fit
+   *         the layout, and was left out
+   * @throws IOException if the entry can't be written
+   */
+  private static boolean writeEntry(ByteBuffer out, WritableByteChannel channel,
+      Repository repo, String path, ObjectId blobId, File workFile, long racyAfter)
+      throws IOException {
+    long fileLength = NO_STAT;
+    long lastModified = NO_STAT;
+    final Map<String, String> metadata = new TreeMap<String, String>();
+    final PackedTrackList tracks = new PackedTrackList();
+    final byte[] pathBytes;
+    final byte[][] strings;
+    int length;
+
+    try {
+      final ByteBuffer contents;
+
+      if (workFile != null) {
+        // Stamped before reading: a change made meanwhile makes the stamp stale
+        fileLength = workFile.length();
+        lastModified = workFile.lastModified();
+
+        if (lastModified <= 0 || lastModified > racyAfter) {
+          lastModified = NO_STAT;
+        }
+
+        contents = readFile(workFile);
+      } else {
+        final ObjectLoader loader = repo.openBlob(blobId);
+
+        if (loader == null) {
+          throw new IOException("Missing blob " + blobId.name());
+        }
+
+        contents = ByteBuffer.wrap(loader.getCachedBytes());
+      }
+
+      Playgist.read(contents, metadata, tracks);
+
+      pathBytes = checkShortLength(path.getBytes(UTF_8), "Path");
+      length = 2 + pathBytes.length + ID_LENGTH + 16 + 2 + 8 + 4 + tracks.size() * 16;
+      strings = new byte[metadata.size() * 2][];
+      int i = 0;
+
+      if (metadata.size() > MAX_SHORT_LENGTH) {
+        throw new IOException("Too many metadata entries: " + metadata.size());
+      }
+
+      for (Map.Entry<String, String> property : metadata.entrySet()) {
+        strings[i] = checkShortLength(property.getKey().getBytes(UTF_8), "Metadata key");
+        strings[i + 1] = property.getValue().getBytes(UTF_8);
+        length += 2 + strings[i].length + 4 + strings[i + 1].length;
+        i += 2;
+      }
+    } catch (IOException e) {
+      LOG.info("Left {} out of the snapshot: {}", path, e.getMessage());
+      return false;
+    }
+
+    PlaygistWriter.ensureRemaining(out, channel, 4 + 2);
+    out.putInt(length);
+    out.putShort((short) pathBytes.length);
+    PlaygistWriter.put(out, channel, pathBytes);
+    PlaygistWriter.ensureRemaining(out, channel, ID_LENGTH + 16 + 2);
+    writeObjectId(out, blobId);
+    out.putLong(fileLength).putLong(lastModified);
+    out.putShort((short) metadata.size());
+
+    for (int i = 0; i < strings.length; i += 2) {
+      PlaygistWriter.ensureRemaining(out, channel, 2);
+      out.putShort((short) strings[i].length);
+      PlaygistWriter.put(out, channel, strings[i]);
+      PlaygistWriter.ensureRemaining(out, channel, 4);
+      out.putInt(strings[i + 1].length);
+      PlaygistWriter.put(out, channel, strings[i + 1]);
+    }
+
+    PlaygistWriter.ensureRemaining(out, channel, 8 + 4);
+    out.putLong(tracks.getChecksum());
+    out.putInt(tracks.size());
+
+    for (int i = 0; i < tracks.size(); i++) {
+      PlaygistWriter.ensureRemaining(out, channel, 16);
+      out.putLong(tracks.getHigh(i)).putLong(tracks.getLow(i));
+    }
+
+    return true;
+  }
+
+  /**
+   * Makes sure that a string fits behind a short length prefix.
+   *
+   * @throws IOException if it doesn't
+   */
+  private static byte[] checkShortLength(byte[] bytes, String what) throws IOException {
+    if (bytes.length > MAX_SHORT_LENGTH) {
+      throw new IOException(what + " too long for the snapshot: " + bytes.length + " bytes");
+    }
+
+    return bytes;
+  }
+
+  private static ByteBuffer readFile(File file) throws IOException {
+    final FileChannel channel = new FileInputStream(file).getChannel();
+
+    try {
+      final ByteBuffer buf = ByteBuffer.allocate((int) channel.size());
+
+      while (buf.hasRemaining() && channel.read(buf) >= 0) {
+      }
+
+      buf.flip();
+      return buf;
+    } finally {
+      channel.close();
+    }
+  }
+
+  private static ObjectId readObjectId(ByteBuffer buf) {
+    final byte[] raw = new byte[ID_LENGTH];
+    buf.get(raw);
+    return ObjectId.fromRaw(raw);
+  }
+
+  private static void writeObjectId(ByteBuffer buf, ObjectId id) {
+    final byte[] raw = new byte[ID_LENGTH];
+    id.copyRawTo(raw, 0);
+    buf.put(raw);
+  }
+
+  private static String readString(ByteBuffer buf, int length) {
+    final byte[] bytes = new byte[length];
+    buf.get(bytes);
+    return new String(bytes, UTF_8);
+  }
+}
@@ -0,0 +1,145 @@
+package orchestra.playlist.git;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Serializes playgists through a reused direct buffer. Files are written to a
+ * temporary file next to the playlist, which then replaces it, so a crash
+ * leaves either the old or the new version and never a half-written one.
+ *
+ * <p>
+ * Methods are synchronized, since they share the buffer.
+ */
+class PlaygistWriter {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final PlaygistFormat format;
+
+  private final FsyncPolicy fsyncPolicy;
+
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+  PlaygistWriter(PlaygistFormat format, FsyncPolicy fsyncPolicy) {
+    this.format = format;
+    this.fsyncPolicy = fsyncPolicy;
+  }
+
+  /**
+   * Writes a playlist to a file, replacing it.
+   *
+   * @param gist
+   * @param file
+   * @return the contents written
+   * @throws IOException
+   */
+  synchronized byte[] write(Playgist gist, File file) throws IOException {
+    final byte[] contents = serialize(gist);
+    final File tmp = new File(file.getParentFile(), "." + file.getName() + ".tmp");
+    boolean written = false;
+
+    try {
+      final FileChannel channel = new FileOutputStream(tmp).getChannel();
+
+      try {
+        final ByteBuffer buf = ByteBuffer.wrap(contents);
+
+        while (buf.hasRemaining()) {
+          channel.write(buf);
+        }
+
+        if (fsyncPolicy != FsyncPolicy.NEVER) {
+          channel.force(fsyncPolicy == FsyncPolicy.DATA_AND_METADATA);
+        }
+      } finally {
+        channel.close();
+      }
+
+      if (!tmp.renameTo(file)) {
+        // Windows won't rename over an existing file
+        file.delete();
+
+        if (!tmp.renameTo(file)) {
+          throw new IOException("Failed to replace " + file);
+        }
+      }
+
+      written = true;
+      return contents;
+    } finally {
+      if (!written) {
+        tmp.delete();
+      }
+    }
+  }
+
+  /**
+   * Serializes a playlist in the same format as it's written to disk.
+   *
+   * @param gist
+   * @return
+   * @throws IOException
+   */
+  synchronized byte[] serialize(Playgist gist) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    write(gist, Channels.newChannel(bytes));
+    return bytes.toByteArray();
+  }
+
+  private void write(Playgist gist, WritableByteChannel out) throws IOException {
+    buffer.clear();
+
+    if (format == PlaygistFormat.BINARY) {
+      BinaryPlaygist.write(gist.getMetadata(), gist.getPackedTracks(), out, buffer);
+    } else {
+      TextPlaygist.write(gist.getMetadata(), gist.getPackedTracks(), out, buffer);
+    }
+
+    drain(buffer, out);
+  }
+
+  /**
+   * Writes the contents of a buffer and clears it.
+   */
+  static void drain(ByteBuffer buf, WritableByteChannel out) throws IOException {
+    buf.flip();
+
+    while (buf.hasRemaining()) {
+      out.write(buf);
+    }
+
+    buf.clear();
+  }
+
+  /**
+   * Makes room for <code>n</code> bytes, which must not exceed the capacity,
+   * by draining the buffer if needed.
+   */
+  static void ensureRemaining(ByteBuffer buf, WritableByteChannel out, int n)
+      throws IOException {
+    if (buf.remaining() < n) {
+      drain(buf, out);
+    }
+  }
+
+  /**
+   * Puts bytes that may not fit in the buffer at once.
+   */
+  static void put(ByteBuffer buf, WritableByteChannel out, byte[] bytes) throws IOException {
+    for (int offset = 0; offset < bytes.length;) {
+      if (!buf.hasRemaining()) {
+        drain(buf, out);
+      }
+
+      final int n = Math.min(buf.remaining(), bytes.length - offset);
+      buf.put(bytes, offset, n);
+      offset += n;
+    }
+  }
+}
@@ -0,0 +1,286 @@
+package orchestra.playlist.git;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import orchestra.playlist.PackedTrackList;
+import orchestra.util.Base16;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads playgists in the {@link PlaygistFormat#TEXT} format straight from
+ * bytes, which may be a memory-mapped file. Lines are found by scanning for
+ * line terminators in the buffer and track IDs are decoded in place, so a
+ * track line costs no allocation. Only metadata lines are decoded to strings.
+ *
+ * <p>
+ * Results are the same as reading the file line by line with
+ * {@link java.io.BufferedReader#readLine()} and loading each metadata line
+ * with {@link java.util.Properties#load(java.io.Reader)}. Lines that are
+ * neither metadata nor a track ID are skipped and logged.
+ */
+final class TextPlaygist {
+  private static final Logger LOG = LoggerFactory.getLogger(TextPlaygist.class);
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final byte[] METADATA_PREFIX = Playgist.METADATA_PREFIX.getBytes(UTF_8);
+
+  private static final byte[] METADATA_SEPARATOR = " = ".getBytes(UTF_8);
+
+  /** Same line separator as {@link java.io.BufferedWriter#newLine()}. */
+  private static final byte[] LINE_SEPARATOR =
+      System.getProperty("line.separator", "\n").getBytes(UTF_8);
+
+  private TextPlaygist() {
+  }
+
+  /**
+   * Reads metadata and tracks, from the buffer's position to its limit. If
+   * <code>tracks</code> is null, stops at the first line that isn't metadata.
+   * Lines that are neither are skipped, so that one bad line doesn't cost the
+   * whole playlist.
+   *
+   * @throws IOException
+   */
+  static void read(ByteBuffer buf, Map<String, String> metadata, PackedTrackList tracks)
+      throws IOException {
+    final int end = buf.limit();
+    final long[] id = new long[2];
+    int pos = buf.position();
+    int skipped = 0;
+    String firstSkipped = null;
+
+    while (pos < end) {
+      // Fast path for the common case: a track ID and a line terminator
+      if (tracks != null && pos + Base16.LENGTH_128 < end && buf.get(pos) != '>') {
+        final byte terminator = buf.get(pos + Base16.LENGTH_128);
+
+        if (terminator == '\n' || terminator == '\r') {
+          try {
+            Base16.decode(buf, pos, id);
+            tracks.add(id[0], id[1]);
+            pos += Base16.LENGTH_128 + 1;
+
+            if (terminator == '\r' && pos < end && buf.get(pos) == '\n') {
+              pos++;
+            }
+
+            continue;
+          } catch (IllegalArgumentException e) {
+            // Not a track ID; reported below
+          }
+        }
+      }
+
+      int eol = pos;
+
+      for (byte b; eol < end && (b = buf.get(eol)) != '\n' && b != '\r'; eol++) {
+      }
+
+      // Same line terminators as readLine: \n, \r or \r\n
+      int next = eol + 1;
+
+      if (eol + 1 < end && buf.get(eol) == '\r' && buf.get(eol + 1) == '\n') {
+        next++;
+      }
+
+      final int length = eol - pos;
+
+      if (length >= 2 && buf.get(pos) == '>' && buf.get(pos + 1) == ' ') {
+        parseMetadataLine(decode(buf, pos + 2, eol), metadata);
+      } else if (length > 0) {
+        if (tracks == null) {
+          break;
+        }
+
+        if (decodeTrack(buf, pos, length, id)) {
+          tracks.add(id[0], id[1]);
+        } else if (skipped++ == 0) {
+          firstSkipped = decode(buf, pos, eol);
+        }
+      }
+
+      pos = next;
+    }
+
+    if (skipped > 0) {
+      LOG.warn("Skipped {} lines that aren't track IDs, the first being \"{}\"", skipped,
+          firstSkipped);
+    }
+  }
+
+  private static boolean decodeTrack(ByteBuffer buf, int pos, int length, long[] id) {
+    if (length != Base16.LENGTH_128) {
+      return false;
+    }
+
+    try {
+      Base16.decode(buf, pos, id);
+      return true;
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Writes metadata and tracks through a buffer, which is drained to the
+   * channel when full. Leaves the rest in the buffer.
+   *
+   * @throws IOException
+   */
+  static void write(Map<String, String> metadata, PackedTrackList tracks,
+      WritableByteChannel out, ByteBuffer buf) throws IOException {
+    for (Map.Entry<String, String> property : metadata.entrySet()) {
+      PlaygistWriter.put(buf, out, METADATA_PREFIX);
+      PlaygistWriter.put(buf, out, property.getKey().getBytes(UTF_8));
+      PlaygistWriter.put(buf, out, METADATA_SEPARATOR);
+      PlaygistWriter.put(buf, out, property.getValue().getBytes(UTF_8));
+      PlaygistWriter.put(buf, out, LINE_SEPARATOR);
+    }
+
+    final int lineLength = Base16.LENGTH_128 + LINE_SEPARATOR.length;
+
+    for (int i = 0, n = tracks.size(); i < n; i++) {
+      PlaygistWriter.ensureRemaining(buf, out, lineLength);
+      Base16.encode(tracks.getHigh(i), tracks.getLow(i), buf);
+      buf.put(LINE_SEPARATOR);
+    }
+  }
+
+  private static String decode(ByteBuffer buf, int start, int end) {
+    final byte[] bytes = new byte[end - start];
+
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = buf.get(start + i);
+    }
+
+    return new String(bytes, UTF_8);
+  }
+
+  /**
+   * Parses a <code>key = value</code> line the way
+   * {@link java.util.Properties} does: leading whitespace is skipped, lines
+   * starting with <code>#</code> or <code>!</code> are comments, the key ends
+   * at the first unescaped <code>=</code>, <code>:</code> or whitespace, and
+   * escapes are resolved in both key and value.
+   *
+   * @throws IllegalArgumentException on a malformed <code>\\uxxxx</code>
+   *         escape, like {@link java.util.Properties}
+   */
+  static void parseMetadataLine(String line, Map<String, String> metadata)
+      throws IllegalArgumentException {
+    int start = 0;
+    int limit = line.length();
+
+    while (start < limit && isWhitespace(line.charAt(start))) {
+      start++;
+    }
+
+    if (start == limit || line.charAt(start) == '#' || line.charAt(start) == '!') {
+      return;
+    }
+
+    // A trailing unescaped backslash would continue the line; there is none
+    boolean precedingBackslash = false;
+
+    for (int i = start; i < limit; i++) {
+      precedingBackslash = line.charAt(i) == '\\' && !precedingBackslash;
+    }
+
+    if (precedingBackslash) {
+      limit--;
+    }
+
+    int keyEnd = start;
+    int valueStart = limit;
+    boolean hasSeparator = false;
+    precedingBackslash = false;
+
+    for (; keyEnd < limit; keyEnd++) {
+      final char c = line.charAt(keyEnd);
+
+      if (!precedingBackslash && (c == '=' || c == ':')) {
+        valueStart = keyEnd + 1;
+        hasSeparator = true;
+        break;
+      } else if (!precedingBackslash && isWhitespace(c)) {
+        valueStart = keyEnd + 1;
+        break;
+      }
+
+      precedingBackslash = c == '\\' && !precedingBackslash;
+    }
+
+    for (; valueStart < limit; valueStart++) {
+      final char c = line.charAt(valueStart);
+
+      if (!isWhitespace(c)) {
+        if (!hasSeparator && (c == '=' || c == ':')) {
+          hasSeparator = true;
+        } else {
+          break;
+        }
+      }
+    }
+
+    metadata.put(unescape(line, start, keyEnd), unescape(line, valueStart, limit));
+  }
+
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\f';
+  }
+
+  private static String unescape(String s, int start, int end) {
+    if (s.indexOf('\\', start) < 0 || s.indexOf('\\', start) >= end) {
+      return s.substring(start, end);
+    }
+
+    final StringBuilder out = new StringBuilder(end - start);
+
+    for (int i = start; i < end;) {
+      char c = s.charAt(i++);
+
+      if (c == '\\' && i < end) {
+        c = s.charAt(i++);
+
+        if (c == 'u') {
+          if (i + 4 > end) {
+            throw new IllegalArgumentException("Malformed \\uxxxx encoding.");
+          }
+
+          int value = 0;
+
+          for (int j = 0; j < 4; j++) {
+            final int digit = Character.digit(s.charAt(i++), 16);
+
+            if (digit < 0) {
+              throw new IllegalArgumentException("Malformed \\uxxxx encoding.");
+            }
+
+            value = (value << 4) | digit;
+          }
+
+          c = (char) value;
+        } else if (c == 't') {
+          c = '\t';
+        } else if (c == 'r') {
+          c = '\r';
+        } else if (c == 'n') {
+          c = '\n';
+        } else if (c == 'f') {
+          c = '\f';
+        }
+      }
+
+      out.append(c);
+    }
+
+    return out.toString();
+  }
+}
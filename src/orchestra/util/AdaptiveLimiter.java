@@ -0,0 +1,197 @@
+package orchestra.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of requests in flight, with a limit that adapts between
+ * two bounds. The limit grows by one whenever a request has waited longer
+ * than the target wait time for a slot, and shrinks by one when requests
+ * have found a free slot without waiting and slots have been left idle for
+ * the shrink delay.
+ *
+ * <p>
+ * Each request in flight holds a numbered slot, which is what the
+ * utilization is reported for. Slots with low numbers are handed out first,
+ * so the slots above the limit go idle when it shrinks.
+ *
+ * <pre>
+ * int slot = limiter.acquire();
+ * try {
+ *   ...
+ * } finally {
+ *   limiter.release(slot);
+ * }
+ * </pre>
+ */
+public class AdaptiveLimiter {
+  private final int minLimit;
+
+  private final int maxLimit;
+
+  private final long targetWaitNanos;
+
+  private final long shrinkDelayNanos;
+
+  private final boolean[] busy;
+
+  private final long[] busySince;
+
+  private final long[] busyNanos;
+
+  private final long startNanos = System.nanoTime();
+
+  private final Histogram waitHistogram = new Histogram();
+
+  private int limit;
+
+  private int inFlight;
+
+  private int waiting;
+
+  /** Last time the limit changed, or a request had to wait. */
+  private long lastPressureNanos = startNanos;
+
+  /**
+   * @param minLimit lowest limit, at least 1
+   * @param maxLimit highest limit
+   * @param targetWaitMillis longest a request should wait for a slot
+   * @param shrinkDelayMillis how long there must be no waiting before the
+   *        limit shrinks
+   */
+  public AdaptiveLimiter(int minLimit, int maxLimit, long targetWaitMillis,
+      long shrinkDelayMillis) {
+    if (minLimit < 1 || maxLimit < minLimit) {
+      throw new IllegalArgumentException("Bad bounds: " + minLimit + ".." + maxLimit);
+    }
+
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.targetWaitNanos = TimeUnit.MILLISECONDS.toNanos(targetWaitMillis);
+    this.shrinkDelayNanos = TimeUnit.MILLISECONDS.toNanos(shrinkDelayMillis);
+    this.busy = new boolean[maxLimit];
+    this.busySince = new long[maxLimit];
+    this.busyNanos = new long[maxLimit];
+    this.limit = minLimit;
+  }
+
+  /**
+   * Waits for a slot. If the thread is interrupted while waiting, it keeps
+   * waiting and the interrupt status is set again on return.
+   *
+   * @return the slot, to be passed to {@link #release(int)}
+   */
+  public synchronized int acquire() {
+    final long start = System.nanoTime();
+    boolean interrupted = false;
+    waiting++;
+
+    try {
+      while (inFlight >= limit) {
+        final long waited = System.nanoTime() - start;
+        lastPressureNanos = System.nanoTime();
+
+        if (waited >= targetWaitNanos && limit < maxLimit) {
+          limit++;
+          continue;
+        }
+
+        try {
+          TimeUnit.NANOSECONDS.timedWait(this, Math.max(1, targetWaitNanos - waited));
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      waiting--;
+
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    final long now = System.nanoTime();
+    waitHistogram.record(TimeUnit.NANOSECONDS.toMicros(now - start));
+    int slot = 0;
+
+    while (busy[slot]) {
+      slot++;
+    }
+
+    busy[slot] = true;
+    busySince[slot] = now;
+    inFlight++;
+    return slot;
+  }
+
+  /**
+   * Frees a slot taken by {@link #acquire()}.
+   *
+   * @param slot
+   */
+  public synchronized void release(int slot) {
+    if (!busy[slot]) {
+      throw new IllegalStateException("Slot not in use: " + slot);
+    }
+
+    final long now = System.nanoTime();
+    busy[slot] = false;
+    busyNanos[slot] += now - busySince[slot];
+    inFlight--;
+
+    if (waiting == 0 && limit > minLimit && inFlight < limit - 1
+        && now - lastPressureNanos >= shrinkDelayNanos) {
+      limit--;
+      lastPressureNanos = now;
+    }
+
+    notify();
+  }
+
+  public synchronized int getLimit() {
+    return limit;
+  }
+
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  public int getMinLimit() {
+    return minLimit;
+  }
+
+  public int getMaxLimit() {
+    return maxLimit;
+  }
+
+  /**
+   * Returns, for each slot, the fraction of time since the limiter was
+   * created that it has been in use.
+   *
+   * @return one value between 0 and 1 per slot, up to the highest limit
+   */
+  public synchronized double[] getUtilization() {
+    final long now = System.nanoTime();
+    final double elapsed = Math.max(1, now - startNanos);
+    final double[] utilization = new double[maxLimit];
+
+    for (int i = 0; i < maxLimit; i++) {
+      final long nanos = busyNanos[i] + (busy[i] ? now - busySince[i] : 0);
+      utilization[i] = nanos / elapsed;
+    }
+
+    return utilization;
+  }
+
+  /**
+   * @return how long requests waited for a slot, in microseconds
+   */
+  public Histogram getWaitHistogram() {
+    return waitHistogram;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("limit=%d (%d..%d) inFlight=%d wait: %s", limit, minLimit, maxLimit,
+        inFlight, waitHistogram);
+  }
+}
@@ -0,0 +1,199 @@
+package orchestra.util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+/**
+ * Allocation-free hexadecimal codec for 128-bit numbers, such as the 32-digit
+ * track IDs stored in playgists. Numbers are represented as a pair of longs:
+ * the high and low 64 bits.
+ *
+ * @see Base62
+ */
+public class Base16 {
+  /** Number of digits in a 128-bit number. */
+  public static final int LENGTH_128 = 32;
+
+  private static final char[] ALPHABET = "0123456789abcdef".toCharArray();
+
+  /** Maps an ASCII character to its value, or -1 if it's not a hex digit. */
+  private static final byte[] VALUES = new byte[128];
+
+  /**
+   * Returned by {@link #decode64(ByteBuffer, int)} for invalid digits. Also a
+   * valid value, so the digits are checked again when it's seen.
+   */
+  private static final long INVALID = -1L;
+
+  static {
+    Arrays.fill(VALUES, (byte) -1);
+
+    for (int i = 0; i < ALPHABET.length; i++) {
+      VALUES[ALPHABET[i]] = (byte) i;
+      VALUES[Character.toUpperCase(ALPHABET[i])] = (byte) i;
+    }
+  }
+
+  private static int valueOf(int c) {
+    return c < VALUES.length ? VALUES[c] : -1;
+  }
+
+  /**
+   * Decodes {@link #LENGTH_128} hex digits. The result is stored in
+   * <code>out[0]</code> (high bits) and <code>out[1]</code> (low bits).
+   *
+   * @param bytes ASCII-encoded digits
+   * @param offset index of the first digit
+   * @param out array of at least two elements that receives the result
+   * @throws IllegalArgumentException if a byte is not a hex digit
+   */
+  public static void decode(byte[] bytes, int offset, long[] out) throws IllegalArgumentException {
+    long hi = 0;
+    long lo = 0;
+
+    for (int i = 0; i < LENGTH_128; i++) {
+      final int digit = valueOf(bytes[offset + i] & 0xff);
+
+      if (digit < 0) {
+        throw new IllegalArgumentException("Not a hex digit: " + (char) (bytes[offset + i] & 0xff));
+      }
+
+      hi = (hi << 4) | (lo >>> 60);
+      lo = (lo << 4) | digit;
+    }
+
+    out[0] = hi;
+    out[1] = lo;
+  }
+
+  /**
+   * Decodes {@link #LENGTH_128} hex digits, using absolute gets. The buffer's
+   * position is not changed.
+   *
+   * @see #decode(byte[], int, long[])
+   */
+  public static void decode(ByteBuffer buf, int index, long[] out)
+      throws IllegalArgumentException {
+    final long hi = decode64(buf, index);
+    final long lo = decode64(buf, index + 16);
+
+    if (hi == INVALID || lo == INVALID) {
+      for (int i = 0; i < LENGTH_128; i++) {
+        if (valueOf(buf.get(index + i) & 0xff) < 0) {
+          throw new IllegalArgumentException("Not a hex digit: "
+              + (char) (buf.get(index + i) & 0xff));
+        }
+      }
+    }
+
+    out[0] = hi;
+    out[1] = lo;
+  }
+
+  /**
+   * Decodes 16 digits. Invalid digits are detected once, at the end, since
+   * their value of -1 sets the sign bit of <code>invalid</code>.
+   *
+   * @return the value, or {@link #INVALID} if a byte is not a hex digit
+   */
+  private static long decode64(ByteBuffer buf, int index) {
+    long value = 0;
+    int invalid = 0;
+
+    for (int i = 0; i < 16; i++) {
+      final int digit = valueOf(buf.get(index + i) & 0xff);
+      invalid |= digit;
+      value = (value << 4) | (digit & 0xf);
+    }
+
+    return invalid < 0 ? INVALID : value;
+  }
+
+  /**
+   * Decodes {@link #LENGTH_128} hex digits.
+   *
+   * @see #decode(byte[], int, long[])
+   */
+  public static void decode(CharSequence s, int offset, long[] out)
+      throws IllegalArgumentException {
+    long hi = 0;
+    long lo = 0;
+
+    for (int i = 0; i < LENGTH_128; i++) {
+      final int digit = valueOf(s.charAt(offset + i));
+
+      if (digit < 0) {
+        throw new IllegalArgumentException("Not a hex digit: " + s.charAt(offset + i));
+      }
+
+      hi = (hi << 4) | (lo >>> 60);
+      lo = (lo << 4) | digit;
+    }
+
+    out[0] = hi;
+    out[1] = lo;
+  }
+
+  /**
+   * Encodes a 128-bit number as {@link #LENGTH_128} lower-case hex digits,
+   * padded with leading zeros (like <code>%032x</code>).
+   *
+   * @param hi high 64 bits
+   * @param lo low 64 bits
+   * @param dst destination buffer
+   * @param offset index in <code>dst</code> of the first digit
+   */
+  public static void encode(long hi, long lo, byte[] dst, int offset) {
+    for (int i = 15; i >= 0; i--) {
+      dst[offset + i] = (byte) ALPHABET[(int) (hi & 0xf)];
+      dst[offset + 16 + i] = (byte) ALPHABET[(int) (lo & 0xf)];
+      hi >>>= 4;
+      lo >>>= 4;
+    }
+  }
+
+  /**
+   * Puts a 128-bit number as {@link #LENGTH_128} lower-case hex digits at the
+   * buffer's position, and advances it.
+   *
+   * @see #encode(long, long, byte[], int)
+   */
+  public static void encode(long hi, long lo, ByteBuffer dst) {
+    final int offset = dst.position();
+
+    for (int i = 15; i >= 0; i--) {
+      dst.put(offset + i, (byte) ALPHABET[(int) (hi & 0xf)]);
+      dst.put(offset + 16 + i, (byte) ALPHABET[(int) (lo & 0xf)]);
+      hi >>>= 4;
+      lo >>>= 4;
+    }
+
+    dst.position(offset + LENGTH_128);
+  }
+
+  /**
+   * Encodes a 128-bit number as {@link #LENGTH_128} lower-case hex digits.
+   *
+   * @see #encode(long, long, byte[], int)
+   */
+  public static void encode(long hi, long lo, char[] dst, int offset) {
+    for (int i = 15; i >= 0; i--) {
+      dst[offset + i] = ALPHABET[(int) (hi & 0xf)];
+      dst[offset + 16 + i] = ALPHABET[(int) (lo & 0xf)];
+      hi >>>= 4;
+      lo >>>= 4;
+    }
+  }
+
+  /**
+   * Encodes a 128-bit number as a hex string.
+   *
+   * @see #encode(long, long, char[], int)
+   */
+  public static String encode(long hi, long lo) {
+    final char[] buf = new char[LENGTH_128];
+    encode(hi, lo, buf, 0);
+    return new String(buf);
+  }
+}
@@ -1,16 +1,43 @@
 package orchestra.util;
 
 import java.math.BigInteger;
+import java.util.Arrays;
 
 
 /**
  * Encoders and decoders for base-62 formatted data. Uses the alphabet 0..9 a..z
  * A..Z, e.g. '0' => 0, 'a' => 10, 'A' => 35 and 'Z' => 61.
- * 
+ *
+ * <p>
+ * Besides the {@link BigInteger} methods there is an allocation-free codec for
+ * 128-bit numbers, such as Spotify track IDs, represented as a pair of longs:
+ * the high and low 64 bits, both treated as unsigned.
  */
 public class Base62 {
   private static final BigInteger BASE = BigInteger.valueOf(62);
 
+  /** Number of digits needed to represent any 128-bit number. */
+  public static final int LENGTH_128 = 22;
+
+  /** 62**5, the largest power of 62 such that a quotient fits in 32 bits. */
+  private static final long BASE_POW5 = 62L * 62 * 62 * 62 * 62;
+
+  private static final long LOW_32 = 0xffffffffL;
+
+  private static final char[] ALPHABET =
+      "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+
+  /** Maps an ASCII character to its value, or -1 if it's not in the alphabet. */
+  private static final byte[] VALUES = new byte[128];
+
+  static {
+    Arrays.fill(VALUES, (byte) -1);
+
+    for (int i = 0; i < ALPHABET.length; i++) {
+      VALUES[ALPHABET[i]] = (byte) i;
+    }
+  }
+
   /**
    * Returns the index of a byte in the alphabet.
    * 
@@ -27,6 +54,150 @@ public class Base62 {
     return key - '0';
   }
 
+  /**
+   * Returns the value of a character, or -1 if it's not in the alphabet.
+   */
+  private static int valueOf(int c) {
+    return c < VALUES.length ? VALUES[c] : -1;
+  }
+
+  /**
+   * Decodes a base-62 number of at most 128 bits. The result is stored in
+   * <code>out[0]</code> (high bits) and <code>out[1]</code> (low bits).
+   *
+   * @param bytes ASCII-encoded digits
+   * @param offset index of the first digit
+   * @param length number of digits
+   * @param out array of at least two elements that receives the result
+   * @return <code>false</code> if the number doesn't fit in 128 bits
+   * @throws IllegalArgumentException if a byte is not in the alphabet
+   */
+  public static boolean decode(byte[] bytes, int offset, int length, long[] out)
+      throws IllegalArgumentException {
+    long hi = 0;
+    long lo = 0;
+
+    for (int i = offset, end = offset + length; i < end; i++) {
+      final int digit = valueOf(bytes[i] & 0xff);
+
+      if (digit < 0) {
+        throw new IllegalArgumentException("Not a base-62 digit: " + (char) (bytes[i] & 0xff));
+      }
+
+      // (hi, lo) = (hi, lo) * 62 + digit, 32 bits at a time
+      final long p0 = (lo & LOW_32) * 62 + digit;
+      final long p1 = (lo >>> 32) * 62 + (p0 >>> 32);
+      final long q0 = (hi & LOW_32) * 62 + (p1 >>> 32);
+      final long q1 = (hi >>> 32) * 62 + (q0 >>> 32);
+
+      if ((q1 >>> 32) != 0) {
+        return false;
+      }
+
+      lo = (p1 << 32) | (p0 & LOW_32);
+      hi = (q1 << 32) | (q0 & LOW_32);
+    }
+
+    out[0] = hi;
+    out[1] = lo;
+    return true;
+  }
+
+  /**
+   * Decodes a base-62 number of at most 128 bits.
+   *
+   * @see #decode(byte[], int, int, long[])
+   */
+  public static boolean decode(CharSequence s, int offset, int length, long[] out)
+      throws IllegalArgumentException {
+    long hi = 0;
+    long lo = 0;
+
+    for (int i = offset, end = offset + length; i < end; i++) {
+      final int digit = valueOf(s.charAt(i));
+
+      if (digit < 0) {
+        throw new IllegalArgumentException("Not a base-62 digit: " + s.charAt(i));
+      }
+
+      final long p0 = (lo & LOW_32) * 62 + digit;
+      final long p1 = (lo >>> 32) * 62 + (p0 >>> 32);
+      final long q0 = (hi & LOW_32) * 62 + (p1 >>> 32);
+      final long q1 = (hi >>> 32) * 62 + (q0 >>> 32);
+
+      if ((q1 >>> 32) != 0) {
+        return false;
+      }
+
+      lo = (p1 << 32) | (p0 & LOW_32);
+      hi = (q1 << 32) | (q0 & LOW_32);
+    }
+
+    out[0] = hi;
+    out[1] = lo;
+    return true;
+  }
+
+  /**
+   * Encodes a 128-bit number as exactly {@link #LENGTH_128} digits, padded with
+   * leading zeros.
+   *
+   * @param hi high 64 bits
+   * @param lo low 64 bits
+   * @param dst destination buffer
+   * @param offset index in <code>dst</code> of the first digit
+   */
+  public static void encode(long hi, long lo, byte[] dst, int offset) {
+    long l3 = hi >>> 32, l2 = hi & LOW_32, l1 = lo >>> 32, l0 = lo & LOW_32;
+    int i = offset + LENGTH_128;
+
+    // Divide by 62**5 and emit five digits per round. Each partial dividend is
+    // less than 62**5 * 2**32 < 2**63.
+    while (i > offset) {
+      long cur = l3;
+      l3 = cur / BASE_POW5;
+      cur = ((cur % BASE_POW5) << 32) | l2;
+      l2 = cur / BASE_POW5;
+      cur = ((cur % BASE_POW5) << 32) | l1;
+      l1 = cur / BASE_POW5;
+      cur = ((cur % BASE_POW5) << 32) | l0;
+      l0 = cur / BASE_POW5;
+      int rem = (int) (cur % BASE_POW5);
+
+      for (int j = 0; j < 5 && i > offset; j++) {
+        dst[--i] = (byte) ALPHABET[rem % 62];
+        rem /= 62;
+      }
+    }
+  }
+
+  /**
+   * Encodes a 128-bit number as exactly {@link #LENGTH_128} digits.
+   *
+   * @see #encode(long, long, byte[], int)
+   */
+  public static void encode(long hi, long lo, char[] dst, int offset) {
+    long l3 = hi >>> 32, l2 = hi & LOW_32, l1 = lo >>> 32, l0 = lo & LOW_32;
+    int i = offset + LENGTH_128;
+
+    while (i > offset) {
+      long cur = l3;
+      l3 = cur / BASE_POW5;
+      cur = ((cur % BASE_POW5) << 32) | l2;
+      l2 = cur / BASE_POW5;
+      cur = ((cur % BASE_POW5) << 32) | l1;
+      l1 = cur / BASE_POW5;
+      cur = ((cur % BASE_POW5) << 32) | l0;
+      l0 = cur / BASE_POW5;
+      int rem = (int) (cur % BASE_POW5);
+
+      for (int j = 0; j < 5 && i > offset; j++) {
+        dst[--i] = ALPHABET[rem % 62];
+        rem /= 62;
+      }
+    }
+  }
+
   /**
    * Convert a base-62 string known to be a number.
    * 
@@ -44,6 +215,13 @@ public class Base62 {
    * @return
    */
   public static BigInteger decodeBigInteger(byte[] bytes) {
+    final long[] value = new long[2];
+
+    if (bytes.length <= LENGTH_128 && decode(bytes, 0, bytes.length, value)) {
+      return toBigInteger(value[0], value[1]);
+    }
+
+    // Too large for the 128-bit codec
     BigInteger res = BigInteger.ZERO;
     BigInteger multiplier = BigInteger.ONE;
 
@@ -68,24 +246,47 @@ public class Base62 {
       return "0";
     }
     
+    if (i.bitLength() <= 128) {
+      final char[] buf = new char[LENGTH_128];
+      encode(i.shiftRight(64).longValue(), i.longValue(), buf, 0);
+      int start = 0;
+
+      while (buf[start] == '0') {
+        start++;
+      }
+
+      return new String(buf, start, buf.length - start);
+    }
+
+    // Too large for the 128-bit codec
     StringBuffer buf = new StringBuffer();
     BigInteger value = i.add(BigInteger.ZERO); // Clone argument
-    
+
     while (BigInteger.ZERO.compareTo(value) < 0) {
       BigInteger[] divRem = value.divideAndRemainder(BASE);
-      int remainder = divRem[1].intValue();
-      
-      if (remainder < 10) {
-        buf.insert(0, (char) (remainder + '0'));
-      } else if (remainder < 10 + 26) {
-        buf.insert(0, (char) (remainder + 'a' - 10));
-      } else {
-        buf.insert(0, (char) (remainder + 'A' - 10 - 26));
-      }
-      
+      buf.append(ALPHABET[divRem[1].intValue()]);
       value = divRem[0];
     }
 
-    return buf.toString();
+    return buf.reverse().toString();
+  }
+
+  /**
+   * Converts a 128-bit number represented by two longs to a
+   * {@link BigInteger}.
+   *
+   * @param hi high 64 bits
+   * @param lo low 64 bits
+   * @return a non-negative big integer
+   */
+  public static BigInteger toBigInteger(long hi, long lo) {
+    final byte[] magnitude = new byte[16];
+
+    for (int i = 0; i < 8; i++) {
+      magnitude[7 - i] = (byte) (hi >>> (i * 8));
+      magnitude[15 - i] = (byte) (lo >>> (i * 8));
+    }
+
+    return new BigInteger(1, magnitude);
   }
 }
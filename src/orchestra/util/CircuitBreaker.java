@@ -0,0 +1,170 @@
+package orchestra.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops calls to something that keeps failing, and lets them through again
+ * once it has recovered.
+ *
+ * <p>
+ * The breaker is closed to begin with and keeps the outcomes of the last
+ * calls in a window. When the window is full and the share of failures in it
+ * reaches the threshold, the breaker trips open and rejects calls. After the
+ * open time, it turns half-open and lets a single call through as a probe:
+ * if it succeeds, the breaker closes with an empty window; if it fails, it
+ * opens again.
+ *
+ * <pre>
+ * if (breaker.allowRequest()) {
+ *   try {
+ *     ...
+ *     breaker.recordSuccess();
+ *   } catch (Exception e) {
+ *     breaker.recordFailure();
+ *   }
+ * }
+ * </pre>
+ */
+public class CircuitBreaker {
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private final boolean[] window;
+
+  private final double failureThreshold;
+
+  private final long openNanos;
+
+  private State state = State.CLOSED;
+
+  /** Number of outcomes in the window, and the next one to replace. */
+  private int outcomes;
+  private int next;
+
+  private int failures;
+
+  private long openedAt;
+
+  private boolean probing;
+
+  private long tripCount;
+
+  /**
+   * @param windowSize number of recent calls the failure rate is taken over
+   * @param failureThreshold share of failures, between 0 and 1, that trips
+   *        the breaker
+   * @param openMillis how long the breaker stays open before probing
+   */
+  public CircuitBreaker(int windowSize, double failureThreshold, long openMillis) {
+    if (windowSize < 1) {
+      throw new IllegalArgumentException("Window size must be positive: " + windowSize);
+    }
+
+    this.window = new boolean[windowSize];
+    this.failureThreshold = failureThreshold;
+    this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+  }
+
+  /**
+   * Tells whether a call may go ahead. When half-open, only one call at a
+   * time is allowed; its outcome must be recorded.
+   *
+   * @return
+   */
+  public synchronized boolean allowRequest() {
+    if (state == State.OPEN && System.nanoTime() - openedAt >= openNanos) {
+      state = State.HALF_OPEN;
+      probing = false;
+    }
+
+    switch (state) {
+      case CLOSED:
+        return true;
+      case HALF_OPEN:
+        if (probing) {
+          return false;
+        }
+
+        probing = true;
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  public synchronized void recordSuccess() {
+    if (state == State.HALF_OPEN) {
+      close();
+    } else if (state == State.CLOSED) {
+      record(false);
+    }
+  }
+
+  public synchronized void recordFailure() {
+    if (state == State.HALF_OPEN) {
+      trip();
+    } else if (state == State.CLOSED) {
+      record(true);
+
+      if (outcomes == window.length && failures >= failureThreshold * window.length) {
+        trip();
+      }
+    }
+  }
+
+  private void record(boolean failure) {
+    if (outcomes == window.length) {
+      if (window[next]) {
+        failures--;
+      }
+    } else {
+      outcomes++;
+    }
+
+    window[next] = failure;
+    next = (next + 1) % window.length;
+
+    if (failure) {
+      failures++;
+    }
+  }
+
+  private void trip() {
+    state = State.OPEN;
+    openedAt = System.nanoTime();
+    probing = false;
+    tripCount++;
+  }
+
+  private void close() {
+    state = State.CLOSED;
+    outcomes = 0;
+    next = 0;
+    failures = 0;
+    probing = false;
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  /**
+   * @return the number of times the breaker has opened
+   */
+  public synchronized long getTripCount() {
+    return tripCount;
+  }
+
+  /**
+   * @return the share of failures in the current window, or 0 if it's empty
+   */
+  public synchronized double getFailureRate() {
+    return outcomes > 0 ? (double) failures / outcomes : 0;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("%s failureRate=%.2f trips=%d", state, getFailureRate(), tripCount);
+  }
+}
@@ -3,8 +3,11 @@ package orchestra.util;
 import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,6 +16,7 @@ import org.spearce.jgit.lib.Commit;
 import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.GitIndex;
 import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.ObjectWriter;
 import org.spearce.jgit.lib.PersonIdent;
 import org.spearce.jgit.lib.ProgressMonitor;
 import org.spearce.jgit.lib.RefUpdate;
@@ -25,7 +29,6 @@ import org.spearce.jgit.transport.RefSpec;
 import org.spearce.jgit.transport.RemoteConfig;
 import org.spearce.jgit.transport.RemoteRefUpdate;
 import org.spearce.jgit.transport.Transport;
-import org.spearce.jgit.transport.URIish;
 
 
 /**
@@ -48,6 +51,21 @@ public class Git {
   /** git repository. */
   private final Repository repo;
 
+  /** Cached index; re-read only when the file changes on disk. */
+  private GitIndex index;
+
+  /**
+   * Cached HEAD tree. Commits made through this class modify it in place, so
+   * only the changed paths are loaded and written.
+   */
+  private Tree headTree;
+
+  /** Commit that {@link #headTree} belongs to; null for an unborn HEAD. */
+  private ObjectId headTreeCommitId;
+
+  /** Opened on first use; updated by every commit made from then on. */
+  private RevisionIndex revisions;
+
   /**
    * @param repo
    */
@@ -86,29 +104,66 @@ public class Git {
   }
 
   /**
-   * Gets or creates the HEAD tree.
+   * Gets or creates the HEAD tree. The tree is cached and only mapped again
+   * if HEAD has been moved by someone else.
    * 
    * @return
    * @throws IOException
    */
   private Tree getHeadTree() throws IOException {
-    Tree tree = repo.mapTree(Constants.HEAD);
+    final ObjectId head = repo.resolve(Constants.HEAD);
 
-    if (tree == null) {
-      return new Tree(repo);
+    if (headTree == null
+        || (head == null ? headTreeCommitId != null : !head.equals(headTreeCommitId))) {
+      final Tree tree = head != null ? repo.mapTree(head) : null;
+      headTree = tree != null ? tree : new Tree(repo);
+      headTreeCommitId = head;
+    }
+
+    return headTree;
+  }
+
+  private void invalidateHeadTree() {
+    headTree = null;
+    headTreeCommitId = null;
+  }
+
+  /**
+   * Returns the per-file revision index, loading it the first time. It's
+   * brought up to date with HEAD when it's first used.
+   * 
+   * @return
+   */
+  public synchronized RevisionIndex getRevisionIndex() {
+    if (revisions == null) {
+      revisions = RevisionIndex.open(repo);
+    }
+
+    return revisions;
+  }
+
+  /**
+   * Gets the index, which is cached and re-read if it has changed on disk.
+   */
+  private GitIndex getIndex() throws IOException {
+    if (index == null) {
+      index = repo.getIndex();
+    } else {
+      index.rereadIfNecessary();
     }
 
-    return tree;
+    return index;
   }
 
   /**
-   * Adds a set of files to the index (but not to a tree).
+   * Adds a set of files to the index (but not to a tree). The index isn't
+   * written as a tree; commits only take the files they are given.
    * 
    * @param files
    * @throws IOException
    */
-  public ObjectId add(File... files) throws IOException {
-    final GitIndex index = repo.getIndex();
+  public synchronized void add(File... files) throws IOException {
+    final GitIndex index = getIndex();
 
     // Add files to index
     for (File file : files) {
@@ -116,12 +171,16 @@ public class Git {
     }
 
     index.write();
-    return index.writeTree();
   }
 
   /**
    * Commits a set of files to HEAD by first updating both the index and then
-   * the tree.
+   * the tree. Only the trees on the paths of the files are written.
+   * 
+   * <p>
+   * The commit holds HEAD with these files changed, not the whole index:
+   * changes staged to other files stay in the index, uncommitted, until those
+   * files are committed.
    * 
    * @param message commit message
    * @param files files to commit
@@ -129,43 +188,187 @@ public class Git {
    * @throws IOException
    * @throws IllegalArgumentException if a file is not staged in the index
    */
-  public RefUpdate.Result commit(String message, File... files) throws IOException,
-      IllegalArgumentException {
-    final Tree tree = getHeadTree();
-    final GitIndex index = repo.getIndex();
-    boolean writeIndex = false;
+  public synchronized RefUpdate.Result commit(String message, File... files)
+      throws IOException, IllegalArgumentException {
+    boolean committed = false;
 
-    for (File file : files) {
-      final String repoRelativePath = makeRepositoryRelative(file).getPath();
+    try {
+      final Tree tree = getHeadTree();
+      final GitIndex index = getIndex();
+      boolean writeIndex = false;
+
+      final List<String> paths = new ArrayList<String>(files.length);
+
+      for (File file : files) {
+        final String repoRelativePath = makeRepositoryRelative(file).getPath();
+
+        // Update index
+        final GitIndex.Entry indexEntry = index.getEntry(repoRelativePath);
+
+        if (indexEntry == null) {
+          throw new IllegalArgumentException("The file '" + repoRelativePath
+              + "' is not in the index--run `git add` first");
+        } else if (indexEntry.update(file)) {
+          writeIndex = true;
+        }
+
+        // Update file in the tree
+        final ObjectId blobId = indexEntry.getObjectId();
+        TreeEntry treeEntry = tree.findBlobMember(repoRelativePath);
+
+        // Add file to tree if it's new
+        if (treeEntry == null) {
+          treeEntry = tree.addFile(repoRelativePath);
+        } else if (blobId.equals(treeEntry.getId())) {
+          continue;
+        }
+
+        treeEntry.setId(blobId);
+        paths.add(repoRelativePath.replace(File.separatorChar, '/'));
+      }
 
-      // Update index
-      final GitIndex.Entry indexEntry = index.getEntry(repoRelativePath);
+      if (writeIndex) {
+        index.write();
+      }
 
-      if (indexEntry == null) {
-        throw new IllegalArgumentException("The file '" + repoRelativePath
-            + "' is not in the index--run `git add` first");
-      } else if (indexEntry.update(file)) {
-        writeIndex = true;
+      writeModifiedTrees(tree, new ObjectWriter(repo));
+      final RefUpdate.Result result = commitTree(message, tree, paths);
+      committed = true;
+      return result;
+    } finally {
+      if (!committed) {
+        // The cached tree may hold changes that never made it to HEAD
+        invalidateHeadTree();
       }
+    }
+  }
 
-      // Update file in the tree
-      TreeEntry treeEntry = tree.findBlobMember(repoRelativePath);
+  /**
+   * Commits new contents for a set of files straight to the object database:
+   * writes a blob per file and the trees on their paths, without using the
+   * index or the working directory. Works with bare repositories.
+   * 
+   * @param message commit message
+   * @param contents maps a repository-relative path, using '/' as separator,
+   *        to the new contents of the file
+   * @return result of commit operation
+   * @throws IOException
+   */
+  public RefUpdate.Result commit(String message, Map<String, byte[]> contents)
+      throws IOException {
+    return commit(message, contents, false);
+  }
 
-      // Add file to tree if it's new
-      if (treeEntry == null) {
-        treeEntry = tree.addFile(repoRelativePath);
+  /**
+   * Commits new contents for any number of files in one commit. The blobs are
+   * hashed and stored from the given contents; files are never read back from
+   * the working directory.
+   * 
+   * @param message commit message
+   * @param contents maps a repository-relative path, using '/' as separator,
+   *        to the new contents of the file
+   * @param updateIndex if <code>true</code>, the files have already been
+   *        written to the working directory with these contents, and their
+   *        index entries are updated to match
+   * @return result of commit operation
+   * @throws IOException
+   */
+  public synchronized RefUpdate.Result commit(String message, Map<String, byte[]> contents,
+      boolean updateIndex) throws IOException {
+    boolean committed = false;
+
+    try {
+      final Tree tree = getHeadTree();
+      final GitIndex index = updateIndex ? getIndex() : null;
+      final ObjectWriter writer = new ObjectWriter(repo);
+      final List<String> paths = new ArrayList<String>(contents.size());
+
+      for (Map.Entry<String, byte[]> content : contents.entrySet()) {
+        final String path = content.getKey();
+        final ObjectId blobId;
+
+        if (index != null) {
+          // Writes the blob and takes the file's stat info for the entry
+          final File file = new File(repo.getWorkDir(), path);
+          blobId = index.add(repo.getWorkDir(), file, content.getValue()).getObjectId();
+        } else {
+          blobId = writer.writeBlob(content.getValue());
+        }
+
+        TreeEntry treeEntry = tree.findBlobMember(path);
+
+        if (treeEntry == null) {
+          treeEntry = tree.addFile(path);
+        } else if (blobId.equals(treeEntry.getId())) {
+          continue;
+        }
+
+        // Replaces the ID of the trees on the path by null, i.e. modified
+        treeEntry.setId(blobId);
+        paths.add(path);
+      }
+
+      if (index != null) {
+        index.write();
       }
 
-      treeEntry.setId(indexEntry.getObjectId());
+      writeModifiedTrees(tree, writer);
+      final RefUpdate.Result result = commitTree(message, tree, paths);
+      committed = true;
+      return result;
+    } finally {
+      if (!committed) {
+        // The cached tree may hold changes that never made it to HEAD
+        invalidateHeadTree();
+      }
     }
+  }
 
-    if (writeIndex) {
-      index.write();
+  /**
+   * Writes a tree and, first, its subtrees that have been modified.
+   */
+  private static ObjectId writeModifiedTrees(Tree tree, ObjectWriter writer) throws IOException {
+    for (TreeEntry member : tree.members()) {
+      if (member instanceof Tree && member.getId() == null) {
+        writeModifiedTrees((Tree) member, writer);
+      }
     }
 
-    tree.setId(index.writeTree());
+    final ObjectId id = writer.writeTree(tree);
+    tree.setId(id);
+    return id;
+  }
 
-    // Create and persist the commit
+  /**
+   * @param path repository-relative path, using '/' as separator
+   * @return <code>true</code> if there is a file at the path in HEAD
+   * @throws IOException
+   */
+  public synchronized boolean existsInHead(String path) throws IOException {
+    return getHeadTree().findBlobMember(path) != null;
+  }
+
+  /**
+   * @param path repository-relative path, using '/' as separator
+   * @return the ID of the file's blob in HEAD, or <code>null</code> if there
+   *         is no such file
+   * @throws IOException
+   */
+  public synchronized ObjectId getHeadBlobId(String path) throws IOException {
+    final TreeEntry entry = getHeadTree().findBlobMember(path);
+    return entry != null ? entry.getId() : null;
+  }
+
+  /**
+   * Creates a commit of a tree on top of HEAD and moves HEAD to it. If HEAD
+   * can't be moved, the cached tree is dropped, since it no longer matches.
+   * Records the commit in the revision index, if it's open; since the index
+   * can be rebuilt, failing to do so doesn't fail the commit.
+   * 
+   * @param paths paths of the files whose blobs changed
+   */
+  private RefUpdate.Result commitTree(String message, Tree tree, Collection<String> paths)
+      throws IOException {
     final Commit commit = new Commit(repo);
     final RefUpdate updateRef = repo.updateRef(Constants.HEAD);
 
@@ -181,7 +384,30 @@ public class Git {
 
     updateRef.setNewObjectId(commit.getCommitId());
     updateRef.setRefLogMessage(commit.getMessage(), false);
-    return updateRef.update();
+    final RefUpdate.Result result = updateRef.update();
+
+    switch (result) {
+      case NEW:
+      case FAST_FORWARD:
+      case FORCED:
+      case NO_CHANGE:
+        headTreeCommitId = commit.getCommitId();
+
+        if (revisions != null) {
+          try {
+            revisions.update(commit.getCommitId(), updateRef.getOldObjectId(), paths);
+          } catch (IOException e) {
+            LOG.warn("Failed to record commit in the revision index", e);
+            revisions.invalidate();
+          }
+        }
+
+        break;
+      default:
+        invalidateHeadTree();
+    }
+
+    return result;
   }
 
   /**
@@ -189,14 +415,14 @@ public class Git {
    * 
    * @param monitor
    * @return the result of the push operation
-   * @throws IOException
+   * @throws IOException if the transfer fails or the remote rejects an update
    */
   public PushResult pushOriginMaster(final ProgressMonitor monitor) throws IOException {
     try {
       final Transport tx = Transport.open(repo, ORIGIN);
 
       try {
-        return pushSafe(tx, MASTER_REF_SPECS, monitor);
+        return checkPushResult(push(tx, MASTER_REF_SPECS, monitor));
       } finally {
         tx.close();
       }
@@ -229,24 +455,26 @@ public class Git {
   }
 
   /**
-   * A fuzzier version of {@link #push(Transport, Collection, ProgressMonitor)}
-   * that doesn't bail when a transfer is canceled. If a transfer is aborted,
-   * the method returns an empty {@link PushResult}.
+   * Makes sure that every ref update in a push was accepted by the remote.
    * 
-   * @param tx
-   * @param specs
-   * @param monitor
-   * @return
-   * @throws IOException
+   * @param result
+   * @return the result
+   * @throws IOException if an update was rejected
    */
-  private PushResult pushSafe(final Transport tx, Collection<RefSpec> specs,
-      final ProgressMonitor monitor) throws IOException {
-    try {
-      return push(tx, specs, monitor);
-    } catch (final TransportException e) {
-      LOG.warn("Error when pushing", e);
-      return createEmptyPushResult(tx.getURI());
+  private static PushResult checkPushResult(final PushResult result) throws IOException {
+    for (final RemoteRefUpdate update : result.getRemoteUpdates()) {
+      switch (update.getStatus()) {
+        case OK:
+        case UP_TO_DATE:
+          break;
+        default:
+          throw new IOException("Failed to push " + update.getRemoteName() + ": "
+              + update.getStatus()
+              + (update.getMessage() != null ? " (" + update.getMessage() + ")" : ""));
+      }
     }
+
+    return result;
   }
 
   /**
@@ -271,20 +499,4 @@ public class Git {
       return Collections.emptyList();
     }
   }
-
-  /**
-   * Creates an "empty" {@link PushResult} object used instead of an exception
-   * to signal an error when pushing to the repository.
-   * 
-   * @param uri
-   * @return
-   */
-  private static final PushResult createEmptyPushResult(final URIish uri) {
-    return new PushResult() {
-      @Override
-      public URIish getURI() {
-        return uri;
-      }
-    };
-  }
 }
@@ -0,0 +1,85 @@
+package orchestra.util;
+
+/**
+ * Histogram of non-negative values in power-of-two buckets: bucket 0 counts
+ * zeros, and bucket <code>i</code> counts values in
+ * <code>[2<sup>i-1</sup>, 2<sup>i</sup>)</code>. Recording is O(1) and the
+ * histogram takes a fixed amount of memory.
+ */
+public class Histogram {
+  private static final int BUCKETS = 64;
+
+  private final long[] counts = new long[BUCKETS];
+
+  private long count;
+
+  private long sum;
+
+  private long max;
+
+  /**
+   * Records a value; negative values count as 0.
+   *
+   * @param value
+   */
+  public synchronized void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+
+    counts[BUCKETS - Long.numberOfLeadingZeros(value)]++;
+    count++;
+    sum += value;
+    max = Math.max(max, value);
+  }
+
+  public synchronized long getCount() {
+    return count;
+  }
+
+  public synchronized long getMax() {
+    return max;
+  }
+
+  /**
+   * @return the mean of the recorded values, or 0 if there are none
+   */
+  public synchronized double getMean() {
+    return count > 0 ? (double) sum / count : 0;
+  }
+
+  /**
+   * Returns an upper bound of a percentile: the upper end of the bucket it
+   * falls in, but no more than the largest value recorded.
+   *
+   * @param percentile between 0 and 100
+   * @return
+   */
+  public synchronized long getPercentile(double percentile) {
+    final long rank = (long) Math.ceil(count * percentile / 100);
+    long seen = 0;
+
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+
+      if (seen >= rank && seen > 0) {
+        return i == 0 ? 0 : i == BUCKETS - 1 ? max : Math.min(max, (1L << i) - 1);
+      }
+    }
+
+    return max;
+  }
+
+  /**
+   * @return a copy of the bucket counts
+   */
+  public synchronized long[] getBuckets() {
+    return counts.clone();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("count=%d mean=%.1f p50=%d p99=%d max=%d", count, getMean(),
+        getPercentile(50), getPercentile(99), max);
+  }
+}
@@ -0,0 +1,238 @@
+package orchestra.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spearce.jgit.lib.ProgressMonitor;
+
+
+/**
+ * Pushes master to origin on a dedicated thread.
+ *
+ * <p>
+ * Push requests are coalesced: all requests made before a push starts are
+ * served by that single push, which sends whatever master points to at that
+ * moment. Failed pushes are retried with exponential backoff, a limited
+ * number of times: a push that the remote keeps rejecting is given up on
+ * until the next request, and the failure is kept for
+ * {@link #getLastFailure()}.
+ */
+public class PushWorker {
+  private static final Logger LOG = LoggerFactory.getLogger(PushWorker.class);
+
+  private static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 1000;
+
+  private static final long DEFAULT_MAX_BACKOFF_MILLIS = 5 * 60 * 1000;
+
+  private static final int DEFAULT_MAX_RETRIES = 10;
+
+  private final Git git;
+
+  private final ProgressMonitor monitor;
+
+  private final long initialBackoffMillis;
+
+  private final long maxBackoffMillis;
+
+  private final int maxRetries;
+
+  private final Thread thread;
+
+  /** Number of push requests not yet covered by a started push. */
+  private int pendingRequests;
+
+  private boolean shutdown;
+
+  /** Time of the last successful push, or 0. */
+  private volatile long lastSuccessfulPush;
+
+  private volatile int consecutiveFailures;
+
+  /** Why the last push failed; null once a push succeeds. */
+  private volatile Exception lastFailure;
+
+  /**
+   * @param git
+   * @param monitor
+   */
+  public PushWorker(Git git, ProgressMonitor monitor) {
+    this(git, monitor, DEFAULT_INITIAL_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS);
+  }
+
+  /**
+   * @param git
+   * @param monitor
+   * @param initialBackoffMillis delay before the first retry
+   * @param maxBackoffMillis upper bound for the delay between retries
+   */
+  public PushWorker(Git git, ProgressMonitor monitor, long initialBackoffMillis,
+      long maxBackoffMillis) {
+    this(git, monitor, initialBackoffMillis, maxBackoffMillis, DEFAULT_MAX_RETRIES);
+  }
+
+  /**
+   * @param git
+   * @param monitor
+   * @param initialBackoffMillis delay before the first retry
+   * @param maxBackoffMillis upper bound for the delay between retries
+   * @param maxRetries number of retries of a failed push before giving up
+   *        until the next request
+   */
+  public PushWorker(Git git, ProgressMonitor monitor, long initialBackoffMillis,
+      long maxBackoffMillis, int maxRetries) {
+    this.git = git;
+    this.monitor = monitor;
+    this.initialBackoffMillis = initialBackoffMillis;
+    this.maxBackoffMillis = maxBackoffMillis;
+    this.maxRetries = maxRetries;
+    this.thread = new Thread(new Runnable() {
+      public void run() {
+        runPushLoop();
+      }
+    }, "git-push");
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  /**
+   * Requests a push of the current master. Returns immediately.
+   *
+   * @throws IllegalStateException if the worker has been shut down
+   */
+  public synchronized void requestPush() throws IllegalStateException {
+    if (shutdown) {
+      throw new IllegalStateException("Push worker is shut down");
+    }
+
+    pendingRequests++;
+    notifyAll();
+  }
+
+  /**
+   * @return the number of push requests waiting for a push to start
+   */
+  public synchronized int getQueueDepth() {
+    return pendingRequests;
+  }
+
+  /**
+   * @return the time of the last successful push in milliseconds since the
+   *         epoch, or 0 if no push has succeeded yet
+   */
+  public long getLastSuccessfulPush() {
+    return lastSuccessfulPush;
+  }
+
+  /**
+   * @return the number of failed attempts since the last successful push
+   */
+  public int getConsecutiveFailures() {
+    return consecutiveFailures;
+  }
+
+  /**
+   * @return why the last push failed, or <code>null</code> if it succeeded
+   */
+  public Exception getLastFailure() {
+    return lastFailure;
+  }
+
+  /**
+   * Stops accepting requests. Pending requests get one last push attempt,
+   * without retries.
+   */
+  public synchronized void shutdown() {
+    shutdown = true;
+    notifyAll();
+  }
+
+  /**
+   * Waits for the worker to finish after {@link #shutdown()}.
+   *
+   * @param timeoutMillis
+   * @return <code>true</code> if the worker has finished
+   * @throws InterruptedException
+   */
+  public boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+    thread.join(timeoutMillis);
+    return !thread.isAlive();
+  }
+
+  private void runPushLoop() {
+    long backoff = initialBackoffMillis;
+    int retries = 0;
+    boolean retry = false;
+
+    while (true) {
+      synchronized (this) {
+        while (pendingRequests == 0 && !retry && !shutdown) {
+          waitQuietly(0);
+        }
+
+        if (pendingRequests == 0 && !retry) {
+          return;
+        }
+
+        if (pendingRequests > 0) {
+          // New requests get a full set of retries, from the first backoff
+          retries = 0;
+          backoff = initialBackoffMillis;
+        }
+
+        pendingRequests = 0;
+      }
+
+      try {
+        git.pushOriginMaster(monitor);
+        lastSuccessfulPush = System.currentTimeMillis();
+        lastFailure = null;
+        consecutiveFailures = 0;
+        backoff = initialBackoffMillis;
+        retry = false;
+      } catch (Exception e) {
+        lastFailure = e;
+        consecutiveFailures++;
+
+        synchronized (this) {
+          if (shutdown) {
+            LOG.warn("Push failed (attempt " + consecutiveFailures + "), not retrying after shutdown",
+                e);
+            return;
+          }
+
+          retry = retries++ < maxRetries;
+
+          if (!retry) {
+            LOG.error("Push failed (attempt " + consecutiveFailures
+                + "), giving up until the next push request", e);
+            backoff = initialBackoffMillis;
+            continue;
+          }
+
+          LOG.warn("Push failed (attempt " + consecutiveFailures + "), retrying in " + backoff
+              + " ms", e);
+
+          // Anything requested in the meantime is covered by the retry
+          final long deadline = System.currentTimeMillis() + backoff;
+
+          for (long left = backoff; left > 0 && !shutdown; left =
+              deadline - System.currentTimeMillis()) {
+            waitQuietly(left);
+          }
+        }
+
+        backoff = Math.min(backoff * 2, maxBackoffMillis);
+      }
+    }
+  }
+
+  /**
+   * Waits on this object's monitor; must hold the lock.
+   */
+  private void waitQuietly(long millis) {
+    try {
+      wait(millis);
+    } catch (InterruptedException e) {
+      shutdown = true;
+    }
+  }
+}
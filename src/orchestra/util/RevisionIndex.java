@@ -0,0 +1,639 @@
+package orchestra.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spearce.jgit.lib.Commit;
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.Repository;
+import org.spearce.jgit.lib.Tree;
+import org.spearce.jgit.lib.TreeEntry;
+
+/**
+ * Number of commits that touched each file, and the last of them, kept up to
+ * date commit by commit instead of walking the history on every lookup.
+ *
+ * <p>
+ * A commit touches the files that differ from its first parent; a root
+ * commit touches all its files. A file that's deleted is dropped from the
+ * index, so if it's added again its count starts over. The index records the
+ * commit it's up to date with and is stored in the repository's git
+ * directory. Commits made elsewhere, e.g. pulled, are caught up with by
+ * walking only the new commits; if the history has been rewritten, the index
+ * is rebuilt from scratch. Catching up is put off until the index is first
+ * used, or done on a background thread by {@link #catchUpInBackground()}.
+ *
+ * <p>
+ * The file holds a full copy of the index followed by a log of the commits
+ * recorded since, so that a commit costs an append of the paths it changed
+ * rather than a rewrite of every path. The log is folded into a new copy
+ * once it has grown larger than the copy. Layout, big-endian:
+ *
+ * <pre>
+ * int      magic
+ * byte[20] commit the copy is up to date with
+ * int      number of entries
+ * entries:
+ *   short  length of path, then path in UTF-8
+ *   int    number of commits
+ *   byte[20] last commit
+ * records:
+ *   int    length of the rest of the record, after the checksum
+ *   int    CRC-32 of the rest of the record
+ *   byte[20] commit
+ *   byte[20] its first parent; zeros for a root commit
+ *   int    number of changed paths, then the paths as above
+ * </pre>
+ *
+ * A record that is cut short or fails its checksum ends the log.
+ */
+public class RevisionIndex {
+  private static final Logger LOG = LoggerFactory.getLogger(RevisionIndex.class);
+
+  /** File name of the index, in the repository's git directory. */
+  public static final String FILE_NAME = "revisions.index";
+
+  private static final int MAGIC = 0x52564932; // "RVI2"
+
+  private static final int ID_LENGTH = 20;
+
+  private static final int RECORD_HEADER_LENGTH = 8;
+
+  private static final int MAX_PATH_LENGTH = 0xffff;
+
+  /** Smallest log that is folded into a new copy. */
+  private static final long MIN_COMPACT_LENGTH = 64 * 1024;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final Repository repo;
+
+  private final File file;
+
+  private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+  /** Commit the index is up to date with; null if empty. */
+  private ObjectId headId;
+
+  /** Whether the index has been brought up to date with HEAD. */
+  private boolean current;
+
+  /** Whether what's in memory may not match the stored index. */
+  private boolean stale;
+
+  /** Length of the copy at the start of the file; 0 if there's none yet. */
+  private long copyLength;
+
+  /** Length of the log that follows the copy. */
+  private long logLength;
+
+  private final CRC32 crc = new CRC32();
+
+  private RevisionIndex(Repository repo) {
+    this.repo = repo;
+    this.file = new File(repo.getDirectory(), FILE_NAME);
+  }
+
+  /**
+   * Loads the index of a repository. It's brought up to date with HEAD when
+   * it's first used.
+   *
+   * @param repo
+   * @return
+   */
+  public static RevisionIndex open(Repository repo) {
+    final RevisionIndex index = new RevisionIndex(repo);
+    index.reload();
+    return index;
+  }
+
+  /**
+   * Reads the stored index, or starts over if it can't be read.
+   */
+  private void reload() {
+    entries.clear();
+    headId = null;
+    copyLength = 0;
+    logLength = 0;
+    stale = false;
+
+    try {
+      load();
+    } catch (IOException e) {
+      LOG.warn("Rebuilding revision index: {}", e.getMessage());
+      entries.clear();
+      headId = null;
+      copyLength = 0;
+      logLength = 0;
+    }
+  }
+
+  /**
+   * Marks the index as out of date, e.g. after a commit couldn't be
+   * recorded. It's read back and caught up with HEAD when it's next used.
+   */
+  synchronized void invalidate() {
+    stale = true;
+    current = false;
+  }
+
+  /**
+   * Brings the index up to date with HEAD on a background thread. Lookups
+   * made in the meantime wait for it.
+   */
+  public void catchUpInBackground() {
+    final Thread thread = new Thread("revision-index") {
+      @Override
+      public void run() {
+        ensureCurrent();
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * @param path repository-relative path, using '/' as separator
+   * @return the number of commits that touched the file, or 0
+   */
+  public synchronized int getRevision(String path) {
+    ensureCurrent();
+    final Entry entry = entries.get(path);
+    return entry != null ? entry.count : 0;
+  }
+
+  /**
+   * @param path repository-relative path, using '/' as separator
+   * @return the last commit that touched the file, or <code>null</code>
+   */
+  public synchronized ObjectId getLastCommitId(String path) {
+    ensureCurrent();
+    final Entry entry = entries.get(path);
+    return entry != null ? entry.lastCommitId : null;
+  }
+
+  /**
+   * Catches up with HEAD, once. If that fails, the index stays as it was
+   * stored until the next commit catches it up.
+   */
+  private synchronized void ensureCurrent() {
+    if (current) {
+      return;
+    }
+
+    current = true;
+
+    if (stale) {
+      reload();
+    }
+
+    try {
+      final ObjectId head = repo.resolve(Constants.HEAD);
+
+      if (head != null && !head.equals(headId)) {
+        catchUp(head);
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to bring the revision index up to date", e);
+    }
+  }
+
+  /**
+   * Records a commit made on top of a known parent, and appends it to the
+   * stored index.
+   *
+   * @param commitId the new commit
+   * @param parentId its first parent, or <code>null</code>
+   * @param paths paths of the files it changed
+   * @throws IOException
+   */
+  synchronized void update(ObjectId commitId, ObjectId parentId, Collection<String> paths)
+      throws IOException {
+    current = true;
+
+    if (stale) {
+      reload();
+    }
+
+    if (parentId == null ? headId != null : !parentId.equals(headId)) {
+      // Someone else moved HEAD in between, or the index was never caught up
+      catchUp(commitId);
+      return;
+    }
+
+    for (String path : paths) {
+      record(path, commitId);
+    }
+
+    headId = commitId;
+
+    if (copyLength == 0 || logLength >= Math.max(MIN_COMPACT_LENGTH, copyLength)) {
+      save();
+    } else {
+      append(commitId, parentId, paths);
+    }
+  }
+
+  private void record(String path, ObjectId commitId) {
+    Entry entry = entries.get(path);
+
+    if (entry == null) {
+      entry = new Entry();
+      entries.put(path, entry);
+    }
+
+    entry.count++;
+    entry.lastCommitId = commitId;
+  }
+
+  /**
+   * Adds the commits between the indexed commit and <code>head</code>. Falls
+   * back to a full rebuild if they don't all lead back to the indexed commit.
+   */
+  private void catchUp(ObjectId head) throws IOException {
+    List<Commit> commits = newCommits(head, headId);
+
+    if (commits == null) {
+      LOG.info("Rebuilding revision index from {}", head.name());
+      entries.clear();
+      commits = newCommits(head, null);
+    }
+
+    // Oldest first, so that the last commit of each path ends up last
+    for (int i = commits.size() - 1; i >= 0; i--) {
+      final Commit commit = commits.get(i);
+      final ObjectId[] parents = commit.getParentIds();
+      final Tree parentTree =
+          parents != null && parents.length > 0 ? repo.mapCommit(parents[0]).getTree() : null;
+      final Set<String> changed = new HashSet<String>();
+      final Set<String> deleted = new HashSet<String>();
+      diff(commit.getTree(), parentTree, changed, deleted);
+
+      for (String path : deleted) {
+        entries.remove(path);
+      }
+
+      for (String path : changed) {
+        record(path, commit.getCommitId());
+      }
+    }
+
+    headId = head;
+    save();
+  }
+
+  /**
+   * Collects the commits reachable from <code>head</code> but not from
+   * <code>base</code>, newest first.
+   *
+   * @return the commits, or <code>null</code> if some of them lead to a root
+   *         commit without passing <code>base</code>
+   */
+  private List<Commit> newCommits(ObjectId head, ObjectId base) throws IOException {
+    final List<Commit> commits = new ArrayList<Commit>();
+    final Set<ObjectId> seen = new HashSet<ObjectId>();
+    final Deque<ObjectId> pending = new ArrayDeque<ObjectId>();
+    pending.add(head);
+
+    while (!pending.isEmpty()) {
+      final ObjectId id = pending.removeFirst();
+
+      if (id.equals(base) || !seen.add(id)) {
+        continue;
+      }
+
+      final Commit commit = repo.mapCommit(id);
+      commits.add(commit);
+      final ObjectId[] parents = commit.getParentIds();
+
+      if (parents == null || parents.length == 0) {
+        if (base != null) {
+          return null;
+        }
+
+        continue;
+      }
+
+      for (ObjectId parent : parents) {
+        pending.add(parent);
+      }
+    }
+
+    return commits;
+  }
+
+  /**
+   * Collects the paths of the files in <code>tree</code> that differ from
+   * <code>parent</code>, which may be null, and of the files in
+   * <code>parent</code> that are gone.
+   */
+  private static void diff(Tree tree, Tree parent, Set<String> changed, Set<String> deleted)
+      throws IOException {
+    final Map<String, TreeEntry> old = new HashMap<String, TreeEntry>();
+
+    if (parent != null) {
+      for (TreeEntry member : parent.members()) {
+        old.put(member.getName(), member);
+      }
+    }
+
+    for (TreeEntry member : tree.members()) {
+      final TreeEntry previous = old.remove(member.getName());
+
+      if (previous != null && previous.getId().equals(member.getId())) {
+        continue;
+      }
+
+      if (member instanceof Tree) {
+        diff((Tree) member, previous instanceof Tree ? (Tree) previous : null, changed, deleted);
+
+        if (previous != null && !(previous instanceof Tree)) {
+          deleted.add(previous.getFullName());
+        }
+      } else {
+        changed.add(member.getFullName());
+
+        if (previous instanceof Tree) {
+          listFiles(previous, deleted);
+        }
+      }
+    }
+
+    for (TreeEntry gone : old.values()) {
+      listFiles(gone, deleted);
+    }
+  }
+
+  /**
+   * Collects the paths of a file, or of the files in a tree.
+   */
+  private static void listFiles(TreeEntry entry, Set<String> paths) throws IOException {
+    if (entry instanceof Tree) {
+      for (TreeEntry member : ((Tree) entry).members()) {
+        listFiles(member, paths);
+      }
+    } else {
+      paths.add(entry.getFullName());
+    }
+  }
+
+  private void load() throws IOException {
+    if (!file.exists()) {
+      return;
+    }
+
+    final ByteBuffer buf = readFully(file);
+    final int validEnd;
+
+    try {
+      if (buf.getInt() != MAGIC) {
+        throw new IOException("Not a revision index: " + file);
+      }
+
+      headId = readObjectId(buf);
+
+      for (int n = buf.getInt(); n > 0; n--) {
+        final String path = readPath(buf);
+        final Entry entry = new Entry();
+        entry.count = buf.getInt();
+        entry.lastCommitId = readObjectId(buf);
+        entries.put(path, entry);
+      }
+
+      copyLength = buf.position();
+      replay(buf);
+      validEnd = buf.position();
+      logLength = validEnd - copyLength;
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated revision index: " + file);
+    }
+
+    if (validEnd < buf.limit()) {
+      // Appends must follow the last intact record
+      LOG.warn("Dropping {} bytes at the end of {}", buf.limit() - validEnd, file);
+      final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+      try {
+        raf.setLength(validEnd);
+      } finally {
+        raf.close();
+      }
+    }
+  }
+
+  /**
+   * Applies the records of the log, as far as it's intact, and leaves the
+   * buffer at the end of the last one applied.
+   */
+  private void replay(ByteBuffer buf) throws IOException {
+    while (buf.remaining() >= RECORD_HEADER_LENGTH) {
+      final int start = buf.position();
+      final int length = buf.getInt();
+      final int checksum = buf.getInt();
+
+      if (length < 2 * ID_LENGTH + 4 || length > buf.remaining()) {
+        buf.position(start);
+        return;
+      }
+
+      crc.reset();
+      crc.update(buf.array(), buf.position(), length);
+
+      if ((int) crc.getValue() != checksum) {
+        buf.position(start);
+        return;
+      }
+
+      final ObjectId commitId = readObjectId(buf);
+      final ObjectId parentId = readObjectId(buf);
+
+      if (parentId == null ? headId != null : !parentId.equals(headId)) {
+        throw new IOException("Revision index log doesn't follow on: " + file);
+      }
+
+      for (int n = buf.getInt(); n > 0; n--) {
+        record(readPath(buf), commitId);
+      }
+
+      headId = commitId;
+    }
+  }
+
+  /**
+   * Writes the whole index to a temporary file which then replaces the old
+   * one, leaving an empty log.
+   */
+  private void save() throws IOException {
+    int length = 4 + ID_LENGTH + 4;
+    final byte[][] paths = new byte[entries.size()][];
+    int i = 0;
+
+    for (String path : entries.keySet()) {
+      paths[i] = encodePath(path);
+      length += 2 + paths[i].length + 4 + ID_LENGTH;
+      i++;
+    }
+
+    final ByteBuffer buf = ByteBuffer.allocate(length);
+    buf.putInt(MAGIC);
+    writeObjectId(buf, headId);
+    buf.putInt(entries.size());
+    i = 0;
+
+    for (Entry entry : entries.values()) {
+      buf.putShort((short) paths[i].length).put(paths[i]);
+      buf.putInt(entry.count);
+      writeObjectId(buf, entry.lastCommitId);
+      i++;
+    }
+
+    buf.flip();
+
+    final File tmp = new File(file.getPath() + ".tmp");
+    final FileChannel channel = new FileOutputStream(tmp).getChannel();
+
+    try {
+      while (buf.hasRemaining()) {
+        channel.write(buf);
+      }
+    } finally {
+      channel.close();
+    }
+
+    if (!tmp.renameTo(file)) {
+      file.delete();
+
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Failed to replace " + file);
+      }
+    }
+
+    copyLength = length;
+    logLength = 0;
+  }
+
+  /**
+   * Appends the record of a commit to the log.
+   */
+  private void append(ObjectId commitId, ObjectId parentId, Collection<String> paths)
+      throws IOException {
+    final byte[][] encoded = new byte[paths.size()][];
+    int length = 2 * ID_LENGTH + 4;
+    int i = 0;
+
+    for (String path : paths) {
+      encoded[i] = encodePath(path);
+      length += 2 + encoded[i].length;
+      i++;
+    }
+
+    final ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER_LENGTH + length);
+    buf.putInt(length);
+    buf.putInt(0); // Checksum, filled in below
+    writeObjectId(buf, commitId);
+    writeObjectId(buf, parentId);
+    buf.putInt(encoded.length);
+
+    for (byte[] path : encoded) {
+      buf.putShort((short) path.length).put(path);
+    }
+
+    crc.reset();
+    crc.update(buf.array(), RECORD_HEADER_LENGTH, length);
+    buf.putInt(4, (int) crc.getValue());
+    buf.flip();
+
+    final FileChannel channel = new FileOutputStream(file, true).getChannel();
+
+    try {
+      while (buf.hasRemaining()) {
+        channel.write(buf);
+      }
+    } finally {
+      channel.close();
+    }
+
+    logLength += RECORD_HEADER_LENGTH + length;
+  }
+
+  private static ByteBuffer readFully(File file) throws IOException {
+    final FileChannel in = new FileInputStream(file).getChannel();
+
+    try {
+      final ByteBuffer buf = ByteBuffer.allocate((int) in.size());
+
+      while (buf.hasRemaining() && in.read(buf) >= 0) {
+      }
+
+      buf.flip();
+      return buf;
+    } finally {
+      in.close();
+    }
+  }
+
+  private static byte[] encodePath(String path) throws IOException {
+    final byte[] bytes = path.getBytes(UTF_8);
+
+    if (bytes.length > MAX_PATH_LENGTH) {
+      throw new IOException("Path too long for the revision index: " + path);
+    }
+
+    return bytes;
+  }
+
+  private static String readPath(ByteBuffer buf) {
+    final byte[] path = new byte[buf.getShort() & 0xffff];
+    buf.get(path);
+    return new String(path, UTF_8);
+  }
+
+  private static ObjectId readObjectId(ByteBuffer buf) {
+    final byte[] raw = new byte[ID_LENGTH];
+    buf.get(raw);
+
+    for (byte b : raw) {
+      if (b != 0) {
+        return ObjectId.fromRaw(raw);
+      }
+    }
+
+    return null;
+  }
+
+  private static void writeObjectId(ByteBuffer buf, ObjectId id) {
+    final byte[] raw = new byte[ID_LENGTH];
+
+    if (id != null) {
+      id.copyRawTo(raw, 0);
+    }
+
+    buf.put(raw);
+  }
+
+  private static class Entry {
+    int count;
+
+    ObjectId lastCommitId;
+  }
+}
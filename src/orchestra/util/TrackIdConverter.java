@@ -0,0 +1,449 @@
+package orchestra.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * Bulk converter between the three forms of a track ID: base-62 (as used by
+ * Spotify), 32-digit hex (as stored in playgists) and <code>spotify:track:</code>
+ * URIs.
+ *
+ * <p>
+ * Input is one ID per line, in any of the forms; each line is detected
+ * separately, surrounding whitespace is ignored and blank lines are skipped.
+ * IDs are converted straight from the input bytes to the output bytes without
+ * creating a string per line. Large inputs are split into chunks at line
+ * boundaries and converted on a thread pool, and the results are written in
+ * input order. Files are mapped a window at a time, and all windows share one
+ * pool.
+ */
+public class TrackIdConverter {
+  /** The forms a track ID can take. */
+  public enum Format {
+    BASE62, HEX, URI
+  }
+
+  private static final byte[] URI_PREFIX = {
+      's', 'p', 'o', 't', 'i', 'f', 'y', ':', 't', 'r', 'a', 'c', 'k', ':'};
+
+  /** Inputs smaller than this are converted on the calling thread. */
+  private static final int PARALLEL_THRESHOLD = 1 << 20;
+
+  /** Size of the chunks handed to the worker threads. */
+  private static final int CHUNK_SIZE = 1 << 20;
+
+  /** Default size of the part of a file mapped into memory at once. */
+  private static final long MAP_SIZE = 1 << 28;
+
+  /** Longest possible output line (URI form). */
+  private static final int MAX_LINE_LENGTH = URI_PREFIX.length + Base62.LENGTH_128 + 1;
+
+  private final Format target;
+
+  private final int parallelism;
+
+  private long windowSize = MAP_SIZE;
+
+  /**
+   * @param target form to convert IDs to
+   */
+  public TrackIdConverter(Format target) {
+    this(target, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @param target form to convert IDs to
+   * @param parallelism number of worker threads used for large inputs
+   */
+  public TrackIdConverter(Format target, int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("Parallelism must be positive");
+    }
+
+    this.target = target;
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Sets the largest part of an input file mapped into memory at once. A line
+   * must fit in a window.
+   * 
+   * @param windowSize size in bytes
+   * @return
+   */
+  public TrackIdConverter setWindowSize(long windowSize) {
+    if (windowSize < 1) {
+      throw new IllegalArgumentException("Window size must be positive");
+    }
+
+    this.windowSize = windowSize;
+    return this;
+  }
+
+  /**
+   * Converts a file of track IDs. The input is memory-mapped, a window at a
+   * time.
+   *
+   * @param in input file
+   * @param out output file; overwritten if it exists
+   * @return number of converted IDs
+   * @throws IOException
+   * @throws IllegalArgumentException if a line isn't a track ID
+   */
+  public long convert(File in, File out) throws IOException, IllegalArgumentException {
+    final FileChannel src = new FileInputStream(in).getChannel();
+
+    try {
+      final long size = src.size();
+      final FileChannel dst = new FileOutputStream(out).getChannel();
+
+      try {
+        final ExecutorService executor =
+            parallelism > 1 && size >= PARALLEL_THRESHOLD ? newExecutor() : null;
+
+        try {
+          long count = 0;
+
+          for (long position = 0; position < size;) {
+            final ByteBuffer window = src.map(FileChannel.MapMode.READ_ONLY, position,
+                Math.min(windowSize, size - position));
+            int end = window.limit();
+
+            // Cut the window after its last line break, unless it's the last one
+            if (position + end < size) {
+              end = lastLineBreak(window, 0, end) + 1;
+
+              if (end == 0) {
+                throw new IllegalArgumentException("Line too long at byte " + position);
+              }
+
+              window.limit(end);
+            }
+
+            count += convert(window, dst, position, executor);
+            position += end;
+          }
+
+          return count;
+        } finally {
+          if (executor != null) {
+            executor.shutdownNow();
+          }
+        }
+      } finally {
+        dst.close();
+      }
+    } finally {
+      src.close();
+    }
+  }
+
+  /**
+   * Converts a buffer of track IDs, from its position to its limit. The
+   * buffer's position is not changed.
+   *
+   * @param in input buffer
+   * @param out destination channel
+   * @return number of converted IDs
+   * @throws IOException
+   * @throws IllegalArgumentException if a line isn't a track ID
+   */
+  public long convert(ByteBuffer in, WritableByteChannel out) throws IOException,
+      IllegalArgumentException {
+    if (parallelism == 1 || in.remaining() < PARALLEL_THRESHOLD) {
+      return convert(in, out, 0, null);
+    }
+
+    final ExecutorService executor = newExecutor();
+
+    try {
+      return convert(in, out, 0, executor);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private ExecutorService newExecutor() {
+    return Executors.newFixedThreadPool(parallelism);
+  }
+
+  /**
+   * @param executor pool that converts chunks, or <code>null</code> to
+   *        convert on the calling thread
+   */
+  private long convert(ByteBuffer in, WritableByteChannel out, long baseOffset,
+      ExecutorService executor) throws IOException {
+    final int start = in.position();
+    final int end = in.limit();
+
+    if (executor == null || end - start < PARALLEL_THRESHOLD) {
+      final Chunk chunk = new Chunk(in, start, end, baseOffset);
+      chunk.call();
+      return chunk.writeTo(out);
+    }
+
+    final Queue<Future<Chunk>> pending = new LinkedList<Future<Chunk>>();
+    long count = 0;
+
+    try {
+      for (int position = start; position < end;) {
+        int chunkEnd = end;
+
+        if (end - position > CHUNK_SIZE) {
+          chunkEnd = lastLineBreak(in, position, position + CHUNK_SIZE) + 1;
+
+          if (chunkEnd <= position) {
+            chunkEnd = nextLineBreak(in, position + CHUNK_SIZE, end) + 1;
+          }
+        }
+
+        pending.add(executor.submit(new Chunk(in, position, chunkEnd, baseOffset)));
+        position = chunkEnd;
+
+        // Bound the amount of converted data held in memory
+        if (pending.size() >= 2 * parallelism) {
+          count += await(pending.remove()).writeTo(out);
+        }
+      }
+
+      while (!pending.isEmpty()) {
+        count += await(pending.remove()).writeTo(out);
+      }
+
+      return count;
+    } finally {
+      // Don't leave chunks of a failed window running on the shared pool
+      for (Future<Chunk> future : pending) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  private static Chunk await(Future<Chunk> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while converting track IDs");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Returns the index of the last '\n' in <code>[from, to)</code>, or
+   * <code>from - 1</code> if there is none.
+   */
+  private static int lastLineBreak(ByteBuffer buf, int from, int to) {
+    int i = to - 1;
+
+    while (i >= from && buf.get(i) != '\n') {
+      i--;
+    }
+
+    return i;
+  }
+
+  /**
+   * Returns the index of the first '\n' in <code>[from, to)</code>, or
+   * <code>to - 1</code> if there is none.
+   */
+  private static int nextLineBreak(ByteBuffer buf, int from, int to) {
+    int i = from;
+
+    while (i < to && buf.get(i) != '\n') {
+      i++;
+    }
+
+    return i < to ? i : to - 1;
+  }
+
+  /**
+   * Detects the form of a track ID.
+   *
+   * @param buf input
+   * @param start index of the first byte of the ID
+   * @param end index after the last byte of the ID
+   * @return the form, or <code>null</code> if the bytes can't be a track ID
+   */
+  public static Format detect(ByteBuffer buf, int start, int end) {
+    final int length = end - start;
+
+    if (length == URI_PREFIX.length + Base62.LENGTH_128 && hasUriPrefix(buf, start)) {
+      return Format.URI;
+    } else if (length == Base16.LENGTH_128) {
+      return Format.HEX;
+    } else if (length > 0 && length <= Base62.LENGTH_128) {
+      return Format.BASE62;
+    }
+
+    return null;
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t' || b == '\r' || b == '\f';
+  }
+
+  private static boolean hasUriPrefix(ByteBuffer buf, int start) {
+    for (int i = 0; i < URI_PREFIX.length; i++) {
+      if (buf.get(start + i) != URI_PREFIX[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * A range of whole lines, converted into a private output buffer.
+   */
+  private class Chunk implements Callable<Chunk> {
+    private final ByteBuffer in;
+    private final int start;
+    private final int end;
+    private final long baseOffset;
+
+    private byte[] out;
+    private int length;
+    private long count;
+
+    Chunk(ByteBuffer in, int start, int end, long baseOffset) {
+      this.in = in;
+      this.start = start;
+      this.end = end;
+      this.baseOffset = baseOffset;
+    }
+
+    public Chunk call() {
+      final long[] id = new long[2];
+      final byte[] digits = new byte[Base16.LENGTH_128];
+      out = new byte[Math.max(MAX_LINE_LENGTH,
+          (end - start) / Base62.LENGTH_128 * MAX_LINE_LENGTH)];
+
+      for (int lineStart = start; lineStart < end;) {
+        int lineEnd = lineStart;
+
+        while (lineEnd < end && in.get(lineEnd) != '\n') {
+          lineEnd++;
+        }
+
+        final int next = lineEnd + 1;
+        int idStart = lineStart;
+
+        // Also drops the '\r' of CRLF line breaks
+        while (idStart < lineEnd && isWhitespace(in.get(idStart))) {
+          idStart++;
+        }
+
+        while (lineEnd > idStart && isWhitespace(in.get(lineEnd - 1))) {
+          lineEnd--;
+        }
+
+        if (lineEnd > idStart) {
+          decode(idStart, lineEnd, id, digits);
+          encode(id);
+          count++;
+        }
+
+        lineStart = next;
+      }
+
+      return this;
+    }
+
+    private void decode(int lineStart, int lineEnd, long[] id, byte[] digits) {
+      final Format format = detect(in, lineStart, lineEnd);
+
+      if (format == null) {
+        throw new IllegalArgumentException("Not a track ID at byte " + (baseOffset + lineStart));
+      }
+
+      final int digitsStart = format == Format.URI ? lineStart + URI_PREFIX.length : lineStart;
+      final int n = lineEnd - digitsStart;
+
+      for (int i = 0; i < n; i++) {
+        digits[i] = in.get(digitsStart + i);
+      }
+
+      try {
+        if (format == Format.HEX) {
+          Base16.decode(digits, 0, id);
+        } else if (!Base62.decode(digits, 0, n, id)) {
+          throw new IllegalArgumentException("Track ID larger than 128 bits");
+        }
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("Not a track ID at byte " + (baseOffset + lineStart)
+            + ": " + e.getMessage());
+      }
+    }
+
+    private void encode(long[] id) {
+      if (out.length - length < MAX_LINE_LENGTH) {
+        final byte[] grown = new byte[out.length * 2];
+        System.arraycopy(out, 0, grown, 0, length);
+        out = grown;
+      }
+
+      if (target == Format.URI) {
+        System.arraycopy(URI_PREFIX, 0, out, length, URI_PREFIX.length);
+        length += URI_PREFIX.length;
+      }
+
+      if (target == Format.HEX) {
+        Base16.encode(id[0], id[1], out, length);
+        length += Base16.LENGTH_128;
+      } else {
+        Base62.encode(id[0], id[1], out, length);
+        length += Base62.LENGTH_128;
+      }
+
+      out[length++] = '\n';
+    }
+
+    long writeTo(WritableByteChannel channel) throws IOException {
+      final ByteBuffer buf = ByteBuffer.wrap(out, 0, length);
+
+      while (buf.hasRemaining()) {
+        channel.write(buf);
+      }
+
+      out = null;
+      return count;
+    }
+  }
+
+  /**
+   * Converts a file from the command line:
+   * <code>TrackIdConverter base62|hex|uri input output</code>.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length != 3) {
+      System.err.println("Usage: TrackIdConverter base62|hex|uri <input> <output>");
+      System.exit(1);
+    }
+
+    final TrackIdConverter converter = new TrackIdConverter(Format.valueOf(args[0].toUpperCase()));
+    final long start = System.currentTimeMillis();
+    final long count = converter.convert(new File(args[1]), new File(args[2]));
+    System.err.println("Converted " + count + " IDs in " + (System.currentTimeMillis() - start)
+        + " ms");
+  }
+}
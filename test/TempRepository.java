@@ -0,0 +1,64 @@
+import java.io.File;
+import java.io.IOException;
+
+import org.spearce.jgit.lib.Repository;
+
+/**
+ * Throwaway repositories for tests, in the system's temporary directory.
+ */
+public class TempRepository {
+  private TempRepository() {
+  }
+
+  /**
+   * Creates an empty directory.
+   */
+  public static File createDirectory(String prefix) throws IOException {
+    File dir = File.createTempFile(prefix, null);
+
+    if (!dir.delete() || !dir.mkdir()) {
+      throw new IOException("Failed to create " + dir);
+    }
+
+    return dir;
+  }
+
+  /**
+   * Creates a repository with a working directory.
+   */
+  public static Repository create() throws IOException {
+    Repository repo = new Repository(new File(createDirectory("repo"), ".git"));
+    repo.create();
+    return repo;
+  }
+
+  /**
+   * Creates a bare repository.
+   */
+  public static Repository createBare() throws IOException {
+    Repository repo = new Repository(new File(createDirectory("bare"), "origin.git"));
+    repo.create();
+    return repo;
+  }
+
+  /**
+   * Closes a repository and deletes it, working directory and all.
+   */
+  public static void delete(Repository repo) {
+    File dir = repo.getDirectory().getParentFile();
+    repo.close();
+    delete(dir);
+  }
+
+  public static void delete(File file) {
+    File[] children = file.listFiles();
+
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+
+    file.delete();
+  }
+}
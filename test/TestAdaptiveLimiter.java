@@ -0,0 +1,93 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import orchestra.util.AdaptiveLimiter;
+
+import org.testng.annotations.Test;
+
+public class TestAdaptiveLimiter {
+  /**
+   * Fake backend: each request holds a connection for a while.
+   */
+  private static void request(AdaptiveLimiter limiter, AtomicInteger concurrent,
+      AtomicInteger highest, long millis) throws InterruptedException {
+    int slot = limiter.acquire();
+
+    try {
+      int n = concurrent.incrementAndGet();
+
+      synchronized (highest) {
+        highest.set(Math.max(highest.get(), n));
+      }
+
+      Thread.sleep(millis);
+    } finally {
+      concurrent.decrementAndGet();
+      limiter.release(slot);
+    }
+  }
+
+  private static void load(final AdaptiveLimiter limiter, int threads, final int requests,
+      final long millis, final AtomicInteger highest) throws InterruptedException {
+    final AtomicInteger concurrent = new AtomicInteger();
+    List<Thread> workers = new ArrayList<Thread>();
+
+    for (int i = 0; i < threads; i++) {
+      Thread worker = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int j = 0; j < requests; j++) {
+              request(limiter, concurrent, highest, millis);
+            }
+          } catch (InterruptedException e) {
+          }
+        }
+      };
+      workers.add(worker);
+      worker.start();
+    }
+
+    for (Thread worker : workers) {
+      worker.join();
+    }
+  }
+
+  @Test(groups={"limiter"})
+  public void growsUnderLoadWithinBounds() throws InterruptedException {
+    AdaptiveLimiter limiter = new AdaptiveLimiter(1, 4, 5, 60000);
+    AtomicInteger highest = new AtomicInteger();
+    load(limiter, 16, 5, 20, highest);
+
+    assert limiter.getLimit() == 4 : limiter;
+    assert highest.get() <= 4 : highest;
+    assert limiter.getInFlight() == 0;
+    assert limiter.getWaitHistogram().getCount() == 80;
+
+    double[] utilization = limiter.getUtilization();
+    assert utilization.length == 4;
+
+    for (double u : utilization) {
+      assert u > 0 && u <= 1 : u;
+    }
+  }
+
+  @Test(groups={"limiter"})
+  public void shrinksWhenIdle() throws InterruptedException {
+    AdaptiveLimiter limiter = new AdaptiveLimiter(1, 4, 5, 50);
+    load(limiter, 16, 3, 20, new AtomicInteger());
+    assert limiter.getLimit() > 1 : limiter;
+
+    Thread.sleep(100);
+    int limit = limiter.getLimit();
+
+    for (int i = 0; i < 10; i++) {
+      limiter.release(limiter.acquire());
+      Thread.sleep(60);
+    }
+
+    assert limiter.getLimit() < limit : limiter;
+    assert limiter.getLimit() >= 1;
+  }
+}
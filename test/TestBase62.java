@@ -1,6 +1,7 @@
 
 
 import java.math.BigInteger;
+import java.util.Random;
 
 import orchestra.util.Base62;
 
@@ -11,6 +12,41 @@ public class TestBase62 {
     return Base62.encode(Base62.decodeBigInteger(s));
   }
   
+  /**
+   * Reference decoder: the original digit-by-digit {@link BigInteger}
+   * implementation.
+   */
+  private static BigInteger referenceDecode(String s) {
+    final String alphabet = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
+    BigInteger res = BigInteger.ZERO;
+
+    for (int i = 0; i < s.length(); i++) {
+      res = res.multiply(BigInteger.valueOf(62)).add(BigInteger.valueOf(alphabet.indexOf(s.charAt(i))));
+    }
+
+    return res;
+  }
+
+  /**
+   * Reference encoder: repeated {@link BigInteger} division.
+   */
+  private static String referenceEncode(BigInteger value) {
+    final String alphabet = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
+    StringBuilder buf = new StringBuilder();
+
+    while (value.signum() > 0) {
+      BigInteger[] divRem = value.divideAndRemainder(BigInteger.valueOf(62));
+      buf.append(alphabet.charAt(divRem[1].intValue()));
+      value = divRem[0];
+    }
+
+    return buf.reverse().toString();
+  }
+
+  private static BigInteger toBigInteger(long[] value) {
+    return Base62.toBigInteger(value[0], value[1]);
+  }
+  
   private static String padLeftWithZero(String s, int length) {
     if (length <= s.length()) {
       return s;
@@ -71,4 +107,71 @@ public class TestBase62 {
           padLeftWithZero(decodeEncodeInteger(number), number.length()));
     }
   }
+  
+  @Test(groups={"decode"})
+  public void decode128EqualsBigInteger() {
+    Random random = new Random(62);
+    long[] value = new long[2];
+    
+    for (int i = 0; i < 10000; i++) {
+      BigInteger expected = new BigInteger(1 + random.nextInt(128), random);
+      String s = referenceEncode(expected);
+      
+      assert Base62.decode(s, 0, s.length(), value);
+      assert expected.equals(toBigInteger(value)) : s;
+      assert Base62.decode(s.getBytes(), 0, s.length(), value);
+      assert expected.equals(toBigInteger(value)) : s;
+      assert expected.equals(Base62.decodeBigInteger(s)) : s;
+    }
+  }
+  
+  @Test(groups={"encode"})
+  public void encode128EqualsBigInteger() {
+    Random random = new Random(62);
+    char[] chars = new char[Base62.LENGTH_128];
+    byte[] bytes = new byte[Base62.LENGTH_128 + 2];
+    
+    for (int i = 0; i < 10000; i++) {
+      long hi = random.nextLong() >>> random.nextInt(64);
+      long lo = random.nextLong();
+      BigInteger value = Base62.toBigInteger(hi, lo);
+      String expected = padLeftWithZero(referenceEncode(value), Base62.LENGTH_128);
+      
+      Base62.encode(hi, lo, chars, 0);
+      assert expected.equals(new String(chars)) : value;
+      Base62.encode(hi, lo, bytes, 1);
+      assert expected.equals(new String(bytes, 1, Base62.LENGTH_128)) : value;
+      assert referenceEncode(value).equals(Base62.encode(value)) : value;
+    }
+  }
+  
+  @Test(groups={"decode", "encode"})
+  public void encode128Extremes() {
+    char[] chars = new char[Base62.LENGTH_128];
+    long[] value = new long[2];
+    
+    Base62.encode(0, 0, chars, 0);
+    assert "0000000000000000000000".equals(new String(chars));
+    
+    Base62.encode(-1L, -1L, chars, 0);
+    assert referenceDecode(new String(chars)).equals(BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE));
+    assert Base62.decode(new String(chars), 0, chars.length, value);
+    assert value[0] == -1L && value[1] == -1L;
+  }
+  
+  @Test(groups={"decode"})
+  public void decode128Overflow() {
+    String largeBase62 = "ZZZZZZZZZZZZZZZZZZZZZZ";
+    assert !Base62.decode(largeBase62, 0, largeBase62.length(), new long[2]);
+    assert referenceDecode(largeBase62).equals(Base62.decodeBigInteger(largeBase62));
+  }
+  
+  @Test(groups={"decode"})
+  public void decode128RejectsInvalidDigit() {
+    try {
+      Base62.decode("0mdu7rRY16Kbn3zo-MyRPl", 0, 22, new long[2]);
+      assert false;
+    } catch (IllegalArgumentException e) {
+    }
+  }
 }
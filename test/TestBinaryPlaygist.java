@@ -0,0 +1,214 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import orchestra.playlist.Playlist;
+import orchestra.playlist.git.Playgist;
+import orchestra.playlist.git.PlaygistContainer;
+import orchestra.playlist.git.PlaygistFormat;
+import orchestra.util.Git;
+
+import org.spearce.jgit.lib.Repository;
+import org.testng.annotations.Test;
+
+import de.felixbruns.jotify.media.Track;
+
+public class TestBinaryPlaygist {
+  private static final byte[] MAGIC = {0, 'P', 'G', 'B'};
+
+  private static byte[] readFile(File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buf = new byte[4096];
+
+      for (int n; (n = in.read(buf)) > 0;) {
+        out.write(buf, 0, n);
+      }
+
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static File writeFile(byte[] contents) throws IOException {
+    File file = File.createTempFile("playgist", null);
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(contents);
+    out.close();
+    return file;
+  }
+
+  /**
+   * A binary header with one metadata property, followed by the given bytes.
+   */
+  private static byte[] binary(int flags, int... rest) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(MAGIC, 0, MAGIC.length);
+    out.write(1);
+    out.write(flags);
+    out.write(1);
+    out.write(4);
+    out.write('n');
+    out.write('a');
+    out.write('m');
+    out.write('e');
+    out.write(1);
+    out.write('x');
+
+    for (int b : rest) {
+      out.write(b);
+    }
+
+    return out.toByteArray();
+  }
+
+  private static void assertUnreadable(byte[] contents, String message) throws IOException {
+    File file = writeFile(contents);
+
+    try {
+      Playgist.open(file);
+      assert false : "Read a broken playgist";
+    } catch (IOException e) {
+      assert e.getMessage().contains(message) : e.getMessage();
+    } finally {
+      file.delete();
+    }
+  }
+
+  /**
+   * Stores tracks as text, migrates them to binary and back, and checks that
+   * the text comes back byte for byte.
+   *
+   * @return the flags byte of the binary version
+   */
+  private static int roundTrip(List<Track> tracks) throws Exception {
+    Repository repo = TempRepository.create();
+
+    try {
+      Git git = new Git(repo);
+      PlaygistContainer container = PlaygistContainer.open("test", git);
+      Playlist playlist = container.createPlaylist("Mix");
+      playlist.addTracks(tracks);
+      File file = ((Playgist) container.getPlaylist(playlist.getIdentifier())).getPath();
+      container.close();
+      byte[] text = readFile(file);
+
+      container = PlaygistContainer.open("test", git, new PlaygistContainer.Options()
+          .setFormat(PlaygistFormat.BINARY));
+      assert container.migrate() == 1;
+      container.close();
+      byte[] binary = readFile(file);
+      assert Arrays.equals(Arrays.copyOf(binary, MAGIC.length), MAGIC);
+      assert binary.length < text.length;
+      assert Playgist.open(file).getTracks().equals(tracks);
+
+      container = PlaygistContainer.open("test", git, new PlaygistContainer.Options()
+          .setFormat(PlaygistFormat.TEXT));
+      assert container.migrate() == 1;
+      container.close();
+      assert Arrays.equals(readFile(file), text);
+      return binary[MAGIC.length + 1];
+    } finally {
+      TempRepository.delete(repo);
+    }
+  }
+
+  @Test(groups={"binary"})
+  public void roundTripsDeltaEncoded() throws Exception {
+    List<Track> tracks = new ArrayList<Track>();
+
+    // Close together, so that the differences are small
+    for (int i = 0; i < 500; i++) {
+      tracks.add(new Track(String.format("%016x%016x", 7, 1000 + 3 * i), null, null, null));
+    }
+
+    assert roundTrip(tracks) == 1;
+  }
+
+  @Test(groups={"binary"})
+  public void roundTripsRaw() throws Exception {
+    Random random = new Random(11);
+    List<Track> tracks = new ArrayList<Track>();
+
+    for (int i = 0; i < 500; i++) {
+      tracks.add(new Track(String.format("%016x%016x", random.nextLong(), random.nextLong()),
+          null, null, null));
+    }
+
+    assert roundTrip(tracks) == 0;
+  }
+
+  @Test(groups={"binary"})
+  public void readsHandWrittenFile() throws IOException {
+    // Raw, then delta-encoded: 1:2 and 1:3
+    File raw = writeFile(binary(0, 1, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 2));
+    File delta = writeFile(binary(1, 2, 2, 4, 0, 2));
+
+    try {
+      assert Playgist.open(raw).getName().equals("x");
+      assert Playgist.open(raw).getTracks().get(0).getId()
+          .equals(String.format("%016x%016x", 1, 2));
+      List<Track> tracks = Playgist.open(delta).getTracks();
+      assert tracks.size() == 2;
+      assert tracks.get(0).getId().equals(String.format("%016x%016x", 1, 2));
+      assert tracks.get(1).getId().equals(String.format("%016x%016x", 1, 3));
+    } finally {
+      raw.delete();
+      delta.delete();
+    }
+  }
+
+  @Test(groups={"binary"})
+  public void rejectsTruncatedFile() throws IOException {
+    // Two raw tracks announced, one and a half present
+    byte[] full = binary(0, 2, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 2);
+    byte[] torn = new byte[full.length + 8];
+    System.arraycopy(full, 0, torn, 0, full.length);
+    assertUnreadable(torn, "Truncated");
+
+    // Delta-encoded, cut inside a varint
+    assertUnreadable(binary(1, 1, 0x82), "Truncated");
+
+    // Cut inside the metadata
+    assertUnreadable(Arrays.copyOf(binary(0, 0), MAGIC.length + 6), "Truncated");
+  }
+
+  @Test(groups={"binary"})
+  public void rejectsHugeLengths() throws IOException {
+    // A string of 2^31 - 1 bytes, without allocating it
+    byte[] header = {0, 'P', 'G', 'B', 1, 0, 1, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+        (byte) 0xff, 0x07};
+    assertUnreadable(header, "Truncated");
+
+    // As many tracks
+    assertUnreadable(binary(0, 0xff, 0xff, 0xff, 0xff, 0x07), "Truncated");
+  }
+
+  @Test(groups={"binary"})
+  public void rejectsBadHeader() throws IOException {
+    byte[] version = binary(0, 0);
+    version[MAGIC.length] = 2;
+    assertUnreadable(version, "version");
+
+    // Only the magic tells the formats apart; anything else is text
+    byte[] magic = binary(0, 0);
+    magic[3] = 'X';
+    File file = writeFile(magic);
+
+    try {
+      assert Playgist.open(file).getTracks().isEmpty();
+    } finally {
+      file.delete();
+    }
+  }
+}
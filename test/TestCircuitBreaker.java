@@ -0,0 +1,53 @@
+import orchestra.util.CircuitBreaker;
+import orchestra.util.CircuitBreaker.State;
+
+import org.testng.annotations.Test;
+
+public class TestCircuitBreaker {
+  @Test(groups={"breaker"})
+  public void tripsOnFailureRate() {
+    CircuitBreaker breaker = new CircuitBreaker(4, 0.5, 60000);
+
+    for (int i = 0; i < 3; i++) {
+      assert breaker.allowRequest();
+      breaker.recordFailure();
+    }
+
+    // Window not full yet
+    assert breaker.getState() == State.CLOSED;
+    breaker.recordSuccess();
+    assert breaker.getState() == State.CLOSED;
+    breaker.recordSuccess();
+    breaker.recordSuccess();
+
+    // 1 of the last 4 failed
+    assert breaker.getState() == State.CLOSED;
+    breaker.recordFailure();
+    assert breaker.getState() == State.CLOSED;
+    breaker.recordFailure();
+    assert breaker.getState() == State.OPEN;
+    assert !breaker.allowRequest();
+    assert breaker.getTripCount() == 1;
+  }
+
+  @Test(groups={"breaker"})
+  public void probesWhenHalfOpen() throws InterruptedException {
+    CircuitBreaker breaker = new CircuitBreaker(1, 1, 20);
+    breaker.recordFailure();
+    assert breaker.getState() == State.OPEN;
+
+    Thread.sleep(30);
+    assert breaker.allowRequest();
+    assert breaker.getState() == State.HALF_OPEN;
+    assert !breaker.allowRequest() : "one probe at a time";
+    breaker.recordFailure();
+    assert breaker.getState() == State.OPEN;
+    assert breaker.getTripCount() == 2;
+
+    Thread.sleep(30);
+    assert breaker.allowRequest();
+    breaker.recordSuccess();
+    assert breaker.getState() == State.CLOSED;
+    assert breaker.allowRequest();
+  }
+}
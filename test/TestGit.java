@@ -0,0 +1,187 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+
+import orchestra.util.Git;
+
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.ObjectWriter;
+import org.spearce.jgit.lib.Repository;
+import org.spearce.jgit.lib.Tree;
+import org.spearce.jgit.lib.TreeEntry;
+import org.testng.annotations.Test;
+
+public class TestGit {
+  private static File write(Repository repo, String path, String contents) throws IOException {
+    File file = new File(repo.getWorkDir(), path);
+    file.getParentFile().mkdirs();
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(contents.getBytes("UTF-8"));
+    out.close();
+    return file;
+  }
+
+  private static ObjectId blobId(Repository repo, String contents) throws IOException {
+    return new ObjectWriter(repo).writeBlob(contents.getBytes("UTF-8"));
+  }
+
+  private static ObjectId headBlobId(Repository repo, String path) throws IOException {
+    TreeEntry entry = repo.mapTree(Constants.HEAD).findBlobMember(path);
+    return entry != null ? entry.getId() : null;
+  }
+
+  private static ObjectId headTreeId(Repository repo, String path) throws IOException {
+    return repo.mapTree(Constants.HEAD).findTreeMember(path).getId();
+  }
+
+  @Test(groups={"git"})
+  public void commitsOnlyTheGivenFiles() throws Exception {
+    Repository repo = TempRepository.create();
+
+    try {
+      Git git = new Git(repo);
+      File a = write(repo, "a", "a1\n");
+      File b = write(repo, "b", "b1\n");
+      git.add(a, b);
+      git.commit("First", a, b);
+
+      // Staged, but not part of the next commit
+      write(repo, "b", "b2\n");
+      git.add(b);
+      write(repo, "a", "a2\n");
+      git.commit("Second", a);
+
+      assert headBlobId(repo, "a").equals(blobId(repo, "a2\n"));
+      assert headBlobId(repo, "b").equals(blobId(repo, "b1\n"));
+
+      // Still staged, and committed with its file
+      assert repo.getIndex().getEntry("b").getObjectId().equals(blobId(repo, "b2\n"));
+      git.commit("Third", b);
+      assert headBlobId(repo, "b").equals(blobId(repo, "b2\n"));
+      assert headBlobId(repo, "a").equals(blobId(repo, "a2\n"));
+    } finally {
+      TempRepository.delete(repo);
+    }
+  }
+
+  @Test(groups={"git"})
+  public void writesOnlyModifiedTrees() throws Exception {
+    Repository repo = TempRepository.create();
+
+    try {
+      Git git = new Git(repo);
+      File f = write(repo, "one/deep/f", "f1\n");
+      File g = write(repo, "two/g", "g1\n");
+      git.add(f, g);
+      git.commit("First", f, g);
+      ObjectId oneId = headTreeId(repo, "one");
+      ObjectId twoId = headTreeId(repo, "two");
+
+      write(repo, "one/deep/f", "f2\n");
+      git.commit("Second", f);
+
+      assert headBlobId(repo, "one/deep/f").equals(blobId(repo, "f2\n"));
+      assert !headTreeId(repo, "one").equals(oneId);
+      assert headTreeId(repo, "two").equals(twoId);
+
+      // A new file in a new directory, next to the existing ones
+      git.commit("Third", Collections.singletonMap("one/new/h", "h1\n".getBytes("UTF-8")));
+      assert headBlobId(repo, "one/new/h").equals(blobId(repo, "h1\n"));
+      assert headBlobId(repo, "one/deep/f").equals(blobId(repo, "f2\n"));
+      assert headTreeId(repo, "two").equals(twoId);
+    } finally {
+      TempRepository.delete(repo);
+    }
+  }
+
+  @Test(groups={"git"})
+  public void notesChangesMadeBySomeoneElse() throws Exception {
+    Repository repo = TempRepository.create();
+
+    try {
+      Git git = new Git(repo);
+      Git other = new Git(repo);
+      File a = write(repo, "a", "a1\n");
+      git.add(a);
+      git.commit("First", a);
+      assert git.existsInHead("a");
+
+      // Moves HEAD and rewrites the index behind the first instance's back
+      File b = write(repo, "b", "b1\n");
+      other.add(b);
+      other.commit("Other", b);
+
+      // The cached tree is dropped, so the other commit is kept
+      assert git.existsInHead("b");
+      git.commit("Second", Collections.singletonMap("a", "a2\n".getBytes("UTF-8")));
+      assert headBlobId(repo, "b").equals(blobId(repo, "b1\n"));
+      assert headBlobId(repo, "a").equals(blobId(repo, "a2\n"));
+
+      // The cached index is re-read, so files staged by the other are found
+      write(repo, "b", "b2\n");
+      File c = write(repo, "c", "c1\n");
+      other.add(c);
+      git.commit("Third", b, c);
+      assert headBlobId(repo, "b").equals(blobId(repo, "b2\n"));
+      assert headBlobId(repo, "c").equals(blobId(repo, "c1\n"));
+    } finally {
+      TempRepository.delete(repo);
+    }
+  }
+
+  @Test(groups={"git"})
+  public void commitsWorkingFilesFromMemory() throws Exception {
+    Repository repo = TempRepository.create();
+
+    try {
+      Git git = new Git(repo);
+      String contents = "> name = Mix\n" + String.format("%032x\n", 7);
+      File file = write(repo, "user/mix", contents);
+      git.commit("First", Collections.singletonMap("user/mix", contents.getBytes("UTF-8")),
+          true);
+
+      // The blob is the file as written, and the index agrees with both
+      InputStream in = new FileInputStream(file);
+      ObjectId written;
+
+      try {
+        written = new ObjectWriter(repo).computeBlobSha1(file.length(), in);
+      } finally {
+        in.close();
+      }
+
+      assert headBlobId(repo, "user/mix").equals(written);
+      assert git.getHeadBlobId("user/mix").equals(written);
+      assert repo.getIndex().getEntry("user/mix").getObjectId().equals(written);
+      assert new String(repo.openBlob(written).getCachedBytes(), "UTF-8").equals(contents);
+
+      // A later commit of the file through the index sees no change
+      assert !repo.getIndex().getEntry("user/mix").update(file);
+    } finally {
+      TempRepository.delete(repo);
+    }
+  }
+
+  @Test(groups={"git"})
+  public void treeIdsMatchTheirContents() throws Exception {
+    Repository repo = TempRepository.create();
+
+    try {
+      Git git = new Git(repo);
+      git.commit("First", Collections.singletonMap("x/y", "y1\n".getBytes("UTF-8")));
+      git.commit("Second", Collections.singletonMap("x/z", "z1\n".getBytes("UTF-8")));
+
+      // What's in the object database, not the cached tree
+      Tree x = repo.mapTree(headTreeId(repo, "x"));
+      assert x.memberCount() == 2;
+      assert x.findBlobMember("y").getId().equals(blobId(repo, "y1\n"));
+      assert x.findBlobMember("z").getId().equals(blobId(repo, "z1\n"));
+    } finally {
+      TempRepository.delete(repo);
+    }
+  }
+}
@@ -0,0 +1,64 @@
+import java.util.ArrayList;
+
+import orchestra.Maestro;
+import orchestra.playlist.Playlist;
+import orchestra.playlist.git.PlaygistContainer;
+import orchestra.util.Git;
+
+import org.spearce.jgit.lib.Repository;
+import org.testng.annotations.Test;
+
+import de.felixbruns.jotify.media.PlaylistContainer;
+import de.felixbruns.jotify.media.Track;
+
+public class TestMaestro {
+  /**
+   * Answers every fetch with a new, unchanged remote container, as Jotify
+   * does.
+   */
+  private static class UnchangedRemoteMaestro extends Maestro {
+    UnchangedRemoteMaestro(PlaygistContainer container) {
+      super(container, 1, 1);
+    }
+
+    @Override
+    protected PlaylistContainer fetchRemotePlaylists() {
+      PlaylistContainer remote = new PlaylistContainer();
+      remote.setRevision(7);
+      remote.setPlaylists(new ArrayList<de.felixbruns.jotify.media.Playlist>());
+      return remote;
+    }
+  }
+
+  private static Track track(int i) {
+    return new Track(String.format("%032x", i), null, null, null);
+  }
+
+  @Test(groups={"maestro"})
+  public void unchangedRemoteIsServedFromCache() throws Exception {
+    Repository repo = TempRepository.create();
+
+    try {
+      PlaygistContainer container = PlaygistContainer.open("test", new Git(repo));
+      Playlist playlist = container.createPlaylist("Mix");
+      playlist.addTrack(track(1));
+      Maestro maestro = new UnchangedRemoteMaestro(container);
+
+      PlaylistContainer first = maestro.playlists();
+      PlaylistContainer second = maestro.playlists();
+      assert first.getPlaylists().size() == 1;
+      assert second == first;
+      assert maestro.getPlaylistsCacheRebuilds() == 1;
+      assert maestro.getPlaylistsCacheHits() == 1;
+
+      // A changed playgist is merged again
+      playlist.addTrack(track(2));
+      assert maestro.playlists() != first;
+      assert maestro.getPlaylistsCacheRebuilds() == 2;
+      assert maestro.getPlaylistsCacheHits() == 1;
+      container.close();
+    } finally {
+      TempRepository.delete(repo);
+    }
+  }
+}
@@ -0,0 +1,128 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import orchestra.playlist.PackedTrackList;
+
+import org.testng.annotations.Test;
+
+import de.felixbruns.jotify.media.Track;
+
+public class TestPackedTrackList {
+  private static Track randomTrack(Random random, int distinct) {
+    return new Track(String.format("%032x", random.nextInt(distinct)), null, null, null);
+  }
+
+  @Test(groups={"playlist"})
+  public void storesTrackIds() {
+    final PackedTrackList tracks = new PackedTrackList();
+    final Track track = new Track("0123456789ABCDEFfedcba9876543210", null, null, null);
+    tracks.add(track);
+    tracks.add(0, new Track("ffffffffffffffffffffffffffffffff", null, null, null));
+
+    assert tracks.size() == 2;
+    assert tracks.get(1).getId().equals("0123456789abcdeffedcba9876543210");
+    assert tracks.indexOf(track) == 1;
+    assert tracks.getHigh(0) == -1L && tracks.getLow(0) == -1L;
+    assert !tracks.contains(new Track("spotify:track:x", null, null, null));
+
+    try {
+      tracks.add(new Track("not a track", null, null, null));
+      assert false;
+    } catch (IllegalArgumentException e) {
+      assert tracks.size() == 2;
+    }
+  }
+
+  @Test(groups={"playlist"})
+  public void checksumFollowsEdits() {
+    final Random random = new Random(18);
+    final PackedTrackList tracks = new PackedTrackList();
+    final List<Track> removed = new ArrayList<Track>();
+    tracks.getChecksum();
+
+    for (int i = 0; i < 5000; i++) {
+      final int op = random.nextInt(10);
+
+      if (op < 5 || tracks.isEmpty()) {
+        tracks.add(random.nextInt(tracks.size() + 1), randomTrack(random, 50));
+      } else if (op < 8) {
+        tracks.remove(random.nextInt(tracks.size()));
+      } else if (op < 9) {
+        tracks.set(random.nextInt(tracks.size()), randomTrack(random, 50));
+      } else {
+        removed.clear();
+        removed.add(randomTrack(random, 50));
+        tracks.removeAll(removed);
+      }
+
+      assert tracks.getChecksum() == new PackedTrackList(tracks).getChecksum();
+    }
+  }
+
+  @Test(groups={"playlist"})
+  public void checksumIsOrderAware() {
+    final Random random = new Random(18);
+    final List<Track> list = new ArrayList<Track>();
+
+    for (int i = 0; i < 100; i++) {
+      list.add(randomTrack(random, Integer.MAX_VALUE));
+    }
+
+    final long checksum = new PackedTrackList(list).getChecksum();
+    Collections.swap(list, 10, 20);
+    assert new PackedTrackList(list).getChecksum() != checksum;
+    Collections.swap(list, 10, 20);
+    Collections.rotate(list, 1);
+    assert new PackedTrackList(list).getChecksum() != checksum;
+  }
+
+  @Test(groups={"playlist"})
+  public void snapshotsAreUnaffectedByEdits() {
+    final Random random = new Random(24);
+    final PackedTrackList tracks = new PackedTrackList();
+    final List<Track> model = new ArrayList<Track>();
+    final List<PackedTrackList> snapshots = new ArrayList<PackedTrackList>();
+    final List<List<Track>> expected = new ArrayList<List<Track>>();
+
+    for (int i = 0; i < 20000; i++) {
+      final int op = random.nextInt(10);
+
+      if (op < 6 || model.isEmpty()) {
+        final int index = random.nextInt(model.size() + 1);
+        final Track track = randomTrack(random, Integer.MAX_VALUE);
+        tracks.add(index, track);
+        model.add(index, track);
+      } else if (op < 9) {
+        final int index = random.nextInt(model.size());
+        tracks.remove(index);
+        model.remove(index);
+      } else {
+        final int index = random.nextInt(model.size());
+        final Track track = randomTrack(random, Integer.MAX_VALUE);
+        tracks.set(index, track);
+        model.set(index, track);
+      }
+
+      if (i % 1000 == 0) {
+        snapshots.add(tracks.snapshot());
+        expected.add(new ArrayList<Track>(model));
+      }
+    }
+
+    assert tracks.equals(model);
+
+    for (int i = 0; i < snapshots.size(); i++) {
+      assert snapshots.get(i).equals(expected.get(i)) : i;
+    }
+
+    // Snapshots can be edited too, without affecting the list
+    final PackedTrackList snapshot = tracks.snapshot();
+    snapshot.clear();
+    assert tracks.equals(model);
+    snapshot.addAll(model.subList(0, 10));
+    snapshot.add(5, randomTrack(random, 10));
+    assert tracks.equals(model);
+  }
+}
@@ -0,0 +1,204 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import orchestra.playlist.Playlist;
+import orchestra.playlist.git.Playgist;
+import orchestra.playlist.git.PlaygistContainer;
+import orchestra.util.Git;
+
+import org.spearce.jgit.lib.RefUpdate;
+import org.spearce.jgit.lib.Repository;
+import org.testng.annotations.Test;
+
+import de.felixbruns.jotify.media.Track;
+
+/**
+ * Edits are journaled by one container, which is left open as if the process
+ * had died, and recovered by another one opened on the same repository.
+ */
+public class TestPlaygistJournal {
+  private static List<Track> tracks(int from, int count) {
+    List<Track> tracks = new ArrayList<Track>();
+
+    for (int i = from; i < from + count; i++) {
+      tracks.add(new Track(String.format("%032x", i), null, null, null));
+    }
+
+    return tracks;
+  }
+
+  private static PlaygistContainer open(Git git) throws Exception {
+    // Nothing is flushed unless asked for
+    return PlaygistContainer.open("test", git, new PlaygistContainer.Options().setWriteBehind(
+        60 * 60 * 1000, Integer.MAX_VALUE).setUseObjectDatabase(true).setUseJournal(true));
+  }
+
+  private static File getJournalFile(Repository repo, Playgist gist) throws IOException {
+    return new File(new File(repo.getDirectory(), "playgist-journal"), URLEncoder.encode(
+        gist.getRepositoryPath(), "UTF-8"));
+  }
+
+  private static Playgist createCommitted(PlaygistContainer container) throws Exception {
+    Playgist gist = (Playgist) container.createPlaylist("Mix");
+    gist.addTracks(tracks(0, 10));
+    container.flush();
+    return gist;
+  }
+
+  @Test(groups={"journal"})
+  public void replaysUncommittedEdits() throws Exception {
+    Repository repo = TempRepository.create();
+    Git git = new Git(repo);
+    PlaygistContainer crashed = open(git);
+
+    try {
+      Playgist gist = createCommitted(crashed);
+      assert !getJournalFile(repo, gist).exists();
+
+      gist.addTracks(tracks(10, 5));
+      gist.moveTrack(0, 14);
+      gist.removeTrack(tracks(3, 1).get(0));
+      gist.setName("Renamed");
+      assert getJournalFile(repo, gist).exists();
+
+      PlaygistContainer container = open(git);
+      Playlist recovered = container.getPlaylist(gist.getIdentifier());
+      assert recovered.getName().equals("Renamed");
+      assert recovered.getTracks().equals(gist.getTracks());
+      container.close();
+    } finally {
+      crashed.close();
+      TempRepository.delete(repo);
+    }
+  }
+
+  @Test(groups={"journal"})
+  public void truncatesTornTail() throws Exception {
+    Repository repo = TempRepository.create();
+    Git git = new Git(repo);
+    PlaygistContainer crashed = open(git);
+
+    try {
+      Playgist gist = createCommitted(crashed);
+      gist.addTracks(tracks(10, 2));
+      File file = getJournalFile(repo, gist);
+      long length = file.length();
+
+      // Half of a record, as left by a write that was cut short
+      FileOutputStream out = new FileOutputStream(file, true);
+      out.write(new byte[] { 0, 0, 0, 33, 1, 2, 3 });
+      out.close();
+
+      PlaygistContainer container = open(git);
+      Playlist recovered = container.getPlaylist(gist.getIdentifier());
+      assert recovered.getTracks().equals(tracks(0, 12));
+      assert file.length() == length : file.length();
+      container.close();
+    } finally {
+      crashed.close();
+      TempRepository.delete(repo);
+    }
+  }
+
+  @Test(groups={"journal"})
+  public void discardsJournalOfOtherBase() throws Exception {
+    Repository repo = TempRepository.create();
+    Git git = new Git(repo);
+    PlaygistContainer crashed = open(git);
+
+    try {
+      Playgist gist = createCommitted(crashed);
+      gist.addTracks(tracks(10, 2));
+
+      // Committed behind the journal's back
+      git.commit("Outside", Collections.singletonMap(gist.getRepositoryPath(),
+          ("> name = Outside\n" + String.format("%032x\n", 99)).getBytes("UTF-8")));
+
+      PlaygistContainer container = open(git);
+      Playlist reopened = container.getPlaylist(gist.getIdentifier());
+      assert reopened.getName().equals("Outside");
+      assert reopened.getTracks().equals(tracks(99, 1));
+      assert !getJournalFile(repo, gist).exists();
+      container.close();
+    } finally {
+      crashed.close();
+      TempRepository.delete(repo);
+    }
+  }
+
+  @Test(groups={"journal"})
+  public void compactKeepsEditsMadeDuringCommit() throws Exception {
+    Repository repo = TempRepository.create();
+    EditingGit git = new EditingGit(repo);
+    PlaygistContainer crashed = open(git);
+
+    try {
+      final Playgist gist = createCommitted(crashed);
+      gist.addTracks(tracks(10, 1));
+
+      // After the playlist is serialized, before the commit is made
+      git.duringCommit = new Runnable() {
+        public void run() {
+          gist.addTracks(tracks(11, 1));
+        }
+      };
+
+      crashed.flush();
+      assert getJournalFile(repo, gist).exists();
+
+      PlaygistContainer container = open(git);
+      Playlist recovered = container.getPlaylist(gist.getIdentifier());
+      assert recovered.getTracks().equals(tracks(0, 12));
+      container.close();
+    } finally {
+      crashed.close();
+      TempRepository.delete(repo);
+    }
+  }
+
+  @Test(groups={"journal"})
+  public void writeThroughDoesNotJournal() throws Exception {
+    Repository repo = TempRepository.create();
+
+    try {
+      PlaygistContainer container = PlaygistContainer.open("test", new Git(repo),
+          new PlaygistContainer.Options().setUseObjectDatabase(true).setUseJournal(true));
+      Playgist gist = (Playgist) container.createPlaylist("Mix");
+      gist.addTracks(tracks(0, 3));
+      assert !getJournalFile(repo, gist).getParentFile().exists();
+      container.close();
+    } finally {
+      TempRepository.delete(repo);
+    }
+  }
+
+  /**
+   * Runs an action once, in the middle of the next commit.
+   */
+  private static class EditingGit extends Git {
+    volatile Runnable duringCommit;
+
+    EditingGit(Repository repo) {
+      super(repo);
+    }
+
+    @Override
+    public synchronized RefUpdate.Result commit(String message, Map<String, byte[]> contents,
+        boolean updateIndex) throws IOException {
+      Runnable action = duringCommit;
+      duringCommit = null;
+
+      if (action != null) {
+        action.run();
+      }
+
+      return super.commit(message, contents, updateIndex);
+    }
+  }
+}
@@ -0,0 +1,180 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeMap;
+
+import orchestra.playlist.git.Playgist;
+
+import org.testng.annotations.Test;
+
+import de.felixbruns.jotify.media.Track;
+
+public class TestPlaygistParser {
+  private static final String[] TERMINATORS = {"\n", "\r", "\r\n"};
+
+  private static final String METADATA_CHARS = "ab =:\t\f\\u0f#!é";
+
+  /**
+   * Reference parser: lines from {@link BufferedReader}, metadata through
+   * {@link Properties}.
+   */
+  private static void referenceRead(String contents, Map<String, String> metadata,
+      List<String> tracks) throws IOException {
+    BufferedReader reader = new BufferedReader(new StringReader(contents));
+
+    for (String line; (line = reader.readLine()) != null;) {
+      if (line.startsWith(Playgist.METADATA_PREFIX)) {
+        Properties props = new Properties();
+        props.load(new StringReader(line.substring(Playgist.METADATA_PREFIX.length())));
+
+        for (String key : props.stringPropertyNames()) {
+          metadata.put(key, props.getProperty(key));
+        }
+      } else if (line.length() > 0) {
+        tracks.add(line);
+      }
+    }
+  }
+
+  private static String randomPlaylist(Random random, int numTracks) {
+    StringBuilder buf = new StringBuilder();
+
+    for (int i = random.nextInt(6); i > 0; i--) {
+      buf.append(Playgist.METADATA_PREFIX);
+
+      for (int j = random.nextInt(12); j > 0; j--) {
+        buf.append(METADATA_CHARS.charAt(random.nextInt(METADATA_CHARS.length())));
+      }
+
+      buf.append(TERMINATORS[random.nextInt(TERMINATORS.length)]);
+    }
+
+    for (int i = 0; i < numTracks; i++) {
+      buf.append(String.format("%016x%016x", random.nextLong(), random.nextLong()));
+      buf.append(TERMINATORS[random.nextInt(TERMINATORS.length)]);
+
+      if (random.nextInt(10) == 0) {
+        buf.append(TERMINATORS[random.nextInt(TERMINATORS.length)]);
+      }
+    }
+
+    return buf.toString();
+  }
+
+  private static void assertSameAsReference(String contents) throws IOException {
+    Map<String, String> expectedMetadata = new TreeMap<String, String>();
+    List<String> expectedTracks = new ArrayList<String>();
+    boolean malformed = false;
+
+    try {
+      referenceRead(contents, expectedMetadata, expectedTracks);
+    } catch (IllegalArgumentException e) {
+      malformed = true;
+    }
+
+    File file = File.createTempFile("playgist", null);
+
+    try {
+      FileOutputStream out = new FileOutputStream(file);
+      out.write(contents.getBytes("UTF-8"));
+      out.close();
+
+      Playgist gist;
+
+      try {
+        gist = Playgist.open(file);
+      } catch (IllegalArgumentException e) {
+        assert malformed : contents;
+        return;
+      }
+
+      assert !malformed : contents;
+      assert expectedMetadata.equals(gist.getMetadata()) : contents;
+
+      List<Track> tracks = gist.getTracks();
+      assert tracks.size() == expectedTracks.size();
+
+      for (int i = 0; i < tracks.size(); i++) {
+        assert tracks.get(i).getId().equals(expectedTracks.get(i));
+      }
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test(groups={"parse"})
+  public void parseSameAsReference() throws IOException {
+    Random random = new Random(12);
+
+    for (int i = 0; i < 2000; i++) {
+      assertSameAsReference(randomPlaylist(random, random.nextInt(5)));
+    }
+  }
+
+  @Test(groups={"parse"})
+  public void parseLargeSameAsReference() throws IOException {
+    // Large enough to be memory-mapped
+    assertSameAsReference(randomPlaylist(new Random(34), 10000));
+  }
+
+  @Test(groups={"parse"})
+  public void parseEscapes() throws IOException {
+    assertSameAsReference("> name = Caf\\u00e9 \\\n> key\\ with\\:seps:\\tvalue\\\\\n"
+        + "> #comment\n>  \n> only-key\n");
+  }
+
+  @Test(groups={"parse"})
+  public void parseSkipsBadTracks() throws IOException {
+    String good = "0123456789abcdef0123456789abcdef";
+    File file = File.createTempFile("playgist", null);
+
+    try {
+      FileOutputStream out = new FileOutputStream(file);
+      out.write(("> name = x\nnot a track\n" + good + "\n0123456789abcdef0123456789abcdeg\n"
+          + good.toUpperCase() + "\n").getBytes("UTF-8"));
+      out.close();
+
+      Playgist gist = Playgist.open(file);
+      assert "x".equals(gist.getName());
+      assert gist.getTracks().size() == 2;
+      assert gist.getTracks().get(0).getId().equals(good);
+
+      gist = Playgist.openLazily(file);
+      assert gist.getTracks().size() == 2;
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test(groups={"parse"})
+  public void checksumWithoutLoading() throws IOException {
+    File file = File.createTempFile("playgist", null);
+
+    try {
+      FileOutputStream out = new FileOutputStream(file);
+      out.write(("> name = x\n" + randomPlaylist(new Random(56), 100)).getBytes("UTF-8"));
+      out.close();
+
+      long expected = Playgist.open(file).getChecksum();
+      Playgist gist = Playgist.openLazily(file);
+      assert gist.getChecksum() == expected;
+      assert gist.getTrackCount() == 100;
+      assert !gist.isLoaded();
+
+      // Taken over by the tracks once they are read
+      gist.addTrack(new Track("0123456789abcdef0123456789abcdef", null, null, null));
+      assert gist.isLoaded();
+      assert gist.getChecksum() != expected;
+      assert gist.getTrackCount() == 101;
+    } finally {
+      file.delete();
+    }
+  }
+}
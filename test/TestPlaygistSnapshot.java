@@ -0,0 +1,186 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import orchestra.playlist.Playlist;
+import orchestra.playlist.git.Playgist;
+import orchestra.playlist.git.PlaygistContainer;
+import orchestra.util.Git;
+
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.Repository;
+import org.testng.annotations.Test;
+
+import de.felixbruns.jotify.media.Track;
+
+public class TestPlaygistSnapshot {
+  private static List<Track> tracks(int from, int count) {
+    List<Track> tracks = new ArrayList<Track>();
+
+    for (int i = from; i < from + count; i++) {
+      tracks.add(new Track(String.format("%032x", i), null, null, null));
+    }
+
+    return tracks;
+  }
+
+  private static PlaygistContainer open(Git git, boolean useObjectDatabase) throws Exception {
+    return PlaygistContainer.open("test", git, new PlaygistContainer.Options().setUseSnapshot(
+        true).setUseObjectDatabase(useObjectDatabase));
+  }
+
+  private static File getSnapshotFile(Repository repo) {
+    return new File(repo.getDirectory(), "playgists.snapshot");
+  }
+
+  /**
+   * Reads the ID of the tree a snapshot was made from, which follows the
+   * magic number.
+   */
+  private static ObjectId readTreeId(Repository repo) throws IOException {
+    InputStream in = new FileInputStream(getSnapshotFile(repo));
+
+    try {
+      byte[] header = new byte[24];
+      int n = 0;
+
+      while (n < header.length) {
+        n += in.read(header, n, header.length - n);
+      }
+
+      return ObjectId.fromRaw(header, 4);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static ObjectId getHeadTreeId(Repository repo) throws IOException {
+    return repo.mapTree(Constants.HEAD).getId();
+  }
+
+  @Test(groups={"snapshot"})
+  public void roundTrip() throws Exception {
+    Repository repo = TempRepository.create();
+
+    try {
+      Git git = new Git(repo);
+      PlaygistContainer container = open(git, true);
+      Playlist playlist = container.createPlaylist("Mix");
+      playlist.addTracks(tracks(0, 300));
+      container.close();
+
+      assert getSnapshotFile(repo).exists();
+      assert readTreeId(repo).equals(getHeadTreeId(repo));
+
+      container = open(git, true);
+      Playgist reopened = (Playgist) container.getPlaylist(playlist.getIdentifier());
+      assert reopened.getName().equals("Mix");
+
+      // Stored in the snapshot, so the tracks stay where they are
+      assert reopened.getChecksum() == playlist.getChecksum();
+      assert reopened.getTrackCount() == playlist.getTrackCount();
+      assert !reopened.isLoaded();
+      assert reopened.getTracks().equals(tracks(0, 300));
+      container.close();
+    } finally {
+      TempRepository.delete(repo);
+    }
+  }
+
+  @Test(groups={"snapshot"})
+  public void entriesLargerThanTheBuffer() throws Exception {
+    Repository repo = TempRepository.create();
+
+    try {
+      Git git = new Git(repo);
+      PlaygistContainer container = open(git, true);
+      Playlist small = container.createPlaylist("Small");
+      small.addTracks(tracks(0, 10));
+      Playlist large = container.createPlaylist("Large");
+      large.addTracks(tracks(0, 6000));
+      container.close();
+
+      // Both copied from the first snapshot, next to a parsed entry
+      container = open(git, true);
+      container.createPlaylist("Empty");
+      container.close();
+
+      container = open(git, true);
+      assert container.getPlaylists().size() == 3;
+      Playgist reopened = (Playgist) container.getPlaylist(large.getIdentifier());
+      assert !reopened.isLoaded();
+      assert reopened.getTracks().equals(tracks(0, 6000));
+      assert container.getPlaylist(small.getIdentifier()).getTracks().equals(tracks(0, 10));
+      container.close();
+    } finally {
+      TempRepository.delete(repo);
+    }
+  }
+
+  @Test(groups={"snapshot"})
+  public void staleTreeIsIgnored() throws Exception {
+    Repository repo = TempRepository.create();
+
+    try {
+      Git git = new Git(repo);
+      PlaygistContainer container = open(git, true);
+      Playgist playlist = (Playgist) container.createPlaylist("Mix");
+      playlist.addTracks(tracks(0, 10));
+      container.close();
+      ObjectId snapshotTreeId = readTreeId(repo);
+
+      // Committed behind the snapshot's back
+      git.commit("Outside", Collections.singletonMap(playlist.getRepositoryPath(),
+          ("> name = Renamed\n" + String.format("%032x\n", 99)).getBytes("UTF-8")));
+      assert !snapshotTreeId.equals(getHeadTreeId(repo));
+
+      container = open(git, true);
+      Playlist reopened = container.getPlaylist(playlist.getIdentifier());
+      assert reopened.getName().equals("Renamed");
+      assert reopened.getTracks().equals(tracks(99, 1));
+      container.close();
+
+      assert readTreeId(repo).equals(getHeadTreeId(repo));
+    } finally {
+      TempRepository.delete(repo);
+    }
+  }
+
+  @Test(groups={"snapshot"})
+  public void changedWorkingFileIsParsed() throws Exception {
+    Repository repo = TempRepository.create();
+
+    try {
+      Git git = new Git(repo);
+      PlaygistContainer container = open(git, false);
+      Playgist playlist = (Playgist) container.createPlaylist("Mix");
+      playlist.addTracks(tracks(0, 10));
+      container.close();
+
+      // Old enough to be stamped in the next snapshot
+      File file = playlist.getPath();
+      assert file.setLastModified(System.currentTimeMillis() - 60 * 60 * 1000);
+      getSnapshotFile(repo).delete();
+      open(git, false).close();
+
+      // Uncommitted change to the working file
+      FileOutputStream out = new FileOutputStream(file);
+      out.write(("> name = Edited\n" + String.format("%032x\n", 42)).getBytes("UTF-8"));
+      out.close();
+
+      container = open(git, false);
+      Playlist reopened = container.getPlaylist(playlist.getIdentifier());
+      assert reopened.getName().equals("Edited");
+      assert reopened.getTracks().equals(tracks(42, 1));
+      container.close();
+    } finally {
+      TempRepository.delete(repo);
+    }
+  }
+}
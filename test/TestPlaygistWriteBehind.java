@@ -0,0 +1,179 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import orchestra.playlist.git.Playgist;
+import orchestra.playlist.git.PlaygistContainer;
+import orchestra.util.Git;
+
+import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.RefUpdate;
+import org.spearce.jgit.lib.Repository;
+import org.testng.annotations.Test;
+
+import de.felixbruns.jotify.media.Track;
+
+public class TestPlaygistWriteBehind {
+  private static List<Track> tracks(int from, int count) {
+    List<Track> tracks = new ArrayList<Track>();
+
+    for (int i = from; i < from + count; i++) {
+      tracks.add(new Track(String.format("%032x", i), null, null, null));
+    }
+
+    return tracks;
+  }
+
+  private static PlaygistContainer open(Git git, long flushDelayMillis, int maxPendingChanges)
+      throws Exception {
+    return PlaygistContainer.open("test", git, new PlaygistContainer.Options().setWriteBehind(
+        flushDelayMillis, maxPendingChanges).setUseObjectDatabase(true));
+  }
+
+  /**
+   * Returns the number of tracks in the committed version of a playlist, or
+   * -1 if it hasn't been committed.
+   */
+  private static int committedTracks(Repository repo, Git git, Playgist gist)
+      throws IOException {
+    ObjectId blobId = git.getHeadBlobId(gist.getRepositoryPath());
+
+    if (blobId == null) {
+      return -1;
+    }
+
+    int count = 0;
+
+    for (String line : new String(repo.openBlob(blobId).getCachedBytes(), "UTF-8").split("\n")) {
+      if (line.length() > 0 && !line.startsWith(Playgist.METADATA_PREFIX)) {
+        count++;
+      }
+    }
+
+    return count;
+  }
+
+  private static void awaitCommitted(Repository repo, Git git, Playgist gist, int count)
+      throws Exception {
+    for (int i = 0; i < 500 && committedTracks(repo, git, gist) != count; i++) {
+      Thread.sleep(10);
+    }
+
+    assert committedTracks(repo, git, gist) == count : committedTracks(repo, git, gist);
+  }
+
+  @Test(groups={"writeBehind"})
+  public void flushesAfterDelay() throws Exception {
+    Repository repo = TempRepository.create();
+
+    try {
+      Git git = new Git(repo);
+      PlaygistContainer container = open(git, 200, Integer.MAX_VALUE);
+      Playgist gist = (Playgist) container.createPlaylist("Mix");
+      gist.addTracks(tracks(0, 3));
+
+      // Held back, then committed together
+      assert committedTracks(repo, git, gist) == -1;
+      assert gist.isDirty();
+      awaitCommitted(repo, git, gist, 3);
+      assert !gist.isDirty();
+      container.close();
+    } finally {
+      TempRepository.delete(repo);
+    }
+  }
+
+  @Test(groups={"writeBehind"})
+  public void flushesAtMaxPendingChanges() throws Exception {
+    Repository repo = TempRepository.create();
+
+    try {
+      Git git = new Git(repo);
+      PlaygistContainer container = open(git, 60 * 60 * 1000, 3);
+      Playgist gist = (Playgist) container.createPlaylist("Mix");
+      gist.addTrack(tracks(0, 1).get(0));
+      assert committedTracks(repo, git, gist) == -1;
+
+      // The third change triggers a flush long before the delay
+      gist.addTrack(tracks(1, 1).get(0));
+      awaitCommitted(repo, git, gist, 2);
+      container.close();
+    } finally {
+      TempRepository.delete(repo);
+    }
+  }
+
+  @Test(groups={"writeBehind"})
+  public void requeuesFailedFlush() throws Exception {
+    Repository repo = TempRepository.create();
+
+    try {
+      FailingGit git = new FailingGit(repo);
+      PlaygistContainer container = open(git, 60 * 60 * 1000, Integer.MAX_VALUE);
+      Playgist gist = (Playgist) container.createPlaylist("Mix");
+      gist.addTracks(tracks(0, 2));
+      git.failures = 1;
+
+      try {
+        container.flush();
+        assert false : "Flush should have failed";
+      } catch (IOException e) {
+        // Expected
+      }
+
+      assert gist.isDirty();
+      assert committedTracks(repo, git, gist) == -1;
+
+      // Still queued, and stored by the next flush
+      container.flush();
+      assert !gist.isDirty();
+      assert committedTracks(repo, git, gist) == 2;
+      container.close();
+    } finally {
+      TempRepository.delete(repo);
+    }
+  }
+
+  @Test(groups={"writeBehind"})
+  public void commitsThroughAfterClose() throws Exception {
+    Repository repo = TempRepository.create();
+
+    try {
+      Git git = new Git(repo);
+      PlaygistContainer container = open(git, 60 * 60 * 1000, Integer.MAX_VALUE);
+      Playgist gist = (Playgist) container.createPlaylist("Mix");
+      gist.addTracks(tracks(0, 1));
+      container.close();
+      assert committedTracks(repo, git, gist) == 1;
+
+      // No flusher to hand it to, so committed right away
+      gist.addTracks(tracks(1, 1));
+      assert committedTracks(repo, git, gist) == 2;
+    } finally {
+      TempRepository.delete(repo);
+    }
+  }
+
+  /**
+   * Fails the given number of commits.
+   */
+  private static class FailingGit extends Git {
+    volatile int failures;
+
+    FailingGit(Repository repo) {
+      super(repo);
+    }
+
+    @Override
+    public synchronized RefUpdate.Result commit(String message, Map<String, byte[]> contents,
+        boolean updateIndex) throws IOException {
+      if (failures > 0) {
+        failures--;
+        throw new IOException("Disk full");
+      }
+
+      return super.commit(message, contents, updateIndex);
+    }
+  }
+}
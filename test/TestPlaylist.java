@@ -0,0 +1,118 @@
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import orchestra.playlist.JotifyPlaylist;
+import orchestra.playlist.Playlist;
+
+import org.testng.annotations.Test;
+
+import de.felixbruns.jotify.media.Track;
+
+public class TestPlaylist {
+  private static Track track(int i) {
+    return new Track(String.format("%032x", i), null, null, null);
+  }
+
+  @Test(groups={"playlist"})
+  public void nestedEditNotifiesOnce() {
+    CountingPlaylist playlist = new CountingPlaylist();
+    playlist.beginEdit();
+    playlist.addTrack(track(1));
+    playlist.beginEdit();
+    playlist.addTracks(Arrays.asList(track(2), track(3)));
+    playlist.commitEdit();
+    assert playlist.isEditing();
+    assert playlist.notifications == 0;
+    playlist.commitEdit();
+
+    assert !playlist.isEditing();
+    assert playlist.notifications == 1;
+    assert playlist.getTracks().size() == 3;
+
+    // An edit without changes notifies nobody
+    playlist.beginEdit().commitEdit();
+    assert playlist.notifications == 1;
+
+    try {
+      playlist.commitEdit();
+      assert false;
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+  }
+
+  @Test(groups={"playlist"})
+  public void editsBelongToTheirThread() throws InterruptedException {
+    final CountingPlaylist playlist = new CountingPlaylist();
+    playlist.beginEdit();
+    playlist.addTrack(track(1));
+
+    Thread other = new Thread() {
+      @Override
+      public void run() {
+        assert !playlist.isEditing();
+        playlist.addTrack(track(2));
+      }
+    };
+
+    other.start();
+    other.join();
+
+    // Not held back by the edit of this thread
+    assert playlist.notifications == 1;
+    playlist.commitEdit();
+    assert playlist.notifications == 2;
+  }
+
+  @Test(groups={"playlist"})
+  public void checksumDefaultsToZero() {
+    CountingPlaylist playlist = new CountingPlaylist();
+    playlist.addTrack(track(1));
+    assert playlist.getChecksum() == 0;
+    assert new JotifyPlaylist(playlist).getChecksum() == 0;
+  }
+
+  private static class CountingPlaylist extends Playlist {
+    private final List<Track> tracks = Collections.synchronizedList(new ArrayList<Track>());
+
+    volatile int notifications;
+
+    CountingPlaylist() {
+      super("test", "test");
+    }
+
+    @Override
+    public URI getIdentifier() {
+      return URI.create("orchestra:playlist:test");
+    }
+
+    @Override
+    public Playlist addTrack(int index, Track track) {
+      tracks.add(index, track);
+      changed();
+      return this;
+    }
+
+    @Override
+    public Playlist removeTrack(Track track) {
+      if (tracks.remove(track)) {
+        changed();
+      }
+
+      return this;
+    }
+
+    @Override
+    public List<Track> getTracks() {
+      return tracks;
+    }
+
+    @Override
+    protected synchronized void notifyListeners() {
+      notifications++;
+    }
+  }
+}
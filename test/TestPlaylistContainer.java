@@ -0,0 +1,95 @@
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+
+import orchestra.playlist.Playlist;
+import orchestra.playlist.PlaylistContainer;
+import orchestra.playlist.PlaylistIdentifiers;
+
+import org.testng.annotations.Test;
+
+import de.felixbruns.jotify.media.Track;
+
+public class TestPlaylistContainer {
+  private static class NamedPlaylist extends Playlist {
+    private final URI identifier;
+
+    NamedPlaylist(String hash) {
+      super(hash, "test");
+      this.identifier = URI.create(PlaylistIdentifiers.PLAYLIST_PREFIX + hash);
+    }
+
+    @Override
+    public URI getIdentifier() {
+      return identifier;
+    }
+
+    @Override
+    public Playlist addTrack(int index, Track track) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Playlist removeTrack(Track track) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<Track> getTracks() {
+      return Collections.emptyList();
+    }
+  }
+
+  private static String id(Playlist playlist) {
+    return playlist.getIdentifier().toString();
+  }
+
+  @Test(groups={"container"})
+  public void reusesHandlesOfRemovedPlaylists() {
+    PlaylistContainer container = new PlaylistContainer("test");
+    Playlist a = new NamedPlaylist("a");
+    Playlist b = new NamedPlaylist("b");
+    Playlist c = new NamedPlaylist("c");
+    container.addPlaylist(a).addPlaylist(b).addPlaylist(c);
+    int handle = container.getHandle(id(b));
+
+    container.removePlaylist(b);
+    assert container.size() == 2;
+    assert container.getHandle(id(b)) == PlaylistIdentifiers.NONE;
+    assert container.getPlaylist(id(b)) == null;
+
+    Playlist d = new NamedPlaylist("d");
+    container.addPlaylist(d);
+    assert container.getHandle(id(d)) == handle;
+    assert container.getPlaylist(handle) == d;
+    assert container.getPlaylist(id(d)) == d;
+    assert container.getPlaylist(id(b)) == null;
+    assert container.getPlaylists().size() == 3;
+
+    // Added back, under a new handle
+    container.addPlaylist(b);
+    assert container.getPlaylist(id(b)) == b;
+    assert container.getHandle(id(b)) == 3;
+  }
+
+  @Test(groups={"container"})
+  public void churnDoesNotGrowHandles() {
+    PlaylistContainer container = new PlaylistContainer("test");
+    PlaylistIdentifiers identifiers = new PlaylistIdentifiers();
+
+    for (int i = 0; i < 1000; i++) {
+      Playlist playlist = new NamedPlaylist("p" + i);
+      container.addPlaylist(playlist);
+      assert container.getHandle(id(playlist)) == 0;
+      container.removePlaylist(playlist);
+
+      assert identifiers.intern(id(playlist)) == 0;
+      assert identifiers.getIdentifier(0).equals(id(playlist));
+      assert identifiers.release(id(playlist)) == 0;
+    }
+
+    assert container.size() == 0;
+    assert identifiers.size() == 1;
+    assert identifiers.getIdentifier(0) == null;
+  }
+}
@@ -0,0 +1,124 @@
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import orchestra.playlist.Playlist;
+import orchestra.playlist.PlaylistChange;
+import orchestra.playlist.PlaylistChangeListener;
+import orchestra.playlist.PlaylistEventDispatcher;
+import orchestra.playlist.PlaylistListener;
+
+import org.testng.annotations.Test;
+
+import de.felixbruns.jotify.media.Track;
+
+public class TestPlaylistEventDispatcher {
+  @Test(groups={"events"})
+  public void mergesQueuedChanges() {
+    QueueExecutor executor = new QueueExecutor();
+    PlaylistEventDispatcher dispatcher = new PlaylistEventDispatcher(executor);
+    RecordingListener listener = new RecordingListener();
+    List<PlaylistListener> listeners = Collections.<PlaylistListener> singletonList(listener);
+    Playlist a = new TestPlaylist("a");
+    Playlist b = new TestPlaylist("b");
+
+    dispatcher.publish(new PlaylistChange(a).tracksChanged(4, 5, false), listeners);
+    dispatcher.publish(new PlaylistChange(b).metadataChanged("name"), listeners);
+    dispatcher.publish(new PlaylistChange(a).tracksChanged(1, 2, true), listeners);
+
+    // One delivery task for the whole batch
+    assert executor.tasks.size() == 1;
+    assert listener.batches.isEmpty();
+    executor.runAll();
+
+    assert listener.batches.size() == 1;
+    List<PlaylistChange> batch = listener.batches.get(0);
+    assert batch.size() == 2;
+    assert batch.get(0).getPlaylist() == a;
+    assert batch.get(0).getFromIndex() == 1;
+    assert batch.get(0).getToIndex() == 5;
+    assert batch.get(0).isShifted();
+    assert batch.get(0).getCount() == 2;
+    assert batch.get(1).getMetadataKeys().contains("name");
+
+    assert dispatcher.getPublished() == 3;
+    assert dispatcher.getMerged() == 1;
+    assert dispatcher.getDelivered() == 3;
+    assert dispatcher.getLatency().getCount() == 2;
+  }
+
+  @Test(groups={"events"})
+  public void deliversOnCloseAndDropsAfter() {
+    QueueExecutor executor = new QueueExecutor();
+    PlaylistEventDispatcher dispatcher = new PlaylistEventDispatcher(executor);
+    RecordingListener listener = new RecordingListener();
+    List<PlaylistListener> listeners = Collections.<PlaylistListener> singletonList(listener);
+    Playlist a = new TestPlaylist("a");
+
+    dispatcher.publish(new PlaylistChange(a), listeners);
+    dispatcher.close();
+    assert listener.batches.size() == 1;
+
+    dispatcher.publish(new PlaylistChange(a), listeners);
+    executor.runAll();
+    assert listener.batches.size() == 1;
+    assert dispatcher.getDropped() == 1;
+  }
+
+  private static class QueueExecutor implements Executor {
+    final List<Runnable> tasks = new ArrayList<Runnable>();
+
+    public void execute(Runnable task) {
+      tasks.add(task);
+    }
+
+    void runAll() {
+      while (!tasks.isEmpty()) {
+        tasks.remove(0).run();
+      }
+    }
+  }
+
+  private static class RecordingListener implements PlaylistChangeListener {
+    final List<List<PlaylistChange>> batches = new ArrayList<List<PlaylistChange>>();
+
+    public void playlistChanged(Playlist playlist) {
+      throw new AssertionError("Expected a batch");
+    }
+
+    public void playlistsChanged(List<PlaylistChange> changes) {
+      batches.add(changes);
+    }
+  }
+
+  private static class TestPlaylist extends Playlist {
+    private final URI id;
+
+    TestPlaylist(String name) {
+      super(name, "test");
+      this.id = URI.create("orchestra:playlist:" + name);
+    }
+
+    @Override
+    public URI getIdentifier() {
+      return id;
+    }
+
+    @Override
+    public Playlist addTrack(int index, Track track) {
+      return this;
+    }
+
+    @Override
+    public Playlist removeTrack(Track track) {
+      return this;
+    }
+
+    @Override
+    public List<Track> getTracks() {
+      return Collections.emptyList();
+    }
+  }
+}
@@ -0,0 +1,183 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import orchestra.util.Git;
+import orchestra.util.NoProgressMonitor;
+import orchestra.util.PushWorker;
+
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.ProgressMonitor;
+import org.spearce.jgit.lib.Repository;
+import org.spearce.jgit.lib.RepositoryConfig;
+import org.spearce.jgit.transport.PushResult;
+import org.testng.annotations.Test;
+
+public class TestPushWorker {
+  /**
+   * Stands in for a remote: pushes block while the gate is closed, and fail
+   * while the remote rejects them.
+   */
+  private static class ScriptedGit extends Git {
+    final List<Long> attempts = new ArrayList<Long>();
+
+    final CountDownLatch started = new CountDownLatch(1);
+
+    volatile CountDownLatch gate = new CountDownLatch(0);
+
+    volatile boolean reject;
+
+    ScriptedGit() {
+      super(null);
+    }
+
+    @Override
+    public PushResult pushOriginMaster(ProgressMonitor monitor) throws IOException {
+      synchronized (attempts) {
+        attempts.add(System.nanoTime());
+      }
+
+      started.countDown();
+
+      try {
+        gate.await();
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+
+      if (reject) {
+        throw new IOException("Failed to push refs/heads/master: REJECTED_NONFASTFORWARD");
+      }
+
+      return null;
+    }
+
+    int attempts() {
+      synchronized (attempts) {
+        return attempts.size();
+      }
+    }
+
+    long gapMillis(int i) {
+      synchronized (attempts) {
+        return TimeUnit.NANOSECONDS.toMillis(attempts.get(i) - attempts.get(i - 1));
+      }
+    }
+  }
+
+  private static void awaitAttempts(ScriptedGit git, int n) throws InterruptedException {
+    for (int i = 0; i < 500 && git.attempts() < n; i++) {
+      Thread.sleep(10);
+    }
+
+    assert git.attempts() >= n : git.attempts();
+  }
+
+  @Test(groups={"push"})
+  public void coalescesQueuedPushes() throws InterruptedException {
+    ScriptedGit git = new ScriptedGit();
+    git.gate = new CountDownLatch(1);
+    PushWorker worker = new PushWorker(git, new NoProgressMonitor(), 10, 40, 3);
+    worker.requestPush();
+    assert git.started.await(5, TimeUnit.SECONDS);
+
+    // Queued while the first push is in flight
+    for (int i = 0; i < 20; i++) {
+      worker.requestPush();
+    }
+
+    assert worker.getQueueDepth() == 20;
+    git.gate.countDown();
+    awaitAttempts(git, 2);
+    worker.shutdown();
+    assert worker.awaitTermination(5000);
+
+    assert git.attempts() == 2;
+    assert worker.getQueueDepth() == 0;
+    assert worker.getLastSuccessfulPush() > 0;
+  }
+
+  @Test(groups={"push"})
+  public void backsOffAfterRejectedPush() throws InterruptedException {
+    ScriptedGit git = new ScriptedGit();
+    git.reject = true;
+    PushWorker worker = new PushWorker(git, new NoProgressMonitor(), 20, 50, 3);
+    worker.requestPush();
+    awaitAttempts(git, 4);
+
+    // Delays of 20, 40 and then 50 ms, the cap
+    assert git.gapMillis(1) >= 20;
+    assert git.gapMillis(2) >= 40;
+    assert git.gapMillis(3) >= 50;
+
+    // Given up on after three retries
+    Thread.sleep(200);
+    assert git.attempts() == 4;
+    assert worker.getConsecutiveFailures() == 4;
+    assert worker.getLastFailure() != null;
+
+    // Until the next request
+    git.reject = false;
+    worker.requestPush();
+    awaitAttempts(git, 5);
+    worker.shutdown();
+    assert worker.awaitTermination(5000);
+
+    assert worker.getConsecutiveFailures() == 0;
+    assert worker.getLastFailure() == null;
+    assert worker.getLastSuccessfulPush() > 0;
+  }
+
+  @Test(groups={"push"})
+  public void newRequestStartsFromFirstBackoff() throws InterruptedException {
+    ScriptedGit git = new ScriptedGit();
+    git.reject = true;
+    PushWorker worker = new PushWorker(git, new NoProgressMonitor(), 20, 2000, 3);
+    worker.requestPush();
+    awaitAttempts(git, 4);
+
+    // Delays of 20, 40 and 80 ms, then given up on
+    assert git.gapMillis(3) >= 80;
+    Thread.sleep(200);
+    assert git.attempts() == 4;
+
+    // Retried after 20 ms again, not 160
+    worker.requestPush();
+    awaitAttempts(git, 6);
+    assert git.gapMillis(5) >= 20;
+    assert git.gapMillis(5) < 150 : git.gapMillis(5);
+    worker.shutdown();
+    assert worker.awaitTermination(5000);
+  }
+
+  @Test(groups={"push"})
+  public void pushesNewestHeadToBareOrigin() throws Exception {
+    Repository origin = TempRepository.createBare();
+    Repository repo = TempRepository.create();
+
+    try {
+      RepositoryConfig config = repo.getConfig();
+      config.setString(RepositoryConfig.REMOTE_SECTION, "origin", "url",
+          origin.getDirectory().getAbsolutePath());
+      config.save();
+
+      Git git = new Git(repo);
+      PushWorker worker = new PushWorker(git, new NoProgressMonitor(), 10, 40, 3);
+      git.commit("First", Collections.singletonMap("a", "1\n".getBytes("UTF-8")));
+      worker.requestPush();
+      git.commit("Second", Collections.singletonMap("a", "2\n".getBytes("UTF-8")));
+      worker.requestPush();
+      worker.shutdown();
+      assert worker.awaitTermination(10000);
+
+      assert worker.getLastFailure() == null : worker.getLastFailure();
+      assert repo.resolve(Constants.HEAD).equals(origin.resolve(Constants.R_HEADS + "master"));
+    } finally {
+      TempRepository.delete(repo);
+      TempRepository.delete(origin);
+    }
+  }
+}
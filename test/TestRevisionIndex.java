@@ -0,0 +1,217 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import orchestra.util.Git;
+import orchestra.util.RevisionIndex;
+
+import org.spearce.jgit.lib.Commit;
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.ObjectWriter;
+import org.spearce.jgit.lib.PersonIdent;
+import org.spearce.jgit.lib.RefUpdate;
+import org.spearce.jgit.lib.Repository;
+import org.spearce.jgit.lib.Tree;
+import org.testng.annotations.Test;
+
+public class TestRevisionIndex {
+  private static void commit(Git git, String path, String contents) throws IOException {
+    git.commit("Change " + path, Collections.singletonMap(path, contents.getBytes("UTF-8")));
+  }
+
+  /**
+   * Points HEAD at a new commit of a tree, the way a tool other than
+   * {@link Git} would.
+   */
+  private static ObjectId commitTree(Repository repo, Tree tree, ObjectId... parents)
+      throws IOException {
+    tree.setId(new ObjectWriter(repo).writeTree(tree));
+    Commit commit = new Commit(repo);
+    commit.setParentIds(parents);
+    commit.setAuthor(new PersonIdent(repo));
+    commit.setCommitter(new PersonIdent(repo));
+    commit.setMessage("Outside");
+    commit.setTree(tree);
+    commit.commit();
+
+    RefUpdate update = repo.updateRef(Constants.HEAD);
+    update.setNewObjectId(commit.getCommitId());
+    update.forceUpdate();
+    return commit.getCommitId();
+  }
+
+  private static File getIndexFile(Repository repo) {
+    return new File(repo.getDirectory(), RevisionIndex.FILE_NAME);
+  }
+
+  @Test(groups={"revisions"})
+  public void countsCommitsPerFile() throws Exception {
+    Repository repo = TempRepository.create();
+
+    try {
+      Git git = new Git(repo);
+      RevisionIndex revisions = git.getRevisionIndex();
+      commit(git, "a", "1\n");
+      commit(git, "dir/b", "1\n");
+      long length = getIndexFile(repo).length();
+      commit(git, "a", "2\n");
+
+      assert revisions.getRevision("a") == 2;
+      assert revisions.getRevision("dir/b") == 1;
+      assert revisions.getRevision("c") == 0;
+      assert revisions.getLastCommitId("a").equals(repo.resolve(Constants.HEAD));
+
+      // Commits are appended to the stored index, and read back in
+      assert getIndexFile(repo).length() > length;
+      RevisionIndex reopened = RevisionIndex.open(repo);
+      assert reopened.getRevision("a") == 2;
+      assert reopened.getRevision("dir/b") == 1;
+      assert reopened.getLastCommitId("a").equals(repo.resolve(Constants.HEAD));
+    } finally {
+      TempRepository.delete(repo);
+    }
+  }
+
+  @Test(groups={"revisions"})
+  public void catchesUpWithOutsideCommits() throws Exception {
+    Repository repo = TempRepository.create();
+
+    try {
+      Git git = new Git(repo);
+      RevisionIndex revisions = git.getRevisionIndex();
+      commit(git, "a", "1\n");
+      commit(git, "b", "1\n");
+      assert revisions.getRevision("b") == 1;
+
+      // Another instance, without an index, changes a and deletes b
+      commit(new Git(repo), "a", "2\n");
+      ObjectId changedA = repo.resolve(Constants.HEAD);
+      Tree tree = repo.mapTree(Constants.HEAD);
+      tree.findBlobMember("b").delete();
+      commitTree(repo, tree, changedA);
+
+      RevisionIndex reopened = RevisionIndex.open(repo);
+      assert reopened.getRevision("a") == 2;
+      assert reopened.getLastCommitId("a").equals(changedA);
+      assert reopened.getRevision("b") == 0;
+
+      // The open index catches up on its next commit
+      commit(git, "a", "3\n");
+      assert revisions.getRevision("a") == 3;
+      assert revisions.getRevision("b") == 0;
+      assert revisions.getLastCommitId("a").equals(repo.resolve(Constants.HEAD));
+    } finally {
+      TempRepository.delete(repo);
+    }
+  }
+
+  @Test(groups={"revisions"})
+  public void rebuildsAfterHistoryRewrite() throws Exception {
+    Repository repo = TempRepository.create();
+
+    try {
+      Git git = new Git(repo);
+      git.getRevisionIndex();
+      commit(git, "a", "1\n");
+      commit(git, "a", "2\n");
+      commit(git, "b", "1\n");
+
+      // A new root commit, unrelated to the indexed one
+      Tree tree = new Tree(repo);
+      tree.addFile("a").setId(new ObjectWriter(repo).writeBlob("x\n".getBytes("UTF-8")));
+      ObjectId root = commitTree(repo, tree);
+
+      RevisionIndex rebuilt = RevisionIndex.open(repo);
+      assert rebuilt.getRevision("a") == 1;
+      assert rebuilt.getLastCommitId("a").equals(root);
+      assert rebuilt.getRevision("b") == 0;
+    } finally {
+      TempRepository.delete(repo);
+    }
+  }
+
+  @Test(groups={"revisions"})
+  public void dropsTornLog() throws Exception {
+    Repository repo = TempRepository.create();
+
+    try {
+      Git git = new Git(repo);
+      git.getRevisionIndex();
+      commit(git, "a", "1\n");
+      commit(git, "a", "2\n");
+      commit(git, "a", "3\n");
+
+      // Cut the last record short
+      RandomAccessFile raf = new RandomAccessFile(getIndexFile(repo), "rw");
+      raf.setLength(raf.length() - 3);
+      raf.close();
+
+      // Caught up again from the second commit
+      RevisionIndex reopened = RevisionIndex.open(repo);
+      assert reopened.getRevision("a") == 3;
+      assert reopened.getLastCommitId("a").equals(repo.resolve(Constants.HEAD));
+    } finally {
+      TempRepository.delete(repo);
+    }
+  }
+
+  @Test(groups={"revisions"})
+  public void unchangedFilesDontCount() throws Exception {
+    Repository repo = TempRepository.create();
+
+    try {
+      Git git = new Git(repo);
+      RevisionIndex revisions = git.getRevisionIndex();
+      commit(git, "a", "1\n");
+      commit(git, "b", "1\n");
+
+      // Same contents again, in a commit that does change b
+      Map<String, byte[]> contents = new HashMap<String, byte[]>();
+      contents.put("a", "1\n".getBytes("UTF-8"));
+      contents.put("b", "2\n".getBytes("UTF-8"));
+      git.commit("Both", contents);
+
+      assert revisions.getRevision("a") == 1;
+      assert revisions.getRevision("b") == 2;
+
+      // Counted the same way when the index is rebuilt
+      getIndexFile(repo).delete();
+      RevisionIndex rebuilt = RevisionIndex.open(repo);
+      assert rebuilt.getRevision("a") == 1;
+      assert rebuilt.getRevision("b") == 2;
+    } finally {
+      TempRepository.delete(repo);
+    }
+  }
+
+  @Test(groups={"revisions"})
+  public void commitSucceedsWhenIndexCantBeWritten() throws Exception {
+    Repository repo = TempRepository.create();
+
+    try {
+      Git git = new Git(repo);
+      RevisionIndex revisions = git.getRevisionIndex();
+      commit(git, "a", "1\n");
+
+      // Neither appended to nor replaced
+      File file = getIndexFile(repo);
+      file.delete();
+      file.mkdir();
+      RefUpdate.Result result = git.commit("Second", Collections.singletonMap("a",
+          "2\n".getBytes("UTF-8")));
+      assert result == RefUpdate.Result.FAST_FORWARD : result;
+      assert git.getHeadBlobId("a") != null;
+
+      // Caught up with HEAD once it can be read again
+      file.delete();
+      assert revisions.getRevision("a") == 2;
+      assert revisions.getLastCommitId("a").equals(repo.resolve(Constants.HEAD));
+    } finally {
+      TempRepository.delete(repo);
+    }
+  }
+}
@@ -0,0 +1,102 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import orchestra.util.Base16;
+import orchestra.util.Base62;
+import orchestra.util.TrackIdConverter;
+import orchestra.util.TrackIdConverter.Format;
+
+import org.testng.annotations.Test;
+
+public class TestTrackIdConverter {
+  private static final String HEX = "0123456789abcdef0123456789abcdef";
+
+  private static String base62(String hex) {
+    long[] id = new long[2];
+    Base16.decode(hex, 0, id);
+    char[] digits = new char[Base62.LENGTH_128];
+    Base62.encode(id[0], id[1], digits, 0);
+    return new String(digits);
+  }
+
+  private static String convert(TrackIdConverter converter, String input) throws IOException {
+    File in = File.createTempFile("ids", ".in");
+    File out = File.createTempFile("ids", ".out");
+
+    try {
+      OutputStream os = new FileOutputStream(in);
+      os.write(input.getBytes("US-ASCII"));
+      os.close();
+      converter.convert(in, out);
+
+      InputStream is = new FileInputStream(out);
+      byte[] bytes = new byte[(int) out.length()];
+      int n = 0;
+
+      while (n < bytes.length) {
+        n += is.read(bytes, n, bytes.length - n);
+      }
+
+      is.close();
+      return new String(bytes, "US-ASCII");
+    } finally {
+      in.delete();
+      out.delete();
+    }
+  }
+
+  @Test(groups={"converter"})
+  public void convertsEachForm() throws IOException {
+    String b62 = base62(HEX);
+    String input = b62 + "\n" + HEX + "\nspotify:track:" + b62 + "\n";
+
+    assert convert(new TrackIdConverter(Format.HEX), input).equals(
+        HEX + "\n" + HEX + "\n" + HEX + "\n");
+    assert convert(new TrackIdConverter(Format.BASE62), input).equals(
+        b62 + "\n" + b62 + "\n" + b62 + "\n");
+    assert convert(new TrackIdConverter(Format.URI), HEX).equals("spotify:track:" + b62 + "\n");
+  }
+
+  @Test(groups={"converter"})
+  public void skipsBlankLines() throws IOException {
+    String input = "\n  \t\n " + HEX + " \r\n\r\n";
+    assert convert(new TrackIdConverter(Format.HEX), input).equals(HEX + "\n");
+  }
+
+  @Test(groups={"converter"})
+  public void rejectsGarbage() throws IOException {
+    try {
+      convert(new TrackIdConverter(Format.HEX), HEX + "\nnot a track id\n");
+      assert false;
+    } catch (IllegalArgumentException e) {
+      assert e.getMessage().contains("byte 33");
+    }
+  }
+
+  @Test(groups={"converter"})
+  public void convertsLinesAcrossWindows() throws IOException {
+    Random random = new Random(7);
+    StringBuilder input = new StringBuilder();
+    StringBuilder expected = new StringBuilder();
+
+    for (int i = 0; i < 60000; i++) {
+      String hex = Base16.encode(random.nextLong(), random.nextLong());
+      input.append("spotify:track:").append(base62(hex)).append('\n');
+      expected.append(hex).append('\n');
+    }
+
+    // Windows end mid-line and are big enough to be split between threads
+    TrackIdConverter converter = new TrackIdConverter(Format.HEX, 4).setWindowSize((1 << 20) + 7);
+    assert convert(converter, input.toString()).equals(expected.toString());
+
+    // Windows that hold a couple of lines each
+    converter = new TrackIdConverter(Format.HEX, 1).setWindowSize(100);
+    String head = input.substring(0, 37 * 50);
+    assert convert(converter, head).equals(expected.substring(0, 33 * 50));
+  }
+}
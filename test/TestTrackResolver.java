@@ -0,0 +1,162 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import orchestra.playlist.PackedTrackList;
+import orchestra.playlist.TrackResolver;
+
+import org.testng.annotations.Test;
+
+import de.felixbruns.jotify.media.Album;
+import de.felixbruns.jotify.media.Artist;
+import de.felixbruns.jotify.media.Track;
+
+public class TestTrackResolver {
+  /**
+   * Fake backend that knows every track and counts requests.
+   */
+  private static class FakeSource implements TrackResolver.Source {
+    int requests;
+
+    int failures;
+
+    public List<Track> browse(List<Track> tracks) throws IOException {
+      requests++;
+
+      if (failures > 0) {
+        failures--;
+        throw new IOException("Unavailable");
+      }
+
+      List<Track> result = new ArrayList<Track>();
+
+      for (Track track : tracks) {
+        Artist artist = new Artist(null, "Artist " + track.getId());
+        Track full = new Track(track.getId(), "Title " + track.getId(), artist,
+            new Album(null, "Album", artist));
+        full.setLength(180000);
+        result.add(full);
+      }
+
+      return result;
+    }
+  }
+
+  @Test(groups={"resolver"})
+  public void resolvesInBatchesAndCaches() throws IOException {
+    File file = File.createTempFile("track", ".cache");
+    file.delete();
+
+    try {
+      Random random = new Random(23);
+      PackedTrackList tracks = new PackedTrackList();
+
+      for (int i = 0; i < 2000; i++) {
+        tracks.add(random.nextLong(), random.nextLong());
+      }
+
+      FakeSource source = new FakeSource();
+      TrackResolver resolver = new TrackResolver(source, file, 100, 500);
+      resolver.resolve(tracks);
+      assert source.requests == 4 : source.requests;
+
+      Track first = resolver.getTrack(tracks.getHigh(0), tracks.getLow(0));
+      assert first.getTitle().equals("Title " + first.getId());
+      assert first == resolver.getTrack(tracks.getHigh(0), tracks.getLow(0));
+
+      // Evicted from memory, read back from the file
+      Track last = resolver.getTrack(tracks.getHigh(1999), tracks.getLow(1999));
+      assert last.getArtist().getName().equals("Artist " + last.getId());
+      assert last.getLength() == 180000;
+      resolver.resolve(tracks);
+      assert source.requests == 4;
+      resolver.close();
+
+      // A new resolver finds everything in the file
+      source = new FakeSource();
+      resolver = new TrackResolver(source, file, 100, 500);
+      resolver.resolve(tracks);
+      assert source.requests == 0;
+      assert resolver.getTrack(tracks.getHigh(7), tracks.getLow(7)).getAlbum().getName()
+          .equals("Album");
+      resolver.close();
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test(groups={"resolver"})
+  public void retriesFailedBatches() throws IOException {
+    File file = File.createTempFile("track", ".cache");
+    file.delete();
+
+    try {
+      PackedTrackList tracks = new PackedTrackList();
+
+      for (int i = 0; i < 10; i++) {
+        tracks.add(0, i);
+      }
+
+      FakeSource source = new FakeSource();
+      source.failures = 1;
+      TrackResolver resolver = new TrackResolver(source, file, 100, 5);
+      assert !resolver.resolve(tracks);
+      assert source.requests == 2;
+      assert resolver.getTrack(0, 0).getTitle() == null;
+      assert resolver.getTrack(0, 9).getTitle() != null;
+
+      // Only the failed batch is browsed for again
+      assert resolver.resolve(tracks);
+      assert source.requests == 3;
+      assert resolver.getTrack(0, 0).getTitle() != null;
+      assert resolver.resolve(tracks);
+      assert source.requests == 3;
+      resolver.close();
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test(groups={"resolver"})
+  public void compactsDuplicateRecords() throws IOException {
+    File file = File.createTempFile("track", ".cache");
+    file.delete();
+
+    try {
+      Random random = new Random(31);
+      PackedTrackList tracks = new PackedTrackList();
+
+      for (int i = 0; i < 2000; i++) {
+        tracks.add(random.nextLong(), random.nextLong());
+      }
+
+      // Two resolvers sharing a file each write every track
+      FakeSource source = new FakeSource();
+      TrackResolver first = new TrackResolver(source, file, 100, 500);
+      TrackResolver second = new TrackResolver(source, file, 100, 500);
+      assert first.resolve(tracks);
+      assert second.resolve(tracks);
+      first.close();
+      second.close();
+      long length = file.length();
+
+      source = new FakeSource();
+      TrackResolver resolver = new TrackResolver(source, file, 100, 500);
+      assert file.length() < length * 3 / 4 : file.length();
+      assert resolver.resolve(tracks);
+      assert source.requests == 0;
+
+      for (int i = 0; i < tracks.size(); i += 97) {
+        Track track = resolver.getTrack(tracks.getHigh(i), tracks.getLow(i));
+        assert track.getTitle().equals("Title " + track.getId());
+        assert track.getLength() == 180000;
+      }
+
+      resolver.close();
+    } finally {
+      file.delete();
+    }
+  }
+}